@@ -1,13 +1,21 @@
 package cw2.communication.client;
 
+import com.google.protobuf.DoubleValue;
 import cw2.communication.grpc.generated.*;
 import cw2.communication.nameServiceModule.NameServiceClient;
 import io.grpc.ConnectivityState;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Client for admin services
@@ -15,9 +23,14 @@ import java.util.Scanner;
 public class AdminServiceClient {
     private ManagedChannel channel = null;
     QuantityManagerServiceGrpc.QuantityManagerServiceBlockingStub clientStub = null;
+    CartManagerServiceGrpc.CartManagerServiceBlockingStub catalogStub = null;
     String host = "localhost"; // default service host
     int port = 5000; // default server port
     public static final String NAME_SERVICE_DEPLOYMENT_ADDR = "http://localhost:2379";
+    // Every call gives up after this long
+    private static final long CALL_DEADLINE_MS = Long.getLong("client.deadlineMs", 5000);
+    // Writes wait on a two-phase commit, so they are given longer than the servers' vote timeout
+    private static final long WRITE_DEADLINE_MS = Long.getLong("client.writeDeadlineMs", 15000);
 
     public AdminServiceClient(String host, int port) throws IOException, InterruptedException {
         this.host = host;
@@ -32,7 +45,7 @@ public class AdminServiceClient {
      * @throws InterruptedException
      */
     private void fetchServersViaNS() throws IOException, InterruptedException {
-        NameServiceClient client = new NameServiceClient(NAME_SERVICE_DEPLOYMENT_ADDR);
+        NameServiceClient client = new NameServiceClient(System.getProperty("nameService.address", NAME_SERVICE_DEPLOYMENT_ADDR));
         ArrayList<NameServiceClient.Service> services = client.findService();
 
         for (NameServiceClient.Service service : services) {
@@ -55,10 +68,9 @@ public class AdminServiceClient {
      */
     private void initializeConnection() {
         System.out.println("Initializing connection to the server under " + host + ":" + port);
-        channel = ManagedChannelBuilder.forAddress(host, this.port)
-                .usePlaintext()
-                .build();
+        channel = GrpcChannels.build(host, this.port);
         clientStub = QuantityManagerServiceGrpc.newBlockingStub(channel);
+        catalogStub = CartManagerServiceGrpc.newBlockingStub(channel);
         channel.getState(true);
     }
 
@@ -69,30 +81,132 @@ public class AdminServiceClient {
         channel.shutdown();
     }
 
+    /**
+     * Print the items below a quantity, lowest first; the server answers from its quantity index
+     * @param threshold - quantity the items must be below
+     * @param limit - largest number of items listed, 0 for all
+     */
+    private void listLowStockItems(double threshold, int limit) {
+        CatalogQuery query = CatalogQuery.newBuilder()
+                .setMaxQuantity(DoubleValue.of(threshold))
+                .setLimit(limit)
+                .build();
+        GetItemsResponse response = catalogStub
+                .withDeadlineAfter(CALL_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                .queryItems(query);
+
+        System.out.println("\nItem ID   Quantity");
+        for (ItemRequest item : response.getItemsList()) {
+            System.out.println(item.getId() + "   " + item.getQuantity());
+        }
+        if (response.getItemsCount() == 0) {
+            System.out.println("No items below " + threshold);
+        }
+    }
+
+    /**
+     * Stream the quantities of a CSV file to the servers, which set them chunk by chunk.
+     * Lines are only read while the call has room for them, so a slow server slows the reading down
+     * instead of the whole file piling up in memory
+     * @param path - CSV file
+     * @throws Exception when the file cannot be read or the import fails
+     */
+    private void importQuantities(Path path) throws Exception {
+        CompletableFuture<ImportQuantitiesResponse> result = new CompletableFuture<>();
+        try (CsvQuantityReader reader = new CsvQuantityReader(path)) {
+            // No deadline, a large import runs for as long as it takes
+            QuantityManagerServiceGrpc.newStub(channel).importQuantities(
+                    new ClientResponseObserver<UpdateQuantityRequest, ImportQuantitiesResponse>() {
+                        @Override
+                        public void beforeStart(ClientCallStreamObserver<UpdateQuantityRequest> requestStream) {
+                            requestStream.setOnReadyHandler(new Runnable() {
+                                private boolean isDone = false;
+
+                                @Override
+                                public void run() {
+                                    try {
+                                        while (!isDone && requestStream.isReady()) {
+                                            if (!reader.next()) {
+                                                isDone = true;
+                                                requestStream.onCompleted();
+                                                return;
+                                            }
+                                            requestStream.onNext(UpdateQuantityRequest.newBuilder()
+                                                    .setId(reader.getItemId())
+                                                    .setQuantity(reader.getQuantity())
+                                                    .build());
+                                        }
+                                    } catch (IOException e) {
+                                        isDone = true;
+                                        requestStream.onError(e);
+                                        result.completeExceptionally(e);
+                                    }
+                                }
+                            });
+                        }
+
+                        @Override
+                        public void onNext(ImportQuantitiesResponse response) {
+                            result.complete(response);
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                            result.completeExceptionally(t);
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                        }
+                    });
+
+            ImportQuantitiesResponse response = result.get();
+            System.out.println(response.getResponse());
+            if (reader.getMalformedCount() > 0) {
+                System.out.println("Skipped " + reader.getMalformedCount() + " malformed lines");
+            }
+        } catch (ExecutionException e) {
+            System.out.println("Import failed: " + e.getCause().getMessage());
+        }
+    }
+
     /**
      * Get user requests and process them accordingly
      */
     void processUserRequests() {
         while (true) {
             try {
-                UpdateQuantityRequest quantityRequest = null;
                 Scanner userInput = new Scanner(System.in);
                 System.out.println("Hey, Admin!");
                 System.out.println("Choose one of the actions:");
                 System.out.println("1. Update quantity (Enter 1)");
+                System.out.println("2. List low stock items (Enter 2)");
+                System.out.println("3. Import quantities from a CSV file (Enter 3)");
                 String action = userInput.nextLine().trim();
+                if (Integer.parseInt(action) == 3) {
+                    System.out.println("\nEnter the path of the CSV file (item id,quantity per line):");
+                    importQuantities(Paths.get(userInput.nextLine().trim()));
+                }
+                if (Integer.parseInt(action) == 2) {
+                    System.out.println("\nList items with a quantity below:");
+                    double threshold = Double.parseDouble(userInput.nextLine().trim());
+                    System.out.println("\nEnter the number of items to list (0 for all):");
+                    int limit = Integer.parseInt(userInput.nextLine().trim());
+                    listLowStockItems(threshold, limit);
+                }
                 if (Integer.parseInt(action) == 1) {
                     System.out.println("\nEnter item id:");
                     String itemId = userInput.nextLine().trim();
                     System.out.println("\nEnter quantity:");
                     int quantity = Integer.parseInt(userInput.nextLine().trim());
 
-                    quantityRequest = UpdateQuantityRequest
+                    UpdateQuantityRequest quantityRequest = UpdateQuantityRequest
                             .newBuilder()
                             .setId(itemId)
                             .setQuantity(quantity)
                             .setIsSentByPrimary(false)
                             .setIsSentBySecondary(false)
+                            .setRequestId(UUID.randomUUID().toString())
                             .build();
                     ConnectivityState state = channel.getState(true);
 
@@ -103,7 +217,9 @@ public class AdminServiceClient {
                         state = channel.getState(true);
                     }
 
-                    UpdateQuantityResponse response = clientStub.updateQuantity(quantityRequest);
+                    UpdateQuantityResponse response = RetryingCalls.call(() -> clientStub
+                            .withDeadlineAfter(WRITE_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                            .updateQuantity(quantityRequest), this::fetchServersViaNS);
                     System.out.println(response.getResponse());
                 }
 
@@ -0,0 +1,248 @@
+package cw2.communication.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the "item id,quantity" lines of a CSV file mapped into memory, one window of the file at a time.
+ * Lines are parsed in place from the mapped bytes instead of being read into strings first;
+ * only the item id is copied out. A first line without a numeric quantity is taken for a header.
+ */
+class CsvQuantityReader implements Closeable {
+    private static final long WINDOW_BYTES = 64L * 1024 * 1024;
+    // Beyond this many digits the mantissa may not fit a double exactly
+    private static final int MAX_FAST_DIGITS = 15;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long windowBytes;
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+    private byte[] idBytes = new byte[64];
+
+    private long lineNumber = 0;
+    private long malformedCount = 0;
+    private String itemId;
+    private double quantity;
+
+    /**
+     * CsvQuantityReader Constructor.
+     *
+     * @param path CSV file.
+     * @throws IOException when the file cannot be opened.
+     */
+    CsvQuantityReader(Path path) throws IOException {
+        this(path, WINDOW_BYTES);
+    }
+
+    /**
+     * CsvQuantityReader Constructor.
+     *
+     * @param path        CSV file.
+     * @param windowBytes size of the part of the file mapped at a time, the longest line that can be read.
+     * @throws IOException when the file cannot be opened.
+     */
+    CsvQuantityReader(Path path, long windowBytes) throws IOException {
+        this.windowBytes = windowBytes;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        fileSize = channel.size();
+        window = map(0);
+    }
+
+    /**
+     * Moves to the next well formed line, skipping blank and malformed ones.
+     *
+     * @return false once the end of the file is reached.
+     * @throws IOException when the file cannot be read or a line does not fit a window.
+     */
+    boolean next() throws IOException {
+        while (true) {
+            if (!window.hasRemaining() && windowStart + window.limit() >= fileSize) {
+                return false;
+            }
+
+            int lineStart = window.position();
+            int lineEnd = findLineEnd(lineStart);
+            if (lineEnd < 0) {
+                // The line runs past this window, map the next one from its start
+                window = map(windowStart + lineStart);
+                lineStart = 0;
+                lineEnd = findLineEnd(0);
+                if (lineEnd < 0) {
+                    throw new IOException("Line " + (lineNumber + 1) + " is longer than " + windowBytes + " bytes");
+                }
+            }
+            window.position(Math.min(lineEnd + 1, window.limit()));
+            lineNumber++;
+
+            if (parseLine(lineStart, lineEnd)) {
+                return true;
+            }
+        }
+    }
+
+    String getItemId() {
+        return itemId;
+    }
+
+    double getQuantity() {
+        return quantity;
+    }
+
+    long getMalformedCount() {
+        return malformedCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Maps the window of the file starting at a position.
+     *
+     * @param start file position.
+     * @return mapped window.
+     * @throws IOException when the file cannot be mapped.
+     */
+    private MappedByteBuffer map(long start) throws IOException {
+        windowStart = start;
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowBytes, fileSize - start));
+    }
+
+    /**
+     * Finds the end of the line starting at a window position.
+     *
+     * @param lineStart window position.
+     * @return position of the line feed, or the window limit for the last line of the file;
+     * -1 when the line goes on in the next window.
+     */
+    private int findLineEnd(int lineStart) {
+        for (int i = lineStart; i < window.limit(); i++) {
+            if (window.get(i) == '\n') {
+                return i;
+            }
+        }
+
+        return (windowStart + window.limit() >= fileSize) ? window.limit() : -1;
+    }
+
+    /**
+     * Parses the item id and the quantity of a line.
+     *
+     * @param start position of the first byte of the line.
+     * @param end   position past the last byte of the line.
+     * @return whether the line holds an item.
+     */
+    private boolean parseLine(int start, int end) {
+        while (end > start && isBlank(window.get(end - 1))) {
+            end--;
+        }
+        while (start < end && isBlank(window.get(start))) {
+            start++;
+        }
+        if (start == end) {
+            return false;
+        }
+
+        int comma = start;
+        while (comma < end && window.get(comma) != ',') {
+            comma++;
+        }
+        int idEnd = comma;
+        while (idEnd > start && isBlank(window.get(idEnd - 1))) {
+            idEnd--;
+        }
+        int quantityStart = comma + 1;
+        while (quantityStart < end && isBlank(window.get(quantityStart))) {
+            quantityStart++;
+        }
+
+        double parsedQuantity = (comma < end) ? parseQuantity(quantityStart, end) : Double.NaN;
+        if (idEnd == start || Double.isNaN(parsedQuantity)) {
+            if (lineNumber > 1) {
+                malformedCount++;
+                System.out.println("Skipping malformed line " + lineNumber);
+            }
+            return false;
+        }
+
+        itemId = copyString(start, idEnd);
+        quantity = parsedQuantity;
+        return true;
+    }
+
+    /**
+     * Parses a decimal number straight from the mapped bytes, falling back to the JDK parser
+     * for exponents and long mantissas.
+     *
+     * @param start position of the first digit or sign.
+     * @param end   position past the last digit.
+     * @return the number, NaN when malformed.
+     */
+    private double parseQuantity(int start, int end) {
+        int i = start;
+        boolean isNegative = false;
+        if (i < end && (window.get(i) == '-' || window.get(i) == '+')) {
+            isNegative = window.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean isFraction = false;
+        for (; i < end; i++) {
+            byte b = window.get(i);
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (isFraction) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && !isFraction) {
+                isFraction = true;
+            } else {
+                return parseSlow(start, end);
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        if (digits > MAX_FAST_DIGITS) {
+            return parseSlow(start, end);
+        }
+
+        double value = (fractionDigits == 0) ? mantissa : mantissa / Math.pow(10, fractionDigits);
+        return isNegative ? -value : value;
+    }
+
+    private double parseSlow(int start, int end) {
+        try {
+            return Double.parseDouble(copyString(start, end));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private String copyString(int start, int end) {
+        int length = end - start;
+        if (idBytes.length < length) {
+            idBytes = new byte[Math.max(length, idBytes.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            idBytes[i] = window.get(start + i);
+        }
+
+        return new String(idBytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+}
@@ -0,0 +1,55 @@
+package cw2.communication.client;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.NettyChannelBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds channels with the same HTTP/2 window and keepalive settings as the servers use
+ */
+public final class GrpcChannels {
+    private static final int FLOW_CONTROL_WINDOW = Integer.getInteger("transport.flowControlWindow", 1024 * 1024);
+    private static final long KEEP_ALIVE_MS = Long.getLong("transport.keepAliveMs", 30000);
+    private static final long KEEP_ALIVE_TIMEOUT_MS = Long.getLong("transport.keepAliveTimeoutMs", 10000);
+    private static final Metadata.Key<String> RETRY_AFTER_KEY =
+            Metadata.Key.of("retry-after-ms", Metadata.ASCII_STRING_MARSHALLER);
+
+    private GrpcChannels() {
+    }
+
+    /**
+     * Build a channel to a server
+     * @param host - server host
+     * @param port - server port
+     * @return channel
+     */
+    public static ManagedChannel build(String host, int port) {
+        return NettyChannelBuilder
+                .forAddress(host, port)
+                .flowControlWindow(FLOW_CONTROL_WINDOW)
+                .keepAliveTime(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS)
+                .keepAliveTimeout(KEEP_ALIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .keepAliveWithoutCalls(true)
+                .usePlaintext()
+                .build();
+    }
+
+    /**
+     * Get the delay a busy server asked for before the request is retried, either because it was overloaded
+     * or because the items of the request were being changed by another one
+     * @param e - error returned by the server
+     * @return delay in milliseconds, -1 if the server was not busy
+     */
+    public static long getRetryAfterMillis(StatusRuntimeException e) {
+        String retryAfter = e.getTrailers() == null ? null : e.getTrailers().get(RETRY_AFTER_KEY);
+        if (retryAfter != null) {
+            return Long.parseLong(retryAfter);
+        }
+
+        return (e.getStatus().getCode() == Status.Code.RESOURCE_EXHAUSTED) ? 0 : -1;
+    }
+}
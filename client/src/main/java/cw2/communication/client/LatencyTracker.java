@@ -0,0 +1,50 @@
+package cw2.communication.client;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latest call latencies to derive percentile based hedging delays
+ */
+public class LatencyTracker {
+    private final long[] samples;
+    private final long defaultMillis;
+    private int count = 0;
+    private int next = 0;
+
+    /**
+     * LatencyTracker Constructor.
+     *
+     * @param windowSize    Number of latest samples kept.
+     * @param defaultMillis Value returned until enough samples are recorded.
+     */
+    public LatencyTracker(int windowSize, long defaultMillis) {
+        this.samples = new long[windowSize];
+        this.defaultMillis = defaultMillis;
+    }
+
+    /**
+     * Record the latency of a call
+     * @param millis - latency in milliseconds
+     */
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * Get a latency percentile over the recorded window
+     * @param percentile - percentile between 0 and 100
+     * @return latency in milliseconds
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count < Math.min(20, samples.length)) {
+            return defaultMillis;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+}
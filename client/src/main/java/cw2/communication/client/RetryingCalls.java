@@ -0,0 +1,59 @@
+package cw2.communication.client;
+
+import io.grpc.StatusRuntimeException;
+
+/**
+ * Retries the writes sent to the servers. Retries reuse the request id, so the servers apply a request
+ * only once however many attempts reach them
+ */
+public final class RetryingCalls {
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * A blocking grpc call, run again on every attempt
+     * @param <T> response type
+     */
+    public interface Call<T> {
+        T call();
+    }
+
+    /**
+     * Finds the servers again after an attempt failed
+     */
+    public interface Reconnect {
+        void reconnect() throws Exception;
+    }
+
+    private RetryingCalls() {
+    }
+
+    /**
+     * Run a call, backing off when the server is busy and switching servers when it failed
+     * @param call - call to run
+     * @param reconnect - run before retrying a failed call
+     * @param <T> - response type
+     * @return response of the first attempt that succeeded
+     * @throws StatusRuntimeException the error of the last attempt, once every attempt failed
+     * @throws Exception if the servers could not be found again
+     */
+    public static <T> T call(Call<T> call, Reconnect reconnect) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.call();
+            } catch (StatusRuntimeException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                long retryAfter = GrpcChannels.getRetryAfterMillis(e);
+                if (retryAfter >= 0) {
+                    // The primary server is overloaded or the items are busy, back off instead of switching servers
+                    System.out.println("Server busy, retrying in " + retryAfter + "ms...");
+                    Thread.sleep(retryAfter);
+                } else {
+                    System.out.println("Request failed, retrying...");
+                    reconnect.reconnect();
+                }
+            }
+        }
+    }
+}
@@ -1,16 +1,26 @@
 package cw2.communication.client;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.Empty;
 import cw2.communication.grpc.generated.*;
 import cw2.communication.nameServiceModule.NameServiceClient;
 import io.grpc.ConnectivityState;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 
 import java.io.IOException;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Client for shopper services
@@ -22,6 +32,15 @@ public class ShopperServiceClient {
     String host = "localhost"; // default service host
     int port = 5000; // default server port
     public static final String NAME_SERVICE_DEPLOYMENT_ADDR = "http://localhost:2379";
+    // Every call gives up after this long
+    private static final long CALL_DEADLINE_MS = Long.getLong("client.deadlineMs", 5000);
+    // Writes wait on a two-phase commit, so they are given longer than the servers' vote timeout
+    private static final long WRITE_DEADLINE_MS = Long.getLong("client.writeDeadlineMs", 15000);
+    // Reads taking longer than this latency percentile are duplicated to a second server
+    private static final double HEDGE_PERCENTILE = Double.parseDouble(System.getProperty("client.hedgePercentile", "95"));
+    private final LatencyTracker readLatencies = new LatencyTracker(1000, 50);
+    private final Map<String, ManagedChannel> hedgeChannels = new HashMap<>();
+    private List<NameServiceClient.Service> knownServices = new ArrayList<>();
 
     public ShopperServiceClient(String host, int port) throws IOException, InterruptedException {
         this.host = host;
@@ -36,8 +55,9 @@ public class ShopperServiceClient {
      * @throws InterruptedException
      */
     private void fetchServersViaNS() throws IOException, InterruptedException {
-        NameServiceClient client = new NameServiceClient(NAME_SERVICE_DEPLOYMENT_ADDR);
+        NameServiceClient client = new NameServiceClient(System.getProperty("nameService.address", NAME_SERVICE_DEPLOYMENT_ADDR));
         ArrayList<NameServiceClient.Service> services = client.findService();
+        knownServices = services;
 
         for (NameServiceClient.Service service : services) {
             host = service.getIPAddress();
@@ -59,9 +79,7 @@ public class ShopperServiceClient {
      */
     private void initializeConnection() {
         System.out.println("Initializing connection to the server under " + host + ":" + port);
-        channel = ManagedChannelBuilder.forAddress(host, this.port)
-                .usePlaintext()
-                .build();
+        channel = GrpcChannels.build(host, this.port);
         cartClientStub = CartManagerServiceGrpc.newBlockingStub(channel);
         orderClientStub = OrderManagerServiceGrpc.newBlockingStub(channel);
         channel.getState(true);
@@ -72,6 +90,123 @@ public class ShopperServiceClient {
      */
     void closeConnection() {
         channel.shutdown();
+        for (ManagedChannel hedgeChannel : hedgeChannels.values()) {
+            hedgeChannel.shutdown();
+        }
+    }
+
+    /**
+     * Get a channel to a server other than the connected one, for hedged reads
+     * @return channel, null if no other server is known
+     */
+    private ManagedChannel getHedgeChannel() {
+        for (NameServiceClient.Service service : knownServices) {
+            if (service.getIPAddress().equals(host) && service.getPort() == port) {
+                continue;
+            }
+            String address = service.getIPAddress() + ":" + service.getPort();
+            return hedgeChannels.computeIfAbsent(address,
+                    key -> GrpcChannels.build(service.getIPAddress(), service.getPort()));
+        }
+
+        return null;
+    }
+
+    /**
+     * Send a getItems call, completing the shared result with the first successful answer
+     * @param readChannel - channel to send the call on
+     * @param result - shared result of the hedged read
+     * @param outstanding - number of calls without an answer yet
+     * @return the call
+     */
+    private ListenableFuture<GetItemsResponse> sendGetItems(ManagedChannel readChannel,
+                                                            CompletableFuture<GetItemsResponse> result,
+                                                            AtomicInteger outstanding) {
+        outstanding.incrementAndGet();
+        ListenableFuture<GetItemsResponse> call = CartManagerServiceGrpc.newFutureStub(readChannel)
+                .withDeadlineAfter(CALL_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                .getItems(Empty.getDefaultInstance());
+        call.addListener(() -> {
+            try {
+                result.complete(call.get());
+            } catch (Exception e) {
+                // Only fail once no other call can still answer
+                if (outstanding.decrementAndGet() == 0) {
+                    result.completeExceptionally(e instanceof ExecutionException ? e.getCause() : e);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+
+        return call;
+    }
+
+    /**
+     * Read the items, duplicating the request to a second server if the first one
+     * is slower than usual, and taking whichever answer arrives first
+     * @return items response
+     * @throws Exception if no server answered within the deadline
+     */
+    private GetItemsResponse getItems() throws Exception {
+        long start = System.currentTimeMillis();
+        CompletableFuture<GetItemsResponse> result = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger();
+        List<ListenableFuture<GetItemsResponse>> calls = new ArrayList<>();
+        calls.add(sendGetItems(channel, result, outstanding));
+
+        try {
+            GetItemsResponse response;
+            try {
+                response = result.get(readLatencies.getPercentile(HEDGE_PERCENTILE), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                ManagedChannel hedgeChannel = getHedgeChannel();
+                if (hedgeChannel != null) {
+                    System.out.println("Server is slow to answer, sending a hedged request...");
+                    calls.add(sendGetItems(hedgeChannel, result, outstanding));
+                }
+                long remaining = CALL_DEADLINE_MS - (System.currentTimeMillis() - start);
+                response = result.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+            }
+            readLatencies.record(System.currentTimeMillis() - start);
+
+            return response;
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        } finally {
+            for (ListenableFuture<GetItemsResponse> call : calls) {
+                call.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Print a user's orders a page at a time, latest first
+     * @param userId - user id
+     * @param userInput - asked whether to show the next page
+     */
+    private void showOrders(String userId, Scanner userInput) {
+        String pageToken = "";
+        do {
+            GetOrdersResponse response = orderClientStub
+                    .withDeadlineAfter(CALL_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                    .getOrders(GetOrdersRequest.newBuilder().setUserId(userId).setPageToken(pageToken).build());
+            if (response.getOrdersCount() == 0 && pageToken.isEmpty()) {
+                System.out.println("No orders yet");
+            }
+            for (OrderRecord order : response.getOrdersList()) {
+                System.out.println("Order " + order.getOrderId() + " placed at " + Instant.ofEpochMilli(order.getPlacedAt()));
+                for (ItemRequest item : order.getItemsList()) {
+                    System.out.println("   " + item.getId() + " x " + item.getQuantity());
+                }
+            }
+
+            pageToken = response.getNextPageToken();
+            if (!pageToken.isEmpty()) {
+                System.out.println("Show older orders? (y/n)");
+                if (!userInput.nextLine().trim().equalsIgnoreCase("y")) {
+                    return;
+                }
+            }
+        } while (!pageToken.isEmpty());
     }
 
     /**
@@ -80,20 +215,19 @@ public class ShopperServiceClient {
     void processUserRequests() {
         while (true) {
             try {
-                PlaceOrderRequest orderRequest = null;
-                CartRequest cartRequest = null;
 
                 Scanner userInput = new Scanner(System.in);
                 System.out.println("Hey, Customer!");
                 System.out.println("Choose one of the actions:");
                 System.out.println("1. Add to cart (Enter 1)");
                 System.out.println("2. Place order (Enter 2)");
+                System.out.println("3. View my orders (Enter 3)");
                 String action = userInput.nextLine().trim();
                 if (Integer.parseInt(action) == 1) {
                     System.out.println("Enter your id:");
                     String userId = userInput.nextLine().trim();
 
-                    GetItemsResponse itemsResponse = cartClientStub.getItems(Empty.getDefaultInstance());
+                    GetItemsResponse itemsResponse = getItems();
                     List<ItemRequest> items = itemsResponse.getItemsList();
                     ItemRequest selectedItem = null;
                     do {
@@ -118,13 +252,14 @@ public class ShopperServiceClient {
                     System.out.println("Enter quantity:");
                     int quantity = Integer.parseInt(userInput.nextLine().trim());
 
-                    cartRequest = CartRequest
+                    CartRequest cartRequest = CartRequest
                             .newBuilder()
                             .setId(selectedItem.getId())
                             .setUserId(userId)
                             .setQuantity(quantity)
                             .setIsSentByPrimary(false)
                             .setIsSentBySecondary(false)
+                            .setRequestId(UUID.randomUUID().toString())
                             .build();
 
                     ConnectivityState state = channel.getState(true);
@@ -136,17 +271,20 @@ public class ShopperServiceClient {
                         state = channel.getState(true);
                     }
 
-                    CartResponse response = cartClientStub.addToCart(cartRequest);
+                    CartResponse response = RetryingCalls.call(() -> cartClientStub
+                            .withDeadlineAfter(WRITE_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                            .addToCart(cartRequest), this::fetchServersViaNS);
                     System.out.println(response.getResponse());
                 } else if (Integer.parseInt(action) == 2) {
                     System.out.println("Enter your id:");
                     String userId = userInput.nextLine().trim();
 
-                    orderRequest = PlaceOrderRequest
+                    PlaceOrderRequest orderRequest = PlaceOrderRequest
                             .newBuilder()
                             .setUserId(userId)
                             .setIsSentByPrimary(false)
                             .setIsSentBySecondary(false)
+                            .setRequestId(UUID.randomUUID().toString())
                             .build();
                     ConnectivityState state = channel.getState(true);
 
@@ -157,8 +295,14 @@ public class ShopperServiceClient {
                         state = channel.getState(true);
                     }
 
-                    PlaceOrderResponse response = orderClientStub.placeOrder(orderRequest);
+                    PlaceOrderResponse response = RetryingCalls.call(() -> orderClientStub
+                            .withDeadlineAfter(WRITE_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                            .placeOrder(orderRequest), this::fetchServersViaNS);
                     System.out.println(response.getResponse());
+                } else if (Integer.parseInt(action) == 3) {
+                    System.out.println("Enter your id:");
+                    String userId = userInput.nextLine().trim();
+                    showOrders(userId, userInput);
                 }
 
                 Thread.sleep(1000);
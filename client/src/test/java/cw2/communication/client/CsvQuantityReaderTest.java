@@ -0,0 +1,110 @@
+package cw2.communication.client;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CsvQuantityReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void skipsHeaderAndMalformedLines() throws IOException {
+        Path path = write("item,quantity\napple, 3\n\n,4\npear,x\n plum ,2.5\r\n");
+
+        try (CsvQuantityReader reader = new CsvQuantityReader(path)) {
+            assertEquals(Arrays.asList("apple=3.0", "plum=2.5"), readAll(reader));
+            assertEquals(2, reader.getMalformedCount());
+        }
+    }
+
+    @Test
+    public void parsesSignsExponentsAndLongMantissas() throws IOException {
+        Path path = write("a,-1.25\nb,+2\nc,1e3\nd,0.1234567890123456789\n");
+
+        try (CsvQuantityReader reader = new CsvQuantityReader(path)) {
+            assertEquals(Arrays.asList("a=-1.25", "b=2.0", "c=1000.0", "d=" + 0.1234567890123456789),
+                    readAll(reader));
+        }
+    }
+
+    @Test
+    public void readsLinesSplitAcrossEveryWindowBoundary() throws IOException {
+        StringBuilder csv = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            csv.append("sku").append(i).append(',').append(i).append('\n');
+            expected.add("sku" + i + "=" + (double) i);
+        }
+        Path path = write(csv.toString());
+
+        // Every window size cuts the lines at a different place
+        for (long windowBytes = 12; windowBytes <= 24; windowBytes++) {
+            try (CsvQuantityReader reader = new CsvQuantityReader(path, windowBytes)) {
+                assertEquals("window of " + windowBytes + " bytes", expected, readAll(reader));
+            }
+        }
+    }
+
+    @Test
+    public void readsLastLineWithoutLineFeed() throws IOException {
+        // The last line fills the final window exactly
+        Path path = write("ab,1\ncd,22");
+
+        try (CsvQuantityReader reader = new CsvQuantityReader(path, 5)) {
+            assertEquals(Arrays.asList("ab=1.0", "cd=22.0"), readAll(reader));
+        }
+    }
+
+    @Test
+    public void readsEmptyFile() throws IOException {
+        Path path = write("");
+
+        try (CsvQuantityReader reader = new CsvQuantityReader(path)) {
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void rejectsLineLongerThanWindow() throws IOException {
+        Path path = write("ab,1\nlongitem,1\ncd,2\n");
+
+        try (CsvQuantityReader reader = new CsvQuantityReader(path, 8)) {
+            assertTrue(reader.next());
+            reader.next();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Line 2"));
+            return;
+        }
+        throw new AssertionError("Expected the long line to be rejected");
+    }
+
+    private Path write(String csv) throws IOException {
+        Path path = folder.newFile().toPath();
+        Files.write(path, csv.getBytes(StandardCharsets.UTF_8));
+
+        return path;
+    }
+
+    private static List<String> readAll(CsvQuantityReader reader) throws IOException {
+        List<String> items = new ArrayList<>();
+        while (reader.next()) {
+            items.add(reader.getItemId() + "=" + reader.getQuantity());
+        }
+
+        return items;
+    }
+}
@@ -0,0 +1,57 @@
+package cw2.communication.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void returnsDefaultUntilEnoughSamples() {
+        LatencyTracker tracker = new LatencyTracker(100, 250);
+        for (int i = 0; i < 19; i++) {
+            tracker.record(10);
+        }
+        assertEquals(250, tracker.getPercentile(95));
+
+        tracker.record(10);
+        assertEquals(10, tracker.getPercentile(95));
+    }
+
+    @Test
+    public void findsPercentileOfRecordedSamples() {
+        LatencyTracker tracker = new LatencyTracker(100, 0);
+        // 100, 99, ..., 1
+        for (int i = 100; i >= 1; i--) {
+            tracker.record(i);
+        }
+
+        assertEquals(1, tracker.getPercentile(0));
+        assertEquals(50, tracker.getPercentile(50));
+        assertEquals(95, tracker.getPercentile(95));
+        assertEquals(100, tracker.getPercentile(100));
+    }
+
+    @Test
+    public void keepsOnlyLatestSamples() {
+        LatencyTracker tracker = new LatencyTracker(20, 0);
+        for (int i = 0; i < 20; i++) {
+            tracker.record(1000);
+        }
+        for (int i = 0; i < 20; i++) {
+            tracker.record(5);
+        }
+
+        assertEquals(5, tracker.getPercentile(100));
+    }
+
+    @Test
+    public void needsOnlyAFullWindowWhenSmallerThanTheMinimum() {
+        LatencyTracker tracker = new LatencyTracker(5, 250);
+        for (int i = 1; i <= 5; i++) {
+            tracker.record(i * 10);
+        }
+
+        assertEquals(50, tracker.getPercentile(99));
+    }
+}
@@ -0,0 +1,31 @@
+package cw2.communication.coordination;
+
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+
+/**
+ * Coordination services the servers rely on: primary election, group membership
+ * and two phase commit coordination.
+ */
+public interface CoordinationBackend extends TransactionCoordination {
+
+    /**
+     * A server's seat in a group, through which it contests to be the primary server.
+     */
+    interface GroupMember extends LeaderElection, Membership {
+    }
+
+    /**
+     * Join a group of servers.
+     *
+     * @param groupName name of the group.
+     * @param serverData IP address, port combination of the server.
+     * @return the membership of the server.
+     * @throws IOException IO exception.
+     * @throws KeeperException Zookeeper exception.
+     * @throws InterruptedException Interrupt exception.
+     */
+    GroupMember joinGroup(String groupName, String serverData) throws IOException, KeeperException,
+            InterruptedException;
+}
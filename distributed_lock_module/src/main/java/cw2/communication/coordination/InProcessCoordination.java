@@ -0,0 +1,317 @@
+package cw2.communication.coordination;
+
+import cw2.communication.distributedTxProtocol.TwoPhaseCommit;
+import cw2.communication.distributedTxProtocol.listener.TwoPhaseCommitListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coordination kept in the memory of one JVM, with no network round trips.
+ * Runs a single server on its own, or several servers sharing one instance, and shows
+ * what the coordination through ZooKeeper costs by comparison.
+ */
+public class InProcessCoordination implements CoordinationBackend {
+    private final Map<String, NavigableMap<Long, byte[]>> groups = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    // transaction id -> transaction, kept for a while after the decision for late participants
+    private final Map<String, Transaction> transactions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService cleanupExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "in-process-2pc-cleanup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Override
+    public GroupMember joinGroup(String groupName, String serverData) {
+        NavigableMap<Long, byte[]> members = groups.computeIfAbsent(groupName, name -> new ConcurrentSkipListMap<>());
+        long memberId = sequence.incrementAndGet();
+        members.put(memberId, serverData.getBytes());
+
+        return new Member(members, memberId);
+    }
+
+    @Override
+    public TransactionCoordinator newCoordinator(TwoPhaseCommitListener listener) {
+        return new Coordinator(listener);
+    }
+
+    @Override
+    public TransactionParticipant newParticipant(TwoPhaseCommitListener listener) {
+        return new Participant(listener);
+    }
+
+    /**
+     * Aborts every undecided transaction. Only a coordinator that stopped leaves one behind
+     * for long, and decided transactions are removed on their own, so there is nothing to sweep later.
+     *
+     * @param intervalMillis       not used.
+     * @param transactionTtlMillis not used.
+     * @return number of transactions aborted.
+     */
+    @Override
+    public int startSweeper(long intervalMillis, long transactionTtlMillis) {
+        int orphanCount = 0;
+        for (Map.Entry<String, Transaction> transaction : transactions.entrySet()) {
+            if (transaction.getValue().decide(false)) {
+                orphanCount++;
+                scheduleRemoval(transaction.getKey());
+            }
+        }
+
+        return orphanCount;
+    }
+
+    /**
+     * Forgets a decided transaction once lagging participants had time to join it.
+     *
+     * @param transactionId transaction id.
+     */
+    private void scheduleRemoval(String transactionId) {
+        cleanupExecutor.schedule(() -> transactions.remove(transactionId),
+                TwoPhaseCommit.getVoteTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A server's seat in a group; the server that joined first is the primary server.
+     */
+    private static class Member implements GroupMember {
+        private final NavigableMap<Long, byte[]> members;
+        private final long memberId;
+
+        private Member(NavigableMap<Long, byte[]> members, long memberId) {
+            this.members = members;
+            this.memberId = memberId;
+        }
+
+        @Override
+        public boolean tryToBeThePrimary() {
+            return members.firstKey() == memberId;
+        }
+
+        @Override
+        public byte[] getPrimaryServerData() {
+            return members.firstEntry().getValue();
+        }
+
+        @Override
+        public List<byte[]> getAllServersData() {
+            List<byte[]> result = new ArrayList<>();
+            for (Map.Entry<Long, byte[]> member : members.entrySet()) {
+                if (member.getKey() != memberId) {
+                    result.add(member.getValue());
+                }
+            }
+
+            return result;
+        }
+
+        @Override
+        public void close() {
+            members.remove(memberId);
+        }
+    }
+
+    /**
+     * Votes and decision of one transaction.
+     */
+    private static class Transaction {
+        private final Map<String, Boolean> votes = new HashMap<>();
+        private final List<TwoPhaseCommitListener> listeners = new ArrayList<>();
+        private Boolean decision;
+
+        /**
+         * Records the vote of a participant.
+         *
+         * @param participantId participant id.
+         * @param isCommit      whether the participant votes commit.
+         */
+        private synchronized void vote(String participantId, boolean isCommit) {
+            votes.put(participantId, isCommit);
+            notifyAll();
+        }
+
+        /**
+         * Registers the listener of a participant, or hands it the decision if there is one already.
+         *
+         * @param listener listener of the decision.
+         */
+        private void join(TwoPhaseCommitListener listener) {
+            Boolean knownDecision;
+            synchronized (this) {
+                knownDecision = decision;
+                if (knownDecision == null) {
+                    listeners.add(listener);
+                }
+            }
+            if (knownDecision != null) {
+                notify(listener, knownDecision);
+            }
+        }
+
+        /**
+         * Waits for the votes required by the replication mode, until the deadline.
+         *
+         * @param requiredVotes commit votes needed.
+         * @param deadline      time to give up at.
+         * @return whether enough participants voted commit and none voted abort.
+         * @throws InterruptedException when interrupted while waiting.
+         */
+        private synchronized boolean awaitVotes(int requiredVotes, long deadline) throws InterruptedException {
+            while (true) {
+                int commitVotes = 0;
+                for (boolean isCommit : votes.values()) {
+                    if (!isCommit) {
+                        return false;
+                    }
+                    commitVotes++;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (commitVotes >= requiredVotes || remaining <= 0 || decision != null) {
+                    return commitVotes >= requiredVotes;
+                }
+                wait(remaining);
+            }
+        }
+
+        /**
+         * Decides the transaction, unless it is already decided, and tells the participants.
+         *
+         * @param isCommitted whether the transaction is committed.
+         * @return whether this call decided it.
+         */
+        private boolean decide(boolean isCommitted) {
+            List<TwoPhaseCommitListener> waiting;
+            synchronized (this) {
+                if (decision != null) {
+                    return false;
+                }
+                decision = isCommitted;
+                waiting = new ArrayList<>(listeners);
+                listeners.clear();
+                notifyAll();
+            }
+            for (TwoPhaseCommitListener listener : waiting) {
+                notify(listener, isCommitted);
+            }
+
+            return true;
+        }
+
+        private synchronized boolean isCommitted() {
+            return Boolean.TRUE.equals(decision);
+        }
+
+        private static void notify(TwoPhaseCommitListener listener, boolean isCommitted) {
+            if (isCommitted) {
+                listener.onGlobalCommit();
+            } else {
+                listener.onGlobalAbort();
+            }
+        }
+    }
+
+    /**
+     * Coordinator of an in-process transaction.
+     */
+    private class Coordinator implements TransactionCoordinator {
+        private final TwoPhaseCommitListener listener;
+        private String transactionId;
+        private Transaction transaction;
+
+        private Coordinator(TwoPhaseCommitListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void start(String transactionId) {
+            this.transactionId = transactionId;
+            this.transaction = new Transaction();
+            transactions.put(transactionId, transaction);
+        }
+
+        @Override
+        public boolean perform(int participantCount) throws InterruptedException {
+            int requiredVotes = TwoPhaseCommit.getReplicationMode().requiredVotes(participantCount);
+            boolean isCommitted = transaction.awaitVotes(requiredVotes,
+                    System.currentTimeMillis() + TwoPhaseCommit.getVoteTimeout());
+
+            return finish(isCommitted);
+        }
+
+        @Override
+        public void abort() {
+            finish(false);
+        }
+
+        /**
+         * Decides the transaction and tells the listener of the primary server.
+         * A transaction aborted at takeover stays aborted.
+         *
+         * @param isCommitted whether to commit.
+         * @return whether the transaction is committed.
+         */
+        private boolean finish(boolean isCommitted) {
+            transaction.decide(isCommitted);
+            boolean result = transaction.isCommitted();
+            Transaction.notify(listener, result);
+            scheduleRemoval(transactionId);
+
+            return result;
+        }
+    }
+
+    /**
+     * Participant of an in-process transaction.
+     */
+    private class Participant implements TransactionParticipant {
+        private final TwoPhaseCommitListener listener;
+        private String participantId;
+        private Transaction transaction;
+
+        private Participant(TwoPhaseCommitListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void start(String transactionId, String participantId) {
+            this.participantId = participantId;
+            this.transaction = transactions.get(transactionId);
+            if (transaction == null) {
+                // Already decided and forgotten, like a deleted transaction root
+                System.out.println("Transaction " + transactionId + " is already over, treating it as aborted");
+                listener.onGlobalAbort();
+                return;
+            }
+            transaction.join(listener);
+        }
+
+        @Override
+        public void voteCommit() {
+            if (transaction != null) {
+                transaction.vote(participantId, true);
+            }
+        }
+
+        @Override
+        public void voteAbort() {
+            if (transaction != null) {
+                transaction.vote(participantId, false);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
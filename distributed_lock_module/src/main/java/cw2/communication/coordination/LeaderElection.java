@@ -0,0 +1,34 @@
+package cw2.communication.coordination;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * Election of the primary server among the servers of a group.
+ */
+public interface LeaderElection {
+
+    /**
+     * Tries to become the primary server.
+     *
+     * @return Whether successful or not.
+     * @throws KeeperException Zookeeper exception.
+     * @throws InterruptedException Interrupt exception.
+     */
+    boolean tryToBeThePrimary() throws KeeperException, InterruptedException;
+
+    /**
+     * Retrieve primary server's data.
+     *
+     * @return data
+     * @throws KeeperException Zookeeper exception.
+     * @throws InterruptedException Interrupt exception.
+     */
+    byte[] getPrimaryServerData() throws KeeperException, InterruptedException;
+
+    /**
+     * Leaves the election, letting another server become the primary server.
+     *
+     * @throws InterruptedException Interrupt exception.
+     */
+    void close() throws InterruptedException;
+}
@@ -0,0 +1,20 @@
+package cw2.communication.coordination;
+
+import org.apache.zookeeper.KeeperException;
+
+import java.util.List;
+
+/**
+ * The servers currently in a group.
+ */
+public interface Membership {
+
+    /**
+     * Retrieve the data of every other server of the group.
+     *
+     * @return all server data.
+     * @throws KeeperException Zookeeper exception.
+     * @throws InterruptedException Interrupt exception.
+     */
+    List<byte[]> getAllServersData() throws KeeperException, InterruptedException;
+}
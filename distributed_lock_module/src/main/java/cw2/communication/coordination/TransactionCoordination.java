@@ -0,0 +1,39 @@
+package cw2.communication.coordination;
+
+import cw2.communication.distributedTxProtocol.listener.TwoPhaseCommitListener;
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+
+/**
+ * Creates the two sides of two phase commits and cleans up after failed coordinators.
+ */
+public interface TransactionCoordination {
+
+    /**
+     * Create the coordinator of a transaction
+     * @param listener - listener of the global decision
+     * @return coordinator
+     */
+    TransactionCoordinator newCoordinator(TwoPhaseCommitListener listener);
+
+    /**
+     * Create a participant of a transaction
+     * @param listener - listener of the global decision
+     * @return participant
+     */
+    TransactionParticipant newParticipant(TwoPhaseCommitListener listener);
+
+    /**
+     * Abort the transactions a failed coordinator left undecided, and keep cleaning up
+     * stale transactions in the background
+     * @param intervalMillis - delay between two sweeps
+     * @param transactionTtlMillis - age after which an undecided transaction is aborted
+     * @return number of orphaned transactions aborted at once
+     * @throws IOException
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    int startSweeper(long intervalMillis, long transactionTtlMillis) throws IOException, KeeperException,
+            InterruptedException;
+}
@@ -0,0 +1,35 @@
+package cw2.communication.coordination;
+
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+
+/**
+ * Coordinator side of a two phase commit, run by the primary server.
+ */
+public interface TransactionCoordinator {
+
+    /**
+     * Start the transaction, before the participants join it
+     * @param transactionId - unique transaction id
+     * @throws IOException
+     */
+    void start(String transactionId) throws IOException;
+
+    /**
+     * Perform the transaction once the votes required by the replication mode are in,
+     * aborting on the first abort vote or when the vote timeout elapses
+     * @param participantCount - number of participants the request was sent to
+     * @return whether the transaction was committed
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    boolean perform(int participantCount) throws KeeperException, InterruptedException;
+
+    /**
+     * Abort the transaction without collecting votes
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void abort() throws KeeperException, InterruptedException;
+}
@@ -0,0 +1,32 @@
+package cw2.communication.coordination;
+
+import java.io.IOException;
+
+/**
+ * Participant side of a two phase commit, run by the secondary servers.
+ */
+public interface TransactionParticipant {
+
+    /**
+     * Join the transaction started by the coordinator
+     * @param transactionId - transaction id given by the primary server
+     * @param participantId - unique id of this participant
+     * @throws IOException
+     */
+    void start(String transactionId, String participantId) throws IOException;
+
+    /**
+     * Vote for the transaction commit
+     */
+    void voteCommit();
+
+    /**
+     * Vote for the transaction abort
+     */
+    void voteAbort();
+
+    /**
+     * Release what the participant holds once the decision is applied
+     */
+    void close();
+}
@@ -0,0 +1,48 @@
+package cw2.communication.coordination;
+
+import cw2.communication.distributedTxProtocol.coordinator.TwoPhaseCommitCoordinator;
+import cw2.communication.distributedTxProtocol.listener.TwoPhaseCommitListener;
+import cw2.communication.distributedTxProtocol.participant.TwoPhaseCommitParticipant;
+import cw2.communication.primaryBasedProtocol.PrimaryBasedProtocol;
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+
+/**
+ * Coordination through a ZooKeeper ensemble: the primary lock, the membership and the
+ * two phase commits all live in znodes, so the servers can run on different machines.
+ */
+public class ZooKeeperCoordination implements CoordinationBackend {
+    private final String zooKeeperUrl;
+
+    /**
+     * ZooKeeperCoordination Constructor.
+     *
+     * @param zooKeeperUrl Zookeeper server URL.
+     */
+    public ZooKeeperCoordination(String zooKeeperUrl) {
+        this.zooKeeperUrl = zooKeeperUrl;
+    }
+
+    @Override
+    public GroupMember joinGroup(String groupName, String serverData) throws IOException, KeeperException,
+            InterruptedException {
+        return new PrimaryBasedProtocol(groupName, serverData, zooKeeperUrl);
+    }
+
+    @Override
+    public TransactionCoordinator newCoordinator(TwoPhaseCommitListener listener) {
+        return new TwoPhaseCommitCoordinator(listener, zooKeeperUrl);
+    }
+
+    @Override
+    public TransactionParticipant newParticipant(TwoPhaseCommitListener listener) {
+        return new TwoPhaseCommitParticipant(listener, zooKeeperUrl);
+    }
+
+    @Override
+    public int startSweeper(long intervalMillis, long transactionTtlMillis) throws IOException, KeeperException,
+            InterruptedException {
+        return TwoPhaseCommitCoordinator.startSweeper(zooKeeperUrl, intervalMillis, transactionTtlMillis);
+    }
+}
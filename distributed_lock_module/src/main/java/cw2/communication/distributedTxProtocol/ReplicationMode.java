@@ -0,0 +1,31 @@
+package cw2.communication.distributedTxProtocol;
+
+/**
+ * How many participant votes the coordinator needs before committing a transaction
+ */
+public enum ReplicationMode {
+    /**
+     * Every participant has to vote commit
+     */
+    ALL,
+
+    /**
+     * A majority of the replicas (coordinator included) has to vote commit,
+     * lagging participants apply the decision once they join the transaction
+     */
+    QUORUM;
+
+    /**
+     * Number of participant votes needed to commit
+     * @param participantCount - number of participants, excluding the coordinator
+     * @return required commit votes
+     */
+    public int requiredVotes(int participantCount) {
+        if (this == QUORUM) {
+            // majority of (participants + coordinator), minus the coordinator's own vote
+            return (participantCount + 1) / 2;
+        }
+
+        return participantCount;
+    }
+}
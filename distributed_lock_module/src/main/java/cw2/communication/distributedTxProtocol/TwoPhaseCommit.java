@@ -14,26 +14,55 @@ public abstract class TwoPhaseCommit implements Watcher {
     public static final String VOTE_ABORT = "vote_abort";
     public static final String GLOBAL_COMMIT = "global_commit";
     public static final String GLOBAL_ABORT = "global_abort";
-    static String zooKeeperUrl;
+    // Parent of the transaction nodes, one child per transaction
+    public static final String TRANSACTION_ROOT = "/txn";
+    protected static ReplicationMode replicationMode = ReplicationMode.ALL;
+    protected static long voteTimeout = 5000;
+    protected final String zooKeeperUrl;
     public String currentOrder;
     public Client client;
     public TwoPhaseCommitListener listener;
 
-    public TwoPhaseCommit(TwoPhaseCommitListener listener) {
+    public TwoPhaseCommit(TwoPhaseCommitListener listener, String zooKeeperUrl) {
         this.listener = listener;
+        this.zooKeeperUrl = zooKeeperUrl;
     }
 
     /**
-     * Sets the zookeeper url
-     * @param url - zookeeper url
+     * Sets the replication mode used by coordinators
+     * @param mode - replication mode
      */
-    public static void setZooKeeperURL(String url) {
-        zooKeeperUrl = url;
+    public static void setReplicationMode(ReplicationMode mode) {
+        replicationMode = mode;
+    }
+
+    /**
+     * Gets the replication mode used by coordinators
+     * @return replication mode
+     */
+    public static ReplicationMode getReplicationMode() {
+        return replicationMode;
+    }
+
+    /**
+     * Sets how long a coordinator waits for the required votes before aborting
+     * @param timeoutMillis - vote timeout in milliseconds
+     */
+    public static void setVoteTimeout(long timeoutMillis) {
+        voteTimeout = timeoutMillis;
+    }
+
+    /**
+     * Gets how long a coordinator waits for the required votes before aborting
+     * @return vote timeout in milliseconds
+     */
+    public static long getVoteTimeout() {
+        return voteTimeout;
     }
 
     /**
      * Start processing the transaction
-     * @param trxId
+     * @param trxId - unique transaction id, shared by the coordinator and the participants
      * @param participantId
      * @throws IOException
      */
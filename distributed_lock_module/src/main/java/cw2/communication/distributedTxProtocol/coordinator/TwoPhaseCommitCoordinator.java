@@ -1,78 +1,358 @@
 package cw2.communication.distributedTxProtocol.coordinator;
 
+import cw2.communication.coordination.TransactionCoordinator;
+import cw2.communication.distributedTxProtocol.ReplicationMode;
 import cw2.communication.distributedTxProtocol.listener.TwoPhaseCommitListener;
 import cw2.communication.distributedTxProtocol.TwoPhaseCommit;
+import cw2.communication.zooKeeper.Client;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.data.Stat;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Coordinates two phase commit protocol
+ * Coordinates two phase commit protocol.
+ * Every transaction gets its own container node under the transaction root, so transactions
+ * never share a node. Roots are deleted in the background once decided, and a sweeper on the
+ * primary server removes the ones a failed coordinator left behind.
  */
-public class TwoPhaseCommitCoordinator extends TwoPhaseCommit {
+public class TwoPhaseCommitCoordinator extends TwoPhaseCommit implements TransactionCoordinator {
 
-    public TwoPhaseCommitCoordinator(TwoPhaseCommitListener listener) {
-        super(listener);
+    private static final ScheduledExecutorService cleanupExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "2pc-cleanup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static volatile boolean hasTransactionRoot = false;
+    private static Client sweeperClient;
+
+    private final Semaphore voteSignal = new Semaphore(0);
+    // Participant nodes seen by the last vote collection, deleted along with the decision write
+    private volatile List<String> participantNodes = new ArrayList<>();
+
+    public TwoPhaseCommitCoordinator(TwoPhaseCommitListener listener, String zooKeeperUrl) {
+        super(listener, zooKeeperUrl);
+    }
+
+    /**
+     * Start the transaction by creating its root
+     * @param transactionId - unique transaction id
+     * @throws IOException
+     */
+    @Override
+    public void start(String transactionId) throws IOException {
+        start(transactionId, null);
     }
 
     /**
      * Calls on the transaction start
-     * @param orderId
+     * @param orderId - unique transaction id
      * @param participantId
      */
     public void onStartTransaction(String orderId, String participantId) {
         try {
-            currentOrder = "/" + orderId;
-            client.createNode(currentOrder, CreateMode.PERSISTENT, "".getBytes(StandardCharsets.UTF_8));
+            currentOrder = TRANSACTION_ROOT + "/" + orderId;
+            participantNodes = new ArrayList<>();
+            createTransactionRoot(client);
+            // ZooKeeper deletes the container by itself once its participants are gone
+            client.createNode(currentOrder, CreateMode.CONTAINER, "".getBytes(StandardCharsets.UTF_8));
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Perform the transaction if there are no any aborts
-     * @return
+     * Create the parent node of the transactions if it does not exist yet
+     * @param rootClient - client used to create the node
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    private static void createTransactionRoot(Client rootClient) throws KeeperException, InterruptedException {
+        if (hasTransactionRoot) {
+            return;
+        }
+        try {
+            rootClient.createNode(TRANSACTION_ROOT, CreateMode.PERSISTENT, "".getBytes(StandardCharsets.UTF_8));
+        } catch (KeeperException.NodeExistsException ignored) {
+        }
+        hasTransactionRoot = true;
+    }
+
+    /**
+     * Settle the transactions a failed coordinator left undecided by aborting them at once,
+     * then sweep the transaction roots in the background. An undecided root older than the
+     * transaction ttl is aborted, a decided root is deleted once lagging participants had time
+     * to read the decision. The node times come from ZooKeeper, so the clocks are assumed to be
+     * roughly in sync
+     * @param zooKeeperUrl - zookeeper url
+     * @param intervalMillis - delay between two sweeps
+     * @param transactionTtlMillis - age after which an undecided transaction is aborted
+     * @return number of orphaned transactions aborted at once
+     * @throws IOException
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public static synchronized int startSweeper(String zooKeeperUrl, long intervalMillis, long transactionTtlMillis)
+            throws IOException, KeeperException, InterruptedException {
+        if (sweeperClient != null) {
+            // Already sweeping in this JVM, for a primary server that stopped since
+            return sweep(0);
+        }
+        sweeperClient = new Client(zooKeeperUrl, 5000, watchedEvent -> { });
+        createTransactionRoot(sweeperClient);
+        int orphanCount = sweep(0);
+
+        cleanupExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                sweep(transactionTtlMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+
+        return orphanCount;
+    }
+
+    /**
+     * Abort the stale undecided transactions and delete the old decided ones.
+     * The stats of all the roots are read at the same time and each kind of change
+     * is applied in a single multi
+     * @param transactionTtlMillis - age after which an undecided transaction is aborted
+     * @return number of transactions aborted
      * @throws KeeperException
      * @throws InterruptedException
      */
-    public boolean perform() throws KeeperException, InterruptedException {
-        List<String> childrenNodePaths = client.getChildrenNodePaths(currentOrder);
-        boolean result = true;
-        byte[] data;
-
-        System.out.println("Child count :" + childrenNodePaths.size());
-
-        for (String path : childrenNodePaths) {
-            path = currentOrder + "/" + path;
-            System.out.println("Checking path :" + path);
-            data = client.getData(path, false);
-            String dataString = new String(data);
-
-            if (!VOTE_COMMIT.equals(dataString)) {
-                System.out.println("Child " + path + "caused the order to abort. Sending GLOBAL_ABORT");
-                sendGlobalAbort();
-                result = false;
+    private static int sweep(long transactionTtlMillis) throws KeeperException, InterruptedException {
+        List<String> roots = new ArrayList<>();
+        List<CompletableFuture<Stat>> stats = new ArrayList<>();
+        for (String child : sweeperClient.getChildrenNodePaths(TRANSACTION_ROOT)) {
+            String root = TRANSACTION_ROOT + "/" + child;
+            roots.add(root);
+            stats.add(sweeperClient.existsAsync(root));
+        }
+
+        long now = System.currentTimeMillis();
+        List<Op> aborts = new ArrayList<>();
+        List<Op> deletes = new ArrayList<>();
+        List<String> lateRoots = new ArrayList<>();
+        for (int i = 0; i < roots.size(); i++) {
+            Stat stat;
+            try {
+                stat = stats.get(i).get();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                continue;
+            }
+            if (stat == null) {
+                // Already deleted
+                continue;
+            }
+            String root = roots.get(i);
+            if (stat.getVersion() == 0) {
+                // The decision is the only write to a root, so this one is still undecided
+                if (now - stat.getCtime() >= transactionTtlMillis) {
+                    aborts.add(Op.setData(root, GLOBAL_ABORT.getBytes(StandardCharsets.UTF_8), 0));
+                }
+            } else if (now - stat.getMtime() >= voteTimeout) {
+                if (stat.getNumChildren() == 0) {
+                    deletes.add(Op.delete(root, stat.getVersion()));
+                } else {
+                    // Participants joined after the decision
+                    lateRoots.add(root);
+                }
+            }
+        }
+
+        if (!aborts.isEmpty()) {
+            System.out.println("Aborting " + aborts.size() + " stale transactions...");
+        }
+        runBatch(aborts);
+        runBatch(deletes);
+        for (String root : lateRoots) {
+            try {
+                sweeperClient.forceDelete(root);
+            } catch (KeeperException.NoNodeException ignored) {
+            }
+        }
+
+        return aborts.size();
+    }
+
+    /**
+     * Run the operations of the sweeper in a single multi. A root changed in the meantime
+     * fails the whole multi, the operations are then tried one by one
+     * @param ops - operations to be run
+     * @throws InterruptedException
+     */
+    private static void runBatch(List<Op> ops) throws InterruptedException {
+        if (ops.isEmpty()) {
+            return;
+        }
+        try {
+            sweeperClient.multi(ops);
+        } catch (KeeperException e) {
+            for (Op op : ops) {
+                try {
+                    sweeperClient.multi(Collections.singletonList(op));
+                } catch (KeeperException ignored) {
+                    // Decided, deleted or joined meanwhile
+                }
             }
         }
-        System.out.println("All nodes are okay to commit the order. Sending GLOBAL_COMMIT");
-        sendGlobalCommit();
-        reset();
+    }
+
+    /**
+     * Perform the transaction once the votes required by the replication mode are in,
+     * aborting on the first abort vote or when the vote timeout elapses
+     * @param participantCount - number of participants the request was sent to
+     * @return whether the transaction was committed
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    @Override
+    public boolean perform(int participantCount) throws KeeperException, InterruptedException {
+        int requiredVotes = replicationMode.requiredVotes(participantCount);
+        long deadline = System.currentTimeMillis() + voteTimeout;
+        // participant node -> vote, filled in by the read callbacks
+        Map<String, String> votes = new ConcurrentHashMap<>();
+        int commitVotes;
+        int joinedCount;
+        boolean hasAbortVote;
+
+        while (true) {
+            voteSignal.drainPermits();
+            joinedCount = collectVotes(votes);
+            commitVotes = 0;
+            hasAbortVote = false;
+
+            for (Map.Entry<String, String> vote : votes.entrySet()) {
+                if (VOTE_COMMIT.equals(vote.getValue())) {
+                    commitVotes++;
+                } else {
+                    System.out.println("Child " + vote.getKey() + " caused the order to abort.");
+                    hasAbortVote = true;
+                }
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (hasAbortVote || commitVotes >= requiredVotes || remaining <= 0) {
+                break;
+            }
+            voteSignal.tryAcquire(remaining, TimeUnit.MILLISECONDS);
+        }
+
+        System.out.println("Commit votes : " + commitVotes + "/" + participantCount + ", required : " + requiredVotes);
+        boolean result = !hasAbortVote && commitVotes >= requiredVotes;
+        if (result) {
+            System.out.println("Enough nodes are okay to commit the order. Sending GLOBAL_COMMIT");
+            result = sendGlobalCommit();
+        } else {
+            System.out.println("Sending GLOBAL_ABORT");
+            sendGlobalAbort();
+        }
+
+        if (replicationMode == ReplicationMode.QUORUM && joinedCount < participantCount) {
+            deferReset();
+        } else {
+            reset();
+        }
         return result;
     }
 
+    /**
+     * Abort the transaction without collecting votes. The root is kept for a while,
+     * so participants joining late still learn about the abort
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    @Override
+    public void abort() throws KeeperException, InterruptedException {
+        sendGlobalAbort();
+        deferReset();
+    }
+
+    /**
+     * Reads the votes that are not known yet. The children are listed once, then every
+     * participant node is read at the same time, all of them watched for later votes
+     * @param votes - votes known so far, updated with the new ones
+     * @return number of participants that joined the transaction
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    private int collectVotes(Map<String, String> votes) throws KeeperException, InterruptedException {
+        String order = currentOrder;
+        CompletableFuture<Integer> joinedCount = client.getChildrenNodePathsAsync(order, true)
+                .thenCompose(children -> {
+                    List<CompletableFuture<Void>> reads = new ArrayList<>();
+                    for (String child : children) {
+                        String path = order + "/" + child;
+                        if (!votes.containsKey(path)) {
+                            reads.add(client.getDataAsync(path, true)
+                                    .thenAccept(data -> {
+                                        String dataString = new String(data);
+                                        if (VOTE_COMMIT.equals(dataString) || VOTE_ABORT.equals(dataString)) {
+                                            votes.put(path, dataString);
+                                        }
+                                    })
+                                    // The participant left before its vote was read
+                                    .exceptionally(e -> null));
+                        }
+                    }
+                    List<String> nodes = new ArrayList<>();
+                    for (String child : children) {
+                        nodes.add(order + "/" + child);
+                    }
+                    participantNodes = nodes;
+                    return CompletableFuture.allOf(reads.toArray(new CompletableFuture[0]))
+                            .thenApply(ignored -> children.size());
+                });
+
+        try {
+            return joinedCount.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof KeeperException) {
+                throw (KeeperException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
     /**
      * Send commit message globally
+     * @return whether the commit stands, false if the transaction was aborted by the sweeper first
      * @throws KeeperException
      * @throws InterruptedException
      */
-    public void sendGlobalCommit() throws KeeperException, InterruptedException {
-        if (currentOrder != null) {
-            System.out.println("Sending global commit for" + currentOrder);
-            client.write(currentOrder, TwoPhaseCommitCoordinator.GLOBAL_COMMIT.getBytes(StandardCharsets.UTF_8));
-            listener.onGlobalCommit();
+    public boolean sendGlobalCommit() throws KeeperException, InterruptedException {
+        if (currentOrder == null) {
+            return false;
         }
+        System.out.println("Sending global commit for" + currentOrder);
+        if (!GLOBAL_COMMIT.equals(writeDecision(GLOBAL_COMMIT))) {
+            System.out.println("Transaction " + currentOrder + " was already aborted");
+            listener.onGlobalAbort();
+            return false;
+        }
+        listener.onGlobalCommit();
+        return true;
     }
 
     /**
@@ -83,21 +363,95 @@ public class TwoPhaseCommitCoordinator extends TwoPhaseCommit {
     public void sendGlobalAbort() throws KeeperException, InterruptedException {
         if (currentOrder != null) {
             System.out.println("Sending global abort for" + currentOrder);
-            client.write(currentOrder, TwoPhaseCommitCoordinator.GLOBAL_ABORT.getBytes(StandardCharsets.UTF_8));
+            writeDecision(GLOBAL_ABORT);
             listener.onGlobalAbort();
         }
     }
 
     /**
-     * Reset the lock
+     * Write the decision to the root and delete the participant nodes in the same multi.
+     * Participants watch the root, so only the root has to stay until they read the decision.
+     * The root is only written while still at its first version, so a decision is never overwritten
+     * @param decision - global commit or global abort
+     * @return the decision that stands
      * @throws KeeperException
      * @throws InterruptedException
      */
-    private void reset() throws KeeperException, InterruptedException {
-        client.forceDelete(currentOrder);
-        currentOrder = null;
+    private String writeDecision(String decision) throws KeeperException, InterruptedException {
+        byte[] data = decision.getBytes(StandardCharsets.UTF_8);
+        List<Op> ops = new ArrayList<>();
+        ops.add(Op.setData(currentOrder, data, 0));
+        for (String node : participantNodes) {
+            ops.add(Op.delete(node, -1));
+        }
+
+        try {
+            client.multi(ops);
+        } catch (KeeperException.NoNodeException e) {
+            // A participant left on its own, write the decision without the cleanup
+            try {
+                client.write(currentOrder, data, 0);
+            } catch (KeeperException.NoNodeException rootException) {
+                // The emptied container is gone, participants reading it treat the transaction as aborted
+                return GLOBAL_ABORT;
+            } catch (KeeperException.BadVersionException versionException) {
+                return GLOBAL_ABORT;
+            }
+        } catch (KeeperException.BadVersionException e) {
+            // Only the sweeper writes a root besides its coordinator, and it only aborts
+            return GLOBAL_ABORT;
+        }
+
+        return decision;
     }
-}
 
+    /**
+     * Reset the lock, deleting the decided transaction root in the background
+     */
+    private void reset() {
+        scheduleCleanup(0);
+    }
 
+    /**
+     * Keep the decided transaction root for a while, so lagging participants
+     * can pick up the decision, then delete it
+     */
+    private void deferReset() {
+        scheduleCleanup(voteTimeout);
+    }
+
+    /**
+     * Schedule the deletion of the current transaction root and the end of its session
+     * @param delayMillis - delay before the root is deleted
+     */
+    private void scheduleCleanup(long delayMillis) {
+        if (currentOrder == null) {
+            return;
+        }
+        String order = currentOrder;
+        Client orderClient = client;
+        cleanupExecutor.schedule(() -> {
+            try {
+                try {
+                    orderClient.delete(order);
+                } catch (KeeperException.NotEmptyException e) {
+                    // Participants joined after the decision
+                    orderClient.forceDelete(order);
+                } catch (KeeperException.NoNodeException e) {
+                    // Removed as an empty container already
+                }
+                orderClient.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        currentOrder = null;
+    }
 
+    @Override
+    public void process(WatchedEvent watchedEvent) {
+        if (watchedEvent.getType() != Event.EventType.None) {
+            voteSignal.release();
+        }
+    }
+}
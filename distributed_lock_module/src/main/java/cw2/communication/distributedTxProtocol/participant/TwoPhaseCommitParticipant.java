@@ -1,9 +1,11 @@
 package cw2.communication.distributedTxProtocol.participant;
 
+import cw2.communication.coordination.TransactionParticipant;
 import cw2.communication.distributedTxProtocol.TwoPhaseCommit;
 import cw2.communication.distributedTxProtocol.coordinator.TwoPhaseCommitCoordinator;
 import cw2.communication.distributedTxProtocol.listener.TwoPhaseCommitListener;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 
@@ -12,26 +14,27 @@ import java.nio.charset.StandardCharsets;
 /**
  * Participant class for two phase commit protocol
  */
-public class TwoPhaseCommitParticipant extends TwoPhaseCommit implements Watcher {
+public class TwoPhaseCommitParticipant extends TwoPhaseCommit implements Watcher, TransactionParticipant {
 
     private static final String PARTICIPANT_PREFIX = "/part_";
     private String orderRoot;
+    private boolean isDecided = false;
 
-    public TwoPhaseCommitParticipant(TwoPhaseCommitListener listener) {
-        super(listener);
+    public TwoPhaseCommitParticipant(TwoPhaseCommitListener listener, String zooKeeperUrl) {
+        super(listener, zooKeeperUrl);
     }
 
     /**
      * Vote for the transaction commit
      */
+    @Override
     public void voteCommit() {
         try {
             if (currentOrder != null) {
                 System.out.println("Voting to commit the transaction... " +
                         currentOrder);
 
-                client.write(currentOrder,
-                        TwoPhaseCommitCoordinator.VOTE_COMMIT.getBytes(StandardCharsets.UTF_8));
+                sendVote(TwoPhaseCommitCoordinator.VOTE_COMMIT);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -41,25 +44,53 @@ public class TwoPhaseCommitParticipant extends TwoPhaseCommit implements Watcher
     /**
      * Vote for the transaction abort
      */
+    @Override
     public void voteAbort() {
         try {
             if (currentOrder != null) {
                 System.out.println("Voting to abort the transaction... " +
                         currentOrder);
-                client.write(currentOrder,
-                        TwoPhaseCommitCoordinator.VOTE_ABORT.getBytes(StandardCharsets.UTF_8));
+                sendVote(TwoPhaseCommitCoordinator.VOTE_ABORT);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Write the vote without waiting for it, the coordinator watches the participant node
+     * @param vote - vote commit or vote abort
+     */
+    private void sendVote(String vote) {
+        String participantNode = currentOrder;
+        client.writeAsync(participantNode, vote.getBytes(StandardCharsets.UTF_8))
+                .exceptionally(e -> {
+                    System.out.println("Error while voting on " + participantNode + " : " + e.getMessage());
+                    return null;
+                });
+    }
+
+    /**
+     * End the zookeeper session, removing the participant node
+     */
+    @Override
+    public void close() {
+        try {
+            if (client != null) {
+                client.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Reset values
      */
     private void reset() {
         currentOrder = null;
         orderRoot = null;
+        isDecided = false;
     }
 
     /**
@@ -69,10 +100,25 @@ public class TwoPhaseCommitParticipant extends TwoPhaseCommit implements Watcher
      */
     protected void onStartTransaction(String orderId, String participantId) {
         try {
-            orderRoot = "/" + orderId;
+            orderRoot = TRANSACTION_ROOT + "/" + orderId;
             currentOrder = orderRoot + PARTICIPANT_PREFIX + participantId;
+            isDecided = false;
             client.createNode(currentOrder, CreateMode.EPHEMERAL, "".getBytes(StandardCharsets.UTF_8));
-            client.addWatch(orderRoot);
+
+            // Watch the root and read it in one call,
+            // a quorum coordinator may already have decided without waiting for this participant
+            byte[] data = client.getData(orderRoot, true);
+            String dataString = new String(data);
+            if (TwoPhaseCommitCoordinator.GLOBAL_COMMIT.equals(dataString)
+                    || TwoPhaseCommitCoordinator.GLOBAL_ABORT.equals(dataString)) {
+                System.out.println("Catching up with an already decided transaction... " + orderRoot);
+                onDecision(dataString);
+            }
+        } catch (KeeperException.NoNodeException e) {
+            // The coordinator already decided and cleaned up without this participant,
+            // the decision can no longer be read so the update is dropped right away
+            System.out.println("Transaction " + orderRoot + " is already over, treating it as aborted");
+            onDecision(TwoPhaseCommitCoordinator.GLOBAL_ABORT);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -85,10 +131,9 @@ public class TwoPhaseCommitParticipant extends TwoPhaseCommit implements Watcher
         try {
             byte[] data = client.getData(orderRoot, true);
             String dataString = new String(data);
-            if (TwoPhaseCommitCoordinator.GLOBAL_COMMIT.equals(dataString)) {
-                listener.onGlobalCommit();
-            } else if (TwoPhaseCommitCoordinator.GLOBAL_ABORT.equals(dataString)) {
-                listener.onGlobalAbort();
+            if (TwoPhaseCommitCoordinator.GLOBAL_COMMIT.equals(dataString)
+                    || TwoPhaseCommitCoordinator.GLOBAL_ABORT.equals(dataString)) {
+                onDecision(dataString);
             } else {
                 System.out.println("Unknown data change in the root : " + dataString);
             }
@@ -97,6 +142,22 @@ public class TwoPhaseCommitParticipant extends TwoPhaseCommit implements Watcher
         }
     }
 
+    /**
+     * Hands the global decision over to the listener, once per transaction
+     * @param decision - global commit or global abort
+     */
+    private synchronized void onDecision(String decision) {
+        if (isDecided) {
+            return;
+        }
+        isDecided = true;
+        if (TwoPhaseCommitCoordinator.GLOBAL_COMMIT.equals(decision)) {
+            listener.onGlobalCommit();
+        } else {
+            listener.onGlobalAbort();
+        }
+    }
+
     @Override
     public void process(WatchedEvent event) {
         Event.EventType type = event.getType();
@@ -1,5 +1,6 @@
 package cw2.communication.primaryBasedProtocol;
 
+import cw2.communication.coordination.CoordinationBackend;
 import cw2.communication.zooKeeper.Client;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
@@ -14,13 +15,12 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
-public class PrimaryBasedProtocol implements Watcher {
+public class PrimaryBasedProtocol implements Watcher, CoordinationBackend.GroupMember {
     private String childPath;
     private final Client client;
     private String lockPath;
     private boolean isAcquired = false;
     CountDownLatch startFlag = new CountDownLatch(1);
-    public static String zooKeeperUrl;
     public byte[] data;
 
     /**
@@ -28,11 +28,13 @@ public class PrimaryBasedProtocol implements Watcher {
      *
      * @param lockName zNode label to be created.
      * @param data IP address, port combination of the server.
+     * @param zooKeeperUrl Zookeeper server URL.
      * @throws IOException IO exception.
      * @throws KeeperException Zookeeper exception.
      * @throws InterruptedException Interrupt exception.
      */
-    public PrimaryBasedProtocol(String lockName, String data) throws IOException, KeeperException, InterruptedException {
+    public PrimaryBasedProtocol(String lockName, String data, String zooKeeperUrl) throws IOException,
+            KeeperException, InterruptedException {
         this.lockPath = "/" + lockName;
         this.data = data.getBytes(StandardCharsets.UTF_8);
         client = new Client(zooKeeperUrl, 5000, this);
@@ -43,15 +45,6 @@ public class PrimaryBasedProtocol implements Watcher {
         createChildNode();
     }
 
-    /**
-     * Sets zookeeper server URL.
-     *
-     * @param url Zookeeper server URL.
-     */
-    public static void setZooKeeperURL(String url) {
-        zooKeeperUrl = url;
-    }
-
     /**
      * Creates a root node.
      *
@@ -124,6 +117,7 @@ public class PrimaryBasedProtocol implements Watcher {
      * @throws KeeperException Zookeeper exception.
      * @throws InterruptedException Interrupt exception.
      */
+    @Override
     public byte[] getPrimaryServerData() throws KeeperException, InterruptedException {
         String smallestNode = findSmallestNodePath();
 
@@ -137,6 +131,7 @@ public class PrimaryBasedProtocol implements Watcher {
      * @throws KeeperException Zookeeper exception.
      * @throws InterruptedException Interrupt exception.
      */
+    @Override
     public List<byte[]> getAllServersData() throws KeeperException, InterruptedException {
         List<byte[]> result = new ArrayList<>();
         List<String> childrenNodePaths = client.getChildrenNodePaths(lockPath);
@@ -158,6 +153,7 @@ public class PrimaryBasedProtocol implements Watcher {
      * @throws KeeperException Zookeeper exception.
      * @throws InterruptedException Interrupt exception.
      */
+    @Override
     public boolean tryToBeThePrimary() throws KeeperException, InterruptedException {
         String smallestNode = findSmallestNodePath();
         if (smallestNode.equals(childPath)) {
@@ -167,4 +163,14 @@ public class PrimaryBasedProtocol implements Watcher {
         return isAcquired;
     }
 
+    /**
+     * Leaves the contest by ending the ZooKeeper session, which removes the child node.
+     *
+     * @throws InterruptedException Interrupt exception.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        client.close();
+    }
+
 }
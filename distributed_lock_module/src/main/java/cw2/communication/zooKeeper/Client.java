@@ -5,6 +5,7 @@ import org.apache.zookeeper.data.Stat;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Zookeeper client
@@ -64,6 +65,56 @@ public class Client {
         return zooKeeper.getChildren(root, false);
     }
 
+    /**
+     * Get immediate children for a given path
+     * @param root - given path
+     * @param shouldWatch - should the children of the node need to be watched
+     * @return list of labels of immediate children
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public List<String> getChildrenNodePaths(String root, boolean shouldWatch) throws KeeperException,
+            InterruptedException {
+        return zooKeeper.getChildren(root, shouldWatch);
+    }
+
+    /**
+     * Get immediate children for a given path without blocking
+     * @param root - given path
+     * @param shouldWatch - should the children of the node need to be watched
+     * @return future completed with the list of labels of immediate children
+     */
+    public CompletableFuture<List<String>> getChildrenNodePathsAsync(String root, boolean shouldWatch) {
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        zooKeeper.getChildren(root, shouldWatch, (rc, path, ctx, children) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                result.complete(children);
+            } else {
+                result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+            }
+        }, null);
+
+        return result;
+    }
+
+    /**
+     * Get the stat of a given node without blocking
+     * @param path - path of the node
+     * @return future completed with the stat of the node, or null if it does not exist
+     */
+    public CompletableFuture<Stat> existsAsync(String path) {
+        CompletableFuture<Stat> result = new CompletableFuture<>();
+        zooKeeper.exists(path, false, (rc, nodePath, ctx, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NONODE.intValue()) {
+                result.complete(stat);
+            } else {
+                result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), nodePath));
+            }
+        }, null);
+
+        return result;
+    }
+
     /**
      * Allows watching a given node
      * @param path - path of the node to be listened to
@@ -86,6 +137,44 @@ public class Client {
         return zooKeeper.getData(path, shouldWatch, null);
     }
 
+    /**
+     * Get data of a given node path without blocking
+     * @param path - path of the node
+     * @param shouldWatch - should the node need to be watched
+     * @return future completed with the data of the node
+     */
+    public CompletableFuture<byte[]> getDataAsync(String path, boolean shouldWatch) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        zooKeeper.getData(path, shouldWatch, (rc, nodePath, ctx, data, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                result.complete(data);
+            } else {
+                result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), nodePath));
+            }
+        }, null);
+
+        return result;
+    }
+
+    /**
+     * Write data to a node path without blocking
+     * @param path - path to be written the data
+     * @param data - data to be written
+     * @return future completed once the data is written
+     */
+    public CompletableFuture<Void> writeAsync(String path, byte[] data) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        zooKeeper.setData(path, data, -1, (rc, nodePath, ctx, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), nodePath));
+            }
+        }, null);
+
+        return result;
+    }
+
     /**
      * Write data to a node path
      * @param path - path to be written the data
@@ -97,6 +186,29 @@ public class Client {
         zooKeeper.setData(path, data, -1);
     }
 
+    /**
+     * Write data to a node path only if the node is still at the expected version
+     * @param path - path to be written the data
+     * @param data - data to be written
+     * @param version - expected version of the node
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void write(String path, byte[] data, int version) throws KeeperException, InterruptedException {
+        zooKeeper.setData(path, data, version);
+    }
+
+    /**
+     * Run several operations as one atomic transaction, in a single round trip
+     * @param ops - operations to be run
+     * @return results of the operations
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public List<OpResult> multi(List<Op> ops) throws KeeperException, InterruptedException {
+        return zooKeeper.multi(ops);
+    }
+
     /**
      * Delete all the child paths recursively; forcefully
      * @param path
@@ -107,4 +219,11 @@ public class Client {
         ZKUtil.deleteRecursive(zooKeeper, path);
     }
 
+    /**
+     * Close the session, removing its ephemeral nodes
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        zooKeeper.close();
+    }
 }
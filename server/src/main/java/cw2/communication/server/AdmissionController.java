@@ -0,0 +1,80 @@
+package cw2.communication.server;
+
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds the number of pending write transactions of a service on the primary server.
+ * Requests over the limit are rejected right away with RESOURCE_EXHAUSTED and a retry-after hint,
+ * instead of piling up ZooKeeper nodes and sessions.
+ */
+public class AdmissionController {
+    public static final Metadata.Key<String> RETRY_AFTER_KEY =
+            Metadata.Key.of("retry-after-ms", Metadata.ASCII_STRING_MARSHALLER);
+
+    private final String serviceName;
+    private final Semaphore permits;
+    private final long retryAfterMillis;
+
+    /**
+     * AdmissionController Constructor.
+     *
+     * @param serviceName      Name of the guarded service.
+     * @param limit            Maximum number of pending transactions, 0 for no limit.
+     * @param retryAfterMillis Delay suggested to rejected callers.
+     */
+    public AdmissionController(String serviceName, int limit, long retryAfterMillis) {
+        this.serviceName = serviceName;
+        this.permits = (limit > 0) ? new Semaphore(limit) : null;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Creates the controller of a service from the admission.{serviceName} and
+     * admission.retryAfterMs system properties.
+     *
+     * @param serviceName Name of the guarded service.
+     * @return admission controller.
+     */
+    public static AdmissionController forService(String serviceName) {
+        return new AdmissionController(serviceName,
+                Integer.getInteger("admission." + serviceName, 1000),
+                Long.getLong("admission.retryAfterMs", 100));
+    }
+
+    /**
+     * Takes a slot for a new transaction if one is free.
+     *
+     * @return whether the transaction is admitted.
+     */
+    public boolean tryAdmit() {
+        return permits == null || permits.tryAcquire();
+    }
+
+    /**
+     * Frees the slot of a finished transaction.
+     */
+    public void release() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * Builds the error returned to a rejected caller.
+     *
+     * @return RESOURCE_EXHAUSTED error carrying the retry-after hint.
+     */
+    public StatusRuntimeException rejection() {
+        System.out.println("Too many pending " + serviceName + " transactions, rejecting the request");
+        Metadata trailers = new Metadata();
+        trailers.put(RETRY_AFTER_KEY, String.valueOf(retryAfterMillis));
+
+        return Status.RESOURCE_EXHAUSTED
+                .withDescription("Too many pending " + serviceName + " requests, retry later")
+                .asRuntimeException(trailers);
+    }
+}
@@ -0,0 +1,142 @@
+package cw2.communication.server;
+
+import cw2.communication.grpc.generated.PrepareRequest;
+import org.apache.zookeeper.KeeperException;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the carts held in memory bounded. Carts nobody added to for the TTL expire, and once the server
+ * holds more carts than the cap the least recently added to ones are evicted. Only the primary server picks
+ * the carts; the carts of a sweep are dropped together through one replicated transaction holding the items
+ * each of them had, so every server drops the same carts and an item added in the meantime stays. That
+ * transaction is a state delta, so the server refuses to start with expiry set on the zookeeper protocol.
+ * Reading a cart or checking it out does not count as adding to it.
+ */
+class CartExpiry {
+    // Leaves room in a replication batch for the prepare call around the expired carts and other entries
+    private static final int DELTA_BYTES = ReplicationSender.MAX_BATCH_BYTES / 2;
+
+    private final InventoryServer server;
+    private final long ttlMillis;
+    private final int maxCarts;
+    private final long sweepIntervalMillis;
+    private final ScheduledExecutorService sweepExecutor;
+    // Set while a sweep triggered by the cap is waiting to run
+    private final AtomicBoolean isSweepQueued = new AtomicBoolean(false);
+
+    /**
+     * CartExpiry Constructor.
+     *
+     * @param server              server object.
+     * @param ttlMillis           Time after which an untouched cart expires, 0 for never.
+     * @param maxCarts            Number of carts kept at most, 0 for no cap.
+     * @param sweepIntervalMillis Delay between two sweeps.
+     */
+    CartExpiry(InventoryServer server, long ttlMillis, int maxCarts, long sweepIntervalMillis) {
+        this.server = server;
+        this.ttlMillis = ttlMillis;
+        this.maxCarts = maxCarts;
+        this.sweepIntervalMillis = sweepIntervalMillis;
+        this.sweepExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cart-expiry-" + server.getPort());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts sweeping the carts, unless neither a TTL nor a cap is set.
+     */
+    void start() {
+        if (ttlMillis > 0 || maxCarts > 0) {
+            sweepExecutor.scheduleWithFixedDelay(this::sweep, sweepIntervalMillis, sweepIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sweeps right away once a cart added takes the server past the cap.
+     */
+    void onCartAdded() {
+        if (maxCarts > 0 && server.isPrimary() && server.getCartManagerService().getCartCount() > maxCarts
+                && isSweepQueued.compareAndSet(false, true)) {
+            sweepExecutor.execute(this::sweep);
+        }
+    }
+
+    /**
+     * Stops sweeping.
+     */
+    void close() {
+        sweepExecutor.shutdownNow();
+    }
+
+    /**
+     * Drops the expired carts and the carts over the cap, on the primary server.
+     */
+    private void sweep() {
+        isSweepQueued.set(false);
+        if (!server.isPrimary()) {
+            // Secondary servers drop carts on the primary server's instruction only
+            return;
+        }
+
+        try {
+            List<String> userIds = server.getCartManagerService()
+                    .findExpiredCarts(System.currentTimeMillis(), ttlMillis, maxCarts);
+            if (!userIds.isEmpty()) {
+                System.out.println("Expiring " + userIds.size() + " carts...");
+            }
+            Map<String, Map<String, Double>> expiredCarts = new LinkedHashMap<>();
+            int deltaBytes = 0;
+            for (String userId : userIds) {
+                Map<String, Double> userCart = server.getUserCart(userId);
+                if (userCart == null) {
+                    continue;
+                }
+                expiredCarts.put(userId, userCart);
+                // User id and item ids with their lengths, item count and quantities, as written in the state delta
+                deltaBytes += userId.length() + 6;
+                for (String itemId : userCart.keySet()) {
+                    deltaBytes += itemId.length() + 10;
+                }
+                if (deltaBytes >= DELTA_BYTES) {
+                    expire(expiredCarts);
+                    expiredCarts.clear();
+                    deltaBytes = 0;
+                }
+            }
+            expire(expiredCarts);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.out.println("Error while expiring carts: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Drops carts in one replicated transaction.
+     *
+     * @param expiredCarts user id -> items in the user's cart.
+     * @throws KeeperException      Exception thrown by Zookeeper.
+     * @throws InterruptedException when interrupted while waiting for votes.
+     */
+    private void expire(Map<String, Map<String, Double>> expiredCarts) throws KeeperException, InterruptedException {
+        if (expiredCarts.isEmpty()) {
+            return;
+        }
+
+        StateDelta delta = StateDelta.ofCartExpiry(expiredCarts);
+        ReplicationCoordinator.PreparedTransaction transaction = server.getReplicationCoordinator()
+                .prepare(PrepareRequest.newBuilder().setDelta(delta.toByteString()));
+        server.getReplicationCoordinator().decide(transaction, true, new DeltaCommit(server, delta));
+    }
+}
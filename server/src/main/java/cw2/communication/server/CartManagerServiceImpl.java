@@ -2,56 +2,65 @@ package cw2.communication.server;
 
 import com.google.protobuf.Empty;
 import cw2.communication.grpc.generated.*;
-import cw2.communication.distributedTxProtocol.coordinator.TwoPhaseCommitCoordinator;
-import cw2.communication.distributedTxProtocol.listener.TwoPhaseCommitListener;
-import cw2.communication.distributedTxProtocol.participant.TwoPhaseCommitParticipant;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
-import org.apache.zookeeper.KeeperException;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.Future;
 
 /**
- * Implement cart manager grpc service
+ * Implement cart manager grpc service.
+ * Carts are split into partitions by user id, each updated by its own single writer thread.
  */
-public class CartManagerServiceImpl extends CartManagerServiceGrpc.CartManagerServiceImplBase
-        implements TwoPhaseCommitListener {
+public class CartManagerServiceImpl extends CartManagerServiceGrpc.CartManagerServiceImplBase {
 
     private final InventoryServer server;
-    private CartRequest tempTransaction;
-    private boolean isOrderFromClient = false;
-    private StreamObserver<CartResponse> responseObserver;
+    private final CartPartition[] partitions;
+    private final AdmissionController admissionController = AdmissionController.forService("addToCart");
 
     CartManagerServiceGrpc.CartManagerServiceBlockingStub clientStub = null;
 
     /**
      * CartManagerServiceImpl Constructor.
      *
-     * @param server server object.
+     * @param server         server object.
+     * @param partitionCount number of cart partitions.
      */
-    public CartManagerServiceImpl(InventoryServer server) {
+    public CartManagerServiceImpl(InventoryServer server, int partitionCount) {
         this.server = server;
+        this.partitions = new CartPartition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new CartPartition(server, i);
+        }
         String[] primaryData = this.server.getCurrentPrimaryData();
         if (primaryData != null && primaryData.length > 0 && !this.server.isPrimary()) {
-            ManagedChannel channel = ManagedChannelBuilder.forAddress(primaryData[0],
-                    Integer.parseInt(primaryData[1])).usePlaintext().build();
+            ManagedChannel channel = GrpcTransport.getChannel(primaryData[0], Integer.parseInt(primaryData[1]));
             clientStub = CartManagerServiceGrpc.newBlockingStub(channel);
         }
     }
 
+    /**
+     * Finds the partition that owns the cart of a user.
+     *
+     * @param userId user id.
+     * @return cart partition.
+     */
+    private CartPartition getPartition(String userId) {
+        return partitions[Math.floorMod(userId.hashCode(), partitions.length)];
+    }
+
     /**
      * Sends out the data to the primary.
      * This gets used by the secondary servers in forwarding whatever the data they received
      * from clients into the primary server.
      *
      * @param request The cart request.
+     * @return response of the primary server.
      */
-    private void sendDataToPrimary(CartRequest request) {
+    private CartResponse sendDataToPrimary(CartRequest request) {
         System.out.println("Sending incoming data to primary server...");
         String[] currentLeaderData = server.getCurrentPrimaryData();
         String IPAddress = currentLeaderData[0];
@@ -63,9 +72,10 @@ public class CartManagerServiceImpl extends CartManagerServiceGrpc.CartManagerSe
                 .setQuantity(request.getQuantity())
                 .setIsSentByPrimary(false)
                 .setIsSentBySecondary(true)
+                .setRequestId(request.getRequestId())
                 .build();
 
-        sendDataToServer(newRequest, IPAddress, port);
+        return sendDataToServer(newRequest, IPAddress, port);
     }
 
     /**
@@ -74,31 +84,13 @@ public class CartManagerServiceImpl extends CartManagerServiceGrpc.CartManagerSe
      * @param request   Data needs to be sent.
      * @param ipAddress Server IP address.
      * @param port      The port where the service is running.
+     * @return response of the server.
      */
-    private void sendDataToServer(CartRequest request, String ipAddress, int port) {
-        ManagedChannel channel = ManagedChannelBuilder.forAddress(ipAddress, port).usePlaintext().build();
+    private CartResponse sendDataToServer(CartRequest request, String ipAddress, int port) {
+        ManagedChannel channel = GrpcTransport.getChannel(ipAddress, port);
         clientStub = CartManagerServiceGrpc.newBlockingStub(channel);
 
-        CartResponse response = clientStub.addToCart(request);
-    }
-
-    /**
-     * This method sends order data to all the secondary servers.
-     * This method is used by the primary server to send the data it received to all the secondary servers.
-     *
-     * @param request The order data to be sent.
-     * @throws KeeperException      Exception thrown by Zookeeper.
-     * @throws InterruptedException Exception thrown when secondary server(s) data is retrieved.
-     */
-    private void sendDataToSecondaryServers(CartRequest request) throws KeeperException, InterruptedException {
-        System.out.println("Sending data to the secondary servers...");
-        List<String[]> secondaryServers = server.getAllServersData();
-
-        for (String[] secondaryServer : secondaryServers) {
-            String ipAddress = secondaryServer[0];
-            int port = Integer.parseInt(secondaryServer[1]);
-            sendDataToServer(request, ipAddress, port);
-        }
+        return clientStub.addToCart(request);
     }
 
     /**
@@ -109,80 +101,65 @@ public class CartManagerServiceImpl extends CartManagerServiceGrpc.CartManagerSe
      */
     @Override
     public void addToCart(CartRequest request, StreamObserver<CartResponse> responseObserver) {
+        String previousResponse = server.getDeduplicationCache().get(request.getRequestId());
+        if (!request.getIsSentByPrimary() && previousResponse != null) {
+            // A retry of an already committed request, answer with the original outcome
+            System.out.println("Request " + request.getRequestId() + " was already processed");
+            responseObserver.onNext(CartResponse.newBuilder().setResponse(previousResponse).build());
+            responseObserver.onCompleted();
+            return;
+        }
+
         if (server.isPrimary()) {
-            // If the server is the primary server.
+            // Coordinated here as the primary server, if there is room for another pending transaction.
+            if (!admissionController.tryAdmit()) {
+                responseObserver.onError(admissionController.rejection());
+                return;
+            }
+            getPartition(request.getUserId()).submit(request, responseObserver, admissionController::release);
+        } else if (request.getIsSentByPrimary()) {
+            // Voted on as a secondary server.
+            getPartition(request.getUserId()).submit(request, responseObserver, () -> { });
+        } else {
+            // If the data is sent by a client, relay the primary server's outcome.
             try {
-                System.out.println("Updating trade order as the primary server...");
-                CartRequest newRequest = CartRequest
-                        .newBuilder()
-                        .setId(request.getId())
-                        .setUserId(request.getUserId())
-                        .setQuantity(request.getQuantity())
-                        .setIsSentByPrimary(true)
-                        .setIsSentBySecondary(false)
-                        .build();
-
-                startTwoPhaseCommit(request);
-                sendDataToSecondaryServers(newRequest);
-
-                if (!request.getIsSentBySecondary()) {
-                    this.responseObserver = responseObserver;
-                    this.isOrderFromClient = true;
-                }
-
-                // Start two-phase commit
-                if (request.getQuantity() > 0) {
-                    ((TwoPhaseCommitCoordinator) server.getCartManagerTransaction()).perform();
-                } else {
-                    ((TwoPhaseCommitCoordinator) server.getCartManagerTransaction()).sendGlobalAbort();
-                }
+                CartResponse response = sendDataToPrimary(request);
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+            } catch (StatusRuntimeException e) {
+                // Pass the primary server's rejection, along with its retry hint, back to the client
+                System.out.println("Error while forwarding cart update: " + e.getMessage());
 
-                if (request.getIsSentBySecondary()) {
-                    responseObserver.onNext(CartResponse.newBuilder().build());
-                    responseObserver.onCompleted();
-                }
+                responseObserver.onError(e);
             } catch (Exception e) {
-                System.out.println("Error while updating cart: " + e.getMessage());
-                e.printStackTrace();
+                System.out.println("Error while forwarding cart update: " + e.getMessage());
 
                 responseObserver.onError(Status.INTERNAL.withDescription("Error occurred, updating cart").asRuntimeException());
             }
-        } else {
-            // If the server is a secondary server.
-            if (request.getIsSentByPrimary()) {
-                // If the data is sent by the primary server.
-                System.out.println("Updating request on the secondary server, based " +
-                        "on the primary server instruction...");
-
-                startTwoPhaseCommit(request);
-
-                // Start two-phase commit
-                if (request.getQuantity() > 0) {
-                    ((TwoPhaseCommitParticipant) server.getCartManagerTransaction()).voteCommit();
-                } else {
-                    ((TwoPhaseCommitParticipant) server.getCartManagerTransaction()).voteAbort();
-                }
-
-                responseObserver.onNext(CartResponse.newBuilder().build());
-                responseObserver.onCompleted();
-            } else {
-                // If the data is sent by a client.
-                this.isOrderFromClient = true;
-                this.responseObserver = responseObserver;
-                sendDataToPrimary(request);
-            }
         }
     }
 
+    /**
+     * Prepares a cart update sent by the primary server over the replication service.
+     *
+     * @param transactionId    transaction id.
+     * @param delta            The cart entry to add.
+     * @param responseObserver The stream observer that uses to return the vote.
+     */
+    void prepare(String transactionId, StateDelta delta, StreamObserver<PrepareResponse> responseObserver) {
+        getPartition(delta.getUserId()).prepare(transactionId, delta, responseObserver);
+    }
+
     @Override
     public void getItems(Empty request, StreamObserver<GetItemsResponse> responseObserver) {
-        Map<String, Double> items = server.getInventoryProducts();
+        // Scanned without locks, commits carry on publishing newer snapshots meanwhile
+        Map<String, StockEntry> items = server.getCatalogSnapshot().getItems();
 
         List<ItemRequest> inventoryList = new ArrayList<>();
-        for (Map.Entry<String, Double> entry : items.entrySet()) {
+        for (Map.Entry<String, StockEntry> entry : items.entrySet()) {
             ItemRequest inventoryProduct = ItemRequest.newBuilder()
                     .setId(entry.getKey())
-                    .setQuantity(entry.getValue())
+                    .setQuantity(entry.getValue().getQuantity())
                     .build();
             inventoryList.add(inventoryProduct);
         }
@@ -195,79 +172,77 @@ public class CartManagerServiceImpl extends CartManagerServiceGrpc.CartManagerSe
         responseObserver.onCompleted();
     }
 
+    @Override
+    public void queryItems(CatalogQuery request, StreamObserver<GetItemsResponse> responseObserver) {
+        if (request.getLimit() < 0) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("The limit cannot be negative")
+                    .asRuntimeException());
+            return;
+        }
 
-    /**
-     * Writes cart request to the memory store.
-     *
-     * @param request The order request.
-     */
-    private void writeTransaction(CartRequest request) {
-        server.setCartItemQuantity(request.getUserId(), request.getId(), request.getQuantity());
+        List<QuantityIndex.Entry> entries = server.getQuantityIndex().query(
+                request.hasMinQuantity() ? request.getMinQuantity().getValue() : null,
+                request.hasMaxQuantity() ? request.getMaxQuantity().getValue() : null,
+                request.getLimit());
+
+        GetItemsResponse.Builder response = GetItemsResponse.newBuilder();
+        for (QuantityIndex.Entry entry : entries) {
+            response.addItems(ItemRequest.newBuilder()
+                    .setId(entry.getItemId())
+                    .setQuantity(entry.getQuantity()));
+        }
+
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
     }
 
     /**
-     * Commits an order.
+     * Get user cart based on the user id
+     * @param userId - user id
+     * @return user cart
      */
-    private void commitTransaction() {
-        System.out.println("Committing transaction...");
-        if (tempTransaction != null) {
-            System.out.println("Writing transaction...");
-            writeTransaction(tempTransaction);
-            if (!(tempTransaction.getIsSentBySecondary() || (tempTransaction.getIsSentByPrimary() && !this.isOrderFromClient))) {
-
-                isOrderFromClient = false;
-
-                if (this.responseObserver != null) {
-                    System.out.println("Return response to the client...");
-                    CartResponse responseToClient = CartResponse.newBuilder().setResponse("Cart updated successfully!").build();
-                    this.responseObserver.onNext(responseToClient);
-                    this.responseObserver.onCompleted();
-                }
-            }
-            tempTransaction = null;
-
-        }
+    public Map<String, Double> getUserCart(String userId) {
+        return getPartition(userId).getUserCart(userId);
     }
 
     /**
-     * Called on the global commit message.
+     * Take items out of a user's cart, in order with the cart updates of its partition
+     * @param userId - user id
+     * @param items - item id -> quantity to take out
+     * @return completes once the items are taken out
      */
-    @Override
-    public void onGlobalCommit() {
-        commitTransaction();
+    public Future<?> takeOutOfCart(String userId, Map<String, Double> items) {
+        return getPartition(userId).takeOutOfCart(userId, items);
     }
 
     /**
-     * Called on the global abort message.
+     * Get the number of carts held by the server
+     * @return cart count
      */
-    @Override
-    public void onGlobalAbort() {
-        String response = "Transaction Aborted by the Coordinator";
-        System.out.println(response);
-        if (!(tempTransaction.getIsSentBySecondary()
-                || (tempTransaction.getIsSentByPrimary() && !this.isOrderFromClient))) {
-            isOrderFromClient = false;
-            if (this.responseObserver != null) {
-                CartResponse responseToClient = CartResponse.newBuilder().setResponse(response).build();
-                this.responseObserver.onNext(responseToClient);
-                this.responseObserver.onCompleted();
-            }
+    public int getCartCount() {
+        int cartCount = 0;
+        for (CartPartition partition : partitions) {
+            cartCount += partition.getCartCount();
         }
-        tempTransaction = null;
+
+        return cartCount;
     }
 
     /**
-     * Starts the two-phase commit.
-     *
-     * @param request Request.
+     * Find the carts to expire, the cap being shared evenly by the partitions
+     * @param now - current time in milliseconds
+     * @param ttlMillis - time after which an untouched cart expires, 0 for never
+     * @param maxCarts - number of carts kept at most, 0 for no cap
+     * @return ids of the users whose carts expire
      */
-    private void startTwoPhaseCommit(CartRequest request) {
-        try {
-            server.getCartManagerTransaction().start(request.getUserId(), String.valueOf(UUID.randomUUID()));
-            tempTransaction = request;
-        } catch (IOException e) {
-            e.printStackTrace();
+    public List<String> findExpiredCarts(long now, long ttlMillis, int maxCarts) {
+        int partitionMaxCarts = (maxCarts > 0) ? Math.max(1, (maxCarts + partitions.length - 1) / partitions.length) : 0;
+        List<String> userIds = new ArrayList<>();
+        for (CartPartition partition : partitions) {
+            userIds.addAll(partition.findExpiredCarts(now, ttlMillis, partitionMaxCarts));
         }
-    }
 
+        return userIds;
+    }
 }
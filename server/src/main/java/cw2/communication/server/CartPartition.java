@@ -0,0 +1,552 @@
+package cw2.communication.server;
+
+import cw2.communication.coordination.TransactionCoordinator;
+import cw2.communication.coordination.TransactionParticipant;
+import cw2.communication.distributedTxProtocol.TwoPhaseCommit;
+import cw2.communication.distributedTxProtocol.listener.TwoPhaseCommitListener;
+import cw2.communication.grpc.generated.CartManagerServiceGrpc;
+import cw2.communication.grpc.generated.CartRequest;
+import cw2.communication.grpc.generated.CartResponse;
+import cw2.communication.grpc.generated.PrepareRequest;
+import cw2.communication.grpc.generated.PrepareResponse;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A slice of the shopping carts, updated through a two stage pipeline.
+ * The prepare thread starts transactions and collects the local vote, the decision thread
+ * waits for the global decisions and applies them in the order the transactions were prepared.
+ * While one transaction waits for its decision the next one is already being prepared;
+ * a retried request is only prepared once the transaction of its previous attempt is decided.
+ */
+class CartPartition {
+    private static final String COMMIT_RESPONSE = "Cart updated successfully!";
+    private static final String ABORT_RESPONSE = "Transaction Aborted by the Coordinator";
+
+    private final InventoryServer server;
+    private final ExecutorService prepareExecutor;
+    private final ExecutorService decisionExecutor;
+
+    // This keeps track of user_id -> {item_id -> qty} pairs.
+    // Only the decision thread changes carts, adding to them and taking out what orders and expiries drop;
+    // each change replaces the user's cart in one atomic compute, carts are never mutated, so other threads
+    // can read them.
+    private final Map<String, Map<String, Double>> shoppingCart = new ConcurrentHashMap<>();
+
+    // This keeps track of {user_id -> time the cart was last added to} pairs, least recently added to first
+    private final LinkedHashMap<String, Long> cartAddTimes = new LinkedHashMap<>();
+
+    // Undecided transactions of the primary server, keyed by request id
+    private final Map<String, CartTransaction> pendingTransactions = new ConcurrentHashMap<>();
+
+    /**
+     * CartPartition Constructor.
+     *
+     * @param server    server object.
+     * @param partition partition number.
+     */
+    CartPartition(InventoryServer server, int partition) {
+        this.server = server;
+        this.prepareExecutor = newStageExecutor("cart-partition-" + partition);
+        this.decisionExecutor = newStageExecutor("cart-partition-" + partition + "-decision");
+    }
+
+    /**
+     * Creates the single thread executor of a pipeline stage.
+     *
+     * @param threadName name of the stage thread.
+     * @return executor.
+     */
+    private static ExecutorService newStageExecutor(String threadName) {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a cart request on the partition pipeline.
+     *
+     * @param request          The cart request.
+     * @param responseObserver The stream observer that uses to return data.
+     * @param onProcessed      Runs once the request is decided.
+     */
+    void submit(CartRequest request, StreamObserver<CartResponse> responseObserver, Runnable onProcessed) {
+        prepareExecutor.execute(() -> {
+            CartTransaction transaction = null;
+            try {
+                if (server.isPrimary()) {
+                    transaction = prepareAsPrimary(request, responseObserver);
+                } else {
+                    transaction = prepareAsSecondary(request);
+                    responseObserver.onNext(CartResponse.newBuilder().build());
+                    responseObserver.onCompleted();
+                }
+            } finally {
+                if (transaction == null) {
+                    onProcessed.run();
+                }
+            }
+            if (transaction != null) {
+                queueDecision(transaction, onProcessed);
+            }
+        });
+    }
+
+    /**
+     * Queues a cart entry prepared over the grpc replication service on the partition pipeline.
+     * The primary server already checked it, so it is voted for as it is and only held again
+     * if the primary server held it.
+     *
+     * @param transactionId    transaction id given by the primary server.
+     * @param delta            The cart entry to add.
+     * @param responseObserver The stream observer that uses to return the vote.
+     */
+    void prepare(String transactionId, StateDelta delta, StreamObserver<PrepareResponse> responseObserver) {
+        prepareExecutor.execute(() -> {
+            CartRequest request = CartRequest.newBuilder()
+                    .setId(delta.getCartItemId())
+                    .setUserId(delta.getUserId())
+                    .setQuantity(delta.getCartQuantity())
+                    .setIsSentByPrimary(true)
+                    .setRequestId(delta.getRequestId())
+                    .setTransactionId(transactionId)
+                    .build();
+            CartTransaction transaction = new CartTransaction(request, null, false);
+            if (delta.isHeld() && server.isReservationEnabled()) {
+                server.holdStock(request.getUserId(), request.getId(), request.getQuantity());
+                transaction.isHolding = true;
+            }
+
+            server.getReplicationService().awaitDecision(transactionId, transaction);
+            responseObserver.onNext(PrepareResponse.newBuilder().setVoteCommit(true).build());
+            responseObserver.onCompleted();
+            queueDecision(transaction, () -> { });
+        });
+    }
+
+    /**
+     * Hands a prepared transaction over to the decision thread.
+     *
+     * @param transaction the prepared transaction.
+     * @param onProcessed Runs once the transaction is decided.
+     */
+    private void queueDecision(CartTransaction transaction, Runnable onProcessed) {
+        decisionExecutor.execute(() -> {
+            try {
+                transaction.decide();
+            } finally {
+                pendingTransactions.remove(transaction.request.getRequestId(), transaction);
+                transaction.isFinished.countDown();
+                onProcessed.run();
+            }
+        });
+    }
+
+    /**
+     * Get user cart based on the user id
+     * @param userId - user id
+     * @return user cart
+     */
+    Map<String, Double> getUserCart(String userId) {
+        return shoppingCart.get(userId);
+    }
+
+    /**
+     * Gets the number of carts in the partition.
+     *
+     * @return cart count.
+     */
+    int getCartCount() {
+        return shoppingCart.size();
+    }
+
+    /**
+     * Takes items out of a user's cart, once they are bought or the cart expired. The change is queued
+     * on the decision thread behind the cart updates prepared before it, so it applies after the additions
+     * the primary server read the items from, on every server alike. Quantities are subtracted rather than
+     * the cart dropped, so items added after that read stay.
+     *
+     * @param userId user id.
+     * @param items  item id -> quantity to take out.
+     * @return completes once the items are taken out.
+     */
+    Future<?> takeOutOfCart(String userId, Map<String, Double> items) {
+        return decisionExecutor.submit(() -> removeFromCart(userId, items));
+    }
+
+    /**
+     * Subtracts quantities from a user's cart, dropping the items and the cart that run out;
+     * called on the decision thread.
+     *
+     * @param userId user id.
+     * @param items  item id -> quantity to take out.
+     */
+    private void removeFromCart(String userId, Map<String, Double> items) {
+        shoppingCart.computeIfPresent(userId, (key, userRecord) -> {
+            Map<String, Double> newRecord = new HashMap<>(userRecord);
+            for (Map.Entry<String, Double> item : items.entrySet()) {
+                Double quantity = newRecord.get(item.getKey());
+                if (quantity != null && quantity - item.getValue() > 0) {
+                    newRecord.put(item.getKey(), quantity - item.getValue());
+                } else {
+                    newRecord.remove(item.getKey());
+                }
+            }
+            if (!newRecord.isEmpty()) {
+                return Collections.unmodifiableMap(newRecord);
+            }
+            synchronized (cartAddTimes) {
+                cartAddTimes.remove(userId);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Finds the carts to expire: those not added to for the TTL, then the least recently added to
+     * ones while the partition holds more carts than its share of the cap.
+     *
+     * @param now         current time in milliseconds.
+     * @param ttlMillis   time after which an untouched cart expires, 0 for never.
+     * @param maxCarts    number of carts the partition keeps at most, 0 for no cap.
+     * @return ids of the users whose carts expire.
+     */
+    List<String> findExpiredCarts(long now, long ttlMillis, int maxCarts) {
+        List<String> userIds = new ArrayList<>();
+        synchronized (cartAddTimes) {
+            int excess = (maxCarts > 0) ? cartAddTimes.size() - maxCarts : 0;
+            for (Map.Entry<String, Long> entry : cartAddTimes.entrySet()) {
+                boolean isExpired = ttlMillis > 0 && now - entry.getValue() >= ttlMillis;
+                if (!isExpired && userIds.size() >= excess) {
+                    break;
+                }
+                userIds.add(entry.getKey());
+            }
+        }
+
+        return userIds;
+    }
+
+    /**
+     * Starts coordinating the request with the secondary servers.
+     *
+     * @param request          The cart request.
+     * @param responseObserver The stream observer that uses to return data.
+     * @return the prepared transaction, null if the request was answered right away.
+     */
+    private CartTransaction prepareAsPrimary(CartRequest request, StreamObserver<CartResponse> responseObserver) {
+        CartTransaction transaction = null;
+        try {
+            // A retry waits for the transaction of its first attempt, so it finds the outcome below.
+            // Updates of the same user add up, so they are otherwise prepared side by side
+            awaitPendingTransaction(request.getRequestId());
+
+            String previousResponse = server.getDeduplicationCache().get(request.getRequestId());
+            if (!request.getIsSentByPrimary() && previousResponse != null) {
+                // A retry of an already committed request, answer with the original outcome
+                System.out.println("Request " + request.getRequestId() + " was already processed");
+                responseObserver.onNext(CartResponse.newBuilder().setResponse(previousResponse).build());
+                responseObserver.onCompleted();
+                return null;
+            }
+
+            System.out.println("Updating cart as the primary server...");
+            CartRequest newRequest = CartRequest
+                    .newBuilder()
+                    .setId(request.getId())
+                    .setUserId(request.getUserId())
+                    .setQuantity(request.getQuantity())
+                    .setIsSentByPrimary(true)
+                    .setIsSentBySecondary(false)
+                    .setRequestId(request.getRequestId())
+                    .setTransactionId(String.valueOf(UUID.randomUUID()))
+                    .build();
+
+            transaction = new CartTransaction(newRequest, responseObserver, true);
+            transaction.start();
+            if (!request.getRequestId().isEmpty()) {
+                pendingTransactions.put(request.getRequestId(), transaction);
+            }
+            if (server.isDirectReplication()) {
+                transaction.isAccepted = isAcceptable(transaction);
+                if (transaction.isAccepted) {
+                    // Prepare over grpc with the entry to add, the secondary servers apply it as it is
+                    StateDelta delta = StateDelta.ofCart(newRequest.getRequestId(), COMMIT_RESPONSE,
+                            newRequest.getUserId(), newRequest.getId(), newRequest.getQuantity(), transaction.isHolding);
+                    transaction.prepared = server.getReplicationCoordinator()
+                            .prepare(PrepareRequest.newBuilder().setDelta(delta.toByteString()));
+                }
+            } else {
+                transaction.participantCount = SecondaryFanOut.<CartRequest, CartResponse>send(server, newRequest,
+                        (channel, secondaryRequest, observer) ->
+                                CartManagerServiceGrpc.newStub(channel).addToCart(secondaryRequest, observer));
+                transaction.isAccepted = isAcceptable(transaction);
+            }
+
+            return transaction;
+        } catch (Exception e) {
+            System.out.println("Error while updating cart: " + e.getMessage());
+            e.printStackTrace();
+            if (transaction != null) {
+                transaction.releaseHold();
+                pendingTransactions.remove(request.getRequestId(), transaction);
+                transaction.isFinished.countDown();
+            }
+
+            responseObserver.onError(Status.INTERNAL.withDescription("Error occurred, updating cart").asRuntimeException());
+            return null;
+        }
+    }
+
+    /**
+     * Votes through ZooKeeper on a request sent by the primary server. The decision is applied later,
+     * in the same order as the primary server prepared its transactions.
+     *
+     * @param request The cart request.
+     * @return the prepared transaction.
+     */
+    private CartTransaction prepareAsSecondary(CartRequest request) {
+        System.out.println("Updating request on the secondary server, based " +
+                "on the primary server instruction...");
+
+        CartTransaction transaction = new CartTransaction(request, null, false);
+        transaction.start();
+
+        // Start two-phase commit
+        if (isAcceptable(transaction)) {
+            transaction.participant.voteCommit();
+        } else {
+            transaction.participant.voteAbort();
+        }
+
+        return transaction;
+    }
+
+    /**
+     * Waits until the previous transaction of a request is decided.
+     *
+     * @param requestId request id.
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    private void awaitPendingTransaction(String requestId) throws InterruptedException {
+        if (requestId.isEmpty()) {
+            return;
+        }
+        CartTransaction pendingTransaction = pendingTransactions.get(requestId);
+        if (pendingTransaction != null) {
+            pendingTransaction.isFinished.await();
+        }
+    }
+
+    /**
+     * Decides the vote on a cart request. In the reservation mode the requested
+     * quantity is held right away, and given back if the transaction does not commit.
+     *
+     * @param transaction The cart transaction.
+     * @return whether to vote commit.
+     */
+    private boolean isAcceptable(CartTransaction transaction) {
+        CartRequest request = transaction.request;
+        if (request.getQuantity() <= 0) {
+            return false;
+        }
+        if (server.isReservationEnabled()) {
+            transaction.isHolding = server.tryReserveStock(request.getUserId(), request.getId(), request.getQuantity());
+            if (!transaction.isHolding) {
+                System.out.println("Not enough stock of " + request.getId() + " to hold for " + request.getUserId());
+            }
+            return transaction.isHolding;
+        }
+
+        return true;
+    }
+
+    /**
+     * Set cart item quantity mapping for a particular user
+     * @param userId - user who trying to add to the cart
+     * @param itemId - item id
+     * @param quantity - quantity of the provided item
+     */
+    private void setCartItemQuantity(String userId, String itemId, double quantity) {
+        shoppingCart.compute(userId, (key, userRecord) -> {
+            Map<String, Double> newRecord = (userRecord != null) ? new HashMap<>(userRecord) : new HashMap<>();
+
+            // Append the quantity if the item already exists in the user's record
+            newRecord.merge(itemId, quantity, Double::sum);
+            synchronized (cartAddTimes) {
+                // Moved to the most recent end
+                cartAddTimes.remove(userId);
+                cartAddTimes.put(userId, System.currentTimeMillis());
+            }
+            return Collections.unmodifiableMap(newRecord);
+        });
+        server.getCartExpiry().onCartAdded();
+    }
+
+    /**
+     * A cart update going through the pipeline, with its own two-phase commit session.
+     */
+    private class CartTransaction implements TwoPhaseCommitListener {
+        private final CartRequest request;
+        private final StreamObserver<CartResponse> responseObserver;
+        private final boolean isCoordinator;
+        private final TransactionCoordinator coordinator;
+        private final TransactionParticipant participant;
+        private final CountDownLatch decisionLatch = new CountDownLatch(1);
+        private final CountDownLatch isFinished = new CountDownLatch(1);
+        private volatile boolean isCommitted;
+        private boolean isHolding;
+        private boolean isAccepted;
+        private int participantCount;
+        private ReplicationCoordinator.PreparedTransaction prepared;
+
+        /**
+         * CartTransaction Constructor.
+         *
+         * @param request          The cart request.
+         * @param responseObserver The stream observer that uses to return data.
+         * @param isCoordinator    whether this server coordinates the transaction.
+         */
+        CartTransaction(CartRequest request, StreamObserver<CartResponse> responseObserver, boolean isCoordinator) {
+            this.request = request;
+            this.responseObserver = responseObserver;
+            this.isCoordinator = isCoordinator;
+            boolean isCoordinated = !server.isDirectReplication();
+            // Decided through the grpc replication service instead when not coordinated
+            this.coordinator = (isCoordinated && isCoordinator) ? server.getCoordination().newCoordinator(this) : null;
+            this.participant = (isCoordinated && !isCoordinator) ? server.getCoordination().newParticipant(this) : null;
+        }
+
+        /**
+         * Starts the two-phase commit.
+         */
+        void start() {
+            try {
+                if (coordinator != null) {
+                    coordinator.start(request.getTransactionId());
+                } else if (participant != null) {
+                    participant.start(request.getTransactionId(), String.valueOf(UUID.randomUUID()));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Reaches the global decision, or waits for it, and applies it.
+         */
+        void decide() {
+            if (!isCoordinator) {
+                // Prepared over grpc, the replication service passes the decision on however long it takes
+                applyDecision(participant == null ? Long.MAX_VALUE : 2 * TwoPhaseCommit.getVoteTimeout());
+                closeSession();
+                return;
+            }
+
+            try {
+                if (prepared != null) {
+                    server.getReplicationCoordinator().decide(prepared, isAccepted, this);
+                } else if (coordinator == null) {
+                    // Turned down over grpc before anything was sent out
+                    onGlobalAbort();
+                } else if (isAccepted) {
+                    coordinator.perform(participantCount);
+                } else {
+                    coordinator.abort();
+                }
+
+                String response = applyDecision(0);
+                responseObserver.onNext(CartResponse.newBuilder().setResponse(response).build());
+                responseObserver.onCompleted();
+            } catch (Exception e) {
+                System.out.println("Error while updating cart: " + e.getMessage());
+                e.printStackTrace();
+
+                responseObserver.onError(Status.INTERNAL.withDescription("Error occurred, updating cart").asRuntimeException());
+            }
+        }
+
+        /**
+         * Waits for the global decision and writes the request to the cart on commit.
+         *
+         * @param timeoutMillis How long to wait for the decision.
+         * @return response message for the client.
+         */
+        private String applyDecision(long timeoutMillis) {
+            try {
+                if (!decisionLatch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    System.out.println("No decision received for " + request.getUserId() + ", dropping the update");
+                    releaseHold();
+                    return ABORT_RESPONSE;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return ABORT_RESPONSE;
+            }
+
+            if (!isCommitted) {
+                System.out.println(ABORT_RESPONSE);
+                releaseHold();
+                return ABORT_RESPONSE;
+            }
+
+            System.out.println("Committing transaction...");
+            setCartItemQuantity(request.getUserId(), request.getId(), request.getQuantity());
+            server.getDeduplicationCache().put(request.getRequestId(), COMMIT_RESPONSE);
+            return COMMIT_RESPONSE;
+        }
+
+        /**
+         * Gives back the stock held for the request, if any.
+         */
+        private void releaseHold() {
+            if (isHolding) {
+                server.releaseStock(request.getUserId(), request.getId(), request.getQuantity());
+            }
+        }
+
+        /**
+         * Ends the participant's coordination session once the decision is applied.
+         */
+        private void closeSession() {
+            if (participant != null) {
+                participant.close();
+            }
+        }
+
+        /**
+         * Called on the global commit message.
+         */
+        @Override
+        public void onGlobalCommit() {
+            isCommitted = true;
+            decisionLatch.countDown();
+        }
+
+        /**
+         * Called on the global abort message.
+         */
+        @Override
+        public void onGlobalAbort() {
+            isCommitted = false;
+            decisionLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package cw2.communication.server;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable point-in-time view of the inventory, numbered by the commit that published it.
+ * Writers derive the next snapshot from the current one and publish it in one reference swap,
+ * so readers scan a consistent catalog without taking any lock. The items are held in a
+ * {@link PersistentSortedMap}: a commit copies O(log n) nodes per changed item and shares the rest.
+ * The quantity index is part of the snapshot too, so it always matches the items.
+ */
+public final class CatalogSnapshot {
+    static final CatalogSnapshot EMPTY = new CatalogSnapshot(PersistentSortedMap.empty(), QuantityIndex.EMPTY, 0);
+
+    private final PersistentSortedMap<String, StockEntry> items;
+    private final QuantityIndex quantityIndex;
+    private final long version;
+    private final Map<String, StockEntry> itemsView = new AbstractMap<String, StockEntry>() {
+        @Override
+        public StockEntry get(Object key) {
+            return (key instanceof String) ? items.get((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && items.containsKey((String) key);
+        }
+
+        @Override
+        public int size() {
+            return items.size();
+        }
+
+        @Override
+        public Set<Map.Entry<String, StockEntry>> entrySet() {
+            return new AbstractSet<Map.Entry<String, StockEntry>>() {
+                @Override
+                public Iterator<Map.Entry<String, StockEntry>> iterator() {
+                    return items.iterator(null);
+                }
+
+                @Override
+                public int size() {
+                    return items.size();
+                }
+            };
+        }
+    };
+
+    private CatalogSnapshot(PersistentSortedMap<String, StockEntry> items, QuantityIndex quantityIndex,
+                            long version) {
+        this.items = items;
+        this.quantityIndex = quantityIndex;
+        this.version = version;
+    }
+
+    /**
+     * Creates the next snapshot with the given items changed.
+     *
+     * @param changes item id -> new versioned quantity.
+     * @return the next snapshot.
+     */
+    CatalogSnapshot with(Map<String, StockEntry> changes) {
+        PersistentSortedMap<String, StockEntry> nextItems = items;
+        QuantityIndex nextQuantityIndex = quantityIndex;
+        for (Map.Entry<String, StockEntry> change : changes.entrySet()) {
+            nextQuantityIndex = nextQuantityIndex.move(change.getKey(), items.get(change.getKey()), change.getValue());
+            nextItems = nextItems.put(change.getKey(), change.getValue());
+        }
+
+        return new CatalogSnapshot(nextItems, nextQuantityIndex, version + 1);
+    }
+
+    /**
+     * Gets the versioned quantity of an item.
+     *
+     * @param id item id.
+     * @return versioned quantity, null if the item is unknown.
+     */
+    public StockEntry get(String id) {
+        return items.get(id);
+    }
+
+    /**
+     * Gets every item.
+     *
+     * @return read-only map of item id -> versioned quantity, ordered by item id.
+     */
+    public Map<String, StockEntry> getItems() {
+        return itemsView;
+    }
+
+    /**
+     * Gets the items of this snapshot ordered by quantity.
+     *
+     * @return quantity index.
+     */
+    public QuantityIndex getQuantityIndex() {
+        return quantityIndex;
+    }
+
+    /**
+     * Gets the number of commits this snapshot includes.
+     *
+     * @return catalog version.
+     */
+    public long getVersion() {
+        return version;
+    }
+}
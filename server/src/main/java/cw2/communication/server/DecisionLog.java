@@ -0,0 +1,146 @@
+package cw2.communication.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Append-only local log of two-phase commit decisions, coordinated or learned by this server.
+ * Each decision is a fixed 17 byte record: the outcome followed by the transaction id.
+ * The latest decisions are kept in memory; the file is rewritten with only those once it grows
+ * to twice their number.
+ */
+public class DecisionLog {
+    private static final int RECORD_SIZE = 17;
+    private static final byte COMMIT = 'C';
+    private static final byte ABORT = 'A';
+
+    private final Path path;
+    private final int capacity;
+    private final boolean isSynced;
+    private final Map<String, Boolean> decisions;
+    private FileChannel channel;
+    private int recordCount = 0;
+
+    /**
+     * DecisionLog Constructor. Loads the decisions already in the file.
+     *
+     * @param path     Log file.
+     * @param capacity Number of latest decisions kept.
+     * @param isSynced Whether every decision is flushed to disk before it is acted upon.
+     * @throws IOException when the log cannot be read or opened.
+     */
+    public DecisionLog(Path path, int capacity, boolean isSynced) throws IOException {
+        this.path = path;
+        this.capacity = capacity;
+        this.isSynced = isSynced;
+        this.decisions = new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        if (Files.exists(path)) {
+            ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(path));
+            // A torn record at the end is left out
+            while (records.remaining() >= RECORD_SIZE) {
+                boolean isCommitted = records.get() == COMMIT;
+                decisions.put(new UUID(records.getLong(), records.getLong()).toString(), isCommitted);
+                recordCount++;
+            }
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        // Cut the torn record off, the next decision is written in its place
+        channel.truncate((long) recordCount * RECORD_SIZE);
+    }
+
+    /**
+     * Records a decision.
+     *
+     * @param transactionId transaction id.
+     * @param isCommitted   whether the transaction is committed.
+     */
+    public synchronized void record(String transactionId, boolean isCommitted) {
+        decisions.put(transactionId, isCommitted);
+        try {
+            channel.write(toRecord(transactionId, isCommitted));
+            if (isSynced) {
+                channel.force(false);
+            }
+            recordCount++;
+            if (recordCount >= 2 * capacity) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.out.println("Error while logging the decision of " + transactionId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets a decision.
+     *
+     * @param transactionId transaction id.
+     * @return true if committed, false if aborted, null if unknown.
+     */
+    public synchronized Boolean getDecision(String transactionId) {
+        return decisions.get(transactionId);
+    }
+
+    /**
+     * Closes the log file.
+     */
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error while closing the decision log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrites the file with the decisions kept in memory.
+     *
+     * @throws IOException when the file cannot be rewritten.
+     */
+    private void compact() throws IOException {
+        Path compactedPath = path.resolveSibling(path.getFileName() + ".compact");
+        try (FileChannel compacted = FileChannel.open(compactedPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Boolean> decision : decisions.entrySet()) {
+                compacted.write(toRecord(decision.getKey(), decision.getValue()));
+            }
+            compacted.force(false);
+        }
+
+        channel.close();
+        Files.move(compactedPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        recordCount = decisions.size();
+    }
+
+    /**
+     * Encodes a decision.
+     *
+     * @param transactionId transaction id.
+     * @param isCommitted   whether the transaction is committed.
+     * @return the record.
+     */
+    private static ByteBuffer toRecord(String transactionId, boolean isCommitted) {
+        UUID id = UUID.fromString(transactionId);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.put(isCommitted ? COMMIT : ABORT)
+                .putLong(id.getMostSignificantBits())
+                .putLong(id.getLeastSignificantBits())
+                .flip();
+
+        return record;
+    }
+}
@@ -0,0 +1,53 @@
+package cw2.communication.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded table of request id -> outcome of the committed requests.
+ * Every server records the requests it commits, so retries are answered
+ * with the original outcome even after a failover.
+ */
+public class DeduplicationCache {
+    private final Map<String, String> responses;
+
+    /**
+     * DeduplicationCache Constructor.
+     *
+     * @param capacity Maximum number of remembered requests, the oldest ones are dropped first.
+     */
+    public DeduplicationCache(int capacity) {
+        this.responses = new LinkedHashMap<String, String>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the outcome of an already committed request
+     * @param requestId - request id
+     * @return response, null if the request is unknown or has no id
+     */
+    public synchronized String get(String requestId) {
+        if (requestId == null || requestId.isEmpty()) {
+            return null;
+        }
+
+        return responses.get(requestId);
+    }
+
+    /**
+     * Remember the outcome of a committed request
+     * @param requestId - request id, ignored if empty
+     * @param response - response returned for the request
+     */
+    public synchronized void put(String requestId, String response) {
+        if (requestId == null || requestId.isEmpty()) {
+            return;
+        }
+
+        responses.put(requestId, response);
+    }
+}
@@ -0,0 +1,81 @@
+package cw2.communication.server;
+
+import cw2.communication.distributedTxProtocol.listener.TwoPhaseCommitListener;
+
+import java.io.IOException;
+
+/**
+ * Applies the stock changes of a transaction once it commits, on the primary server and on
+ * the secondary servers alike, so that every server ends up with the same quantities.
+ */
+class DeltaCommit implements TwoPhaseCommitListener {
+    private final InventoryServer server;
+    private final StateDelta delta;
+    private volatile String conflictingItem;
+    private volatile boolean isApplied = false;
+    private volatile IOException logError;
+
+    /**
+     * DeltaCommit Constructor.
+     *
+     * @param server server object.
+     * @param delta  changes of the transaction.
+     */
+    DeltaCommit(InventoryServer server, StateDelta delta) {
+        this.server = server;
+        this.delta = delta;
+    }
+
+    /**
+     * Gets the item whose stock changed after the primary server computed the delta.
+     *
+     * @return item id, null if the delta was applied or not committed.
+     */
+    String getConflictingItem() {
+        return conflictingItem;
+    }
+
+    /**
+     * Checks whether the changes were applied here.
+     *
+     * @return true once committed without conflict.
+     */
+    boolean isApplied() {
+        return isApplied;
+    }
+
+    /**
+     * Gets the error that kept the committed order out of the order log.
+     *
+     * @return the error, null if the order was logged or there was none.
+     */
+    IOException getLogError() {
+        return logError;
+    }
+
+    /**
+     * Called on the global commit message.
+     */
+    @Override
+    public void onGlobalCommit() {
+        try {
+            conflictingItem = server.applyDelta(delta);
+        } catch (IOException e) {
+            System.out.println("Error while logging the order of " + delta.getUserId() + ": " + e.getMessage());
+            e.printStackTrace();
+            logError = e;
+        }
+        isApplied = conflictingItem == null;
+        if (conflictingItem != null) {
+            System.out.println("Stock of " + conflictingItem + " changed, skipping request " + delta.getRequestId());
+        }
+    }
+
+    /**
+     * Called on the global abort message.
+     */
+    @Override
+    public void onGlobalAbort() {
+        System.out.println("Transaction Aborted by the Coordinator");
+    }
+}
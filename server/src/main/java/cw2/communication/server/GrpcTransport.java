@@ -0,0 +1,103 @@
+package cw2.communication.server;
+
+import io.grpc.ManagedChannel;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Netty transport settings shared by the grpc server and the channels to other servers.
+ * Uses the native epoll transport on Linux, NIO elsewhere.
+ */
+public final class GrpcTransport {
+    private static final boolean USE_EPOLL = Boolean.parseBoolean(System.getProperty("transport.epoll", "true"))
+            && Epoll.isAvailable();
+    private static final int BOSS_THREADS = Integer.getInteger("transport.bossThreads", 1);
+    // 0 lets netty pick twice the number of cores
+    private static final int WORKER_THREADS = Integer.getInteger("transport.workerThreads", 0);
+    private static final int FLOW_CONTROL_WINDOW = Integer.getInteger("transport.flowControlWindow", 1024 * 1024);
+    private static final int MAX_CONCURRENT_STREAMS = Integer.getInteger("transport.maxConcurrentStreams",
+            Integer.MAX_VALUE);
+    private static final long KEEP_ALIVE_MS = Long.getLong("transport.keepAliveMs", 30000);
+    private static final long KEEP_ALIVE_TIMEOUT_MS = Long.getLong("transport.keepAliveTimeoutMs", 10000);
+
+    private static final EventLoopGroup clientEventLoopGroup = newEventLoopGroup(WORKER_THREADS);
+
+    // One long lived channel per peer, keyed by host:port
+    private static final Map<String, ManagedChannel> channels = new ConcurrentHashMap<>();
+
+    private GrpcTransport() {
+    }
+
+    /**
+     * Creates a server builder with the configured event loops, HTTP/2 window, stream limit and keepalive.
+     *
+     * @param port Server port.
+     * @return server builder.
+     */
+    public static NettyServerBuilder serverBuilder(int port) {
+        Class<? extends ServerChannel> channelType = USE_EPOLL
+                ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+        System.out.println("Using the " + (USE_EPOLL ? "epoll" : "nio") + " transport");
+
+        return NettyServerBuilder
+                .forPort(port)
+                .channelType(channelType)
+                .bossEventLoopGroup(newEventLoopGroup(BOSS_THREADS))
+                .workerEventLoopGroup(newEventLoopGroup(WORKER_THREADS))
+                .flowControlWindow(FLOW_CONTROL_WINDOW)
+                .maxConcurrentCallsPerConnection(MAX_CONCURRENT_STREAMS)
+                .keepAliveTime(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS)
+                .keepAliveTimeout(KEEP_ALIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .permitKeepAliveTime(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS)
+                .permitKeepAliveWithoutCalls(true);
+    }
+
+    /**
+     * Gets the channel to another server, creating it on first use.
+     *
+     * @param host Server IP address.
+     * @param port Server port.
+     * @return channel.
+     */
+    public static ManagedChannel getChannel(String host, int port) {
+        return channels.computeIfAbsent(host + ":" + port, key -> {
+            Class<? extends SocketChannel> channelType = USE_EPOLL
+                    ? EpollSocketChannel.class : NioSocketChannel.class;
+
+            return NettyChannelBuilder
+                    .forAddress(host, port)
+                    .channelType(channelType)
+                    .eventLoopGroup(clientEventLoopGroup)
+                    .flowControlWindow(FLOW_CONTROL_WINDOW)
+                    .keepAliveTime(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS)
+                    .keepAliveTimeout(KEEP_ALIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .keepAliveWithoutCalls(true)
+                    .usePlaintext()
+                    .build();
+        });
+    }
+
+    /**
+     * Creates an event loop group for the selected transport.
+     *
+     * @param threads Number of threads, 0 for the netty default.
+     * @return event loop group.
+     */
+    private static EventLoopGroup newEventLoopGroup(int threads) {
+        return USE_EPOLL ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+}
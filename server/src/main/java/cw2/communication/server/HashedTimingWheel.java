@@ -0,0 +1,139 @@
+package cw2.communication.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel for large numbers of cheap, coarse grained timeouts.
+ * Scheduling and cancelling are O(1); a single ticker thread advances the wheel
+ * one slot per tick and runs the tasks that fell due in that slot.
+ */
+public class HashedTimingWheel {
+    private final long tickNanos;
+    private final int mask;
+    private final Queue<Timeout>[] wheel;
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final long startTime;
+    private long tick = 0;
+
+    /**
+     * A scheduled task
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile boolean isCancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevents the task from running, the slot entry is dropped on the next pass
+         */
+        public void cancel() {
+            isCancelled = true;
+        }
+    }
+
+    /**
+     * HashedTimingWheel Constructor.
+     *
+     * @param tickMillis Duration of a tick in milliseconds.
+     * @param slotCount  Number of slots, rounded up to a power of two.
+     * @param name       Name of the ticker thread.
+     */
+    @SuppressWarnings("unchecked")
+    public HashedTimingWheel(long tickMillis, int slotCount, String name) {
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.mask = size - 1;
+        this.wheel = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.startTime = System.nanoTime();
+
+        Thread ticker = new Thread(this::run, name);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Schedules a task to run once the delay elapses.
+     *
+     * @param task        Task to run on the ticker thread.
+     * @param delayMillis Delay in milliseconds.
+     * @return handle to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        pendingTimeouts.add(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * Ticker loop
+     */
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long sleepNanos = startTime + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            transferPendingTimeouts();
+            expireTimeouts(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    /**
+     * Moves newly scheduled timeouts into their slots.
+     */
+    private void transferPendingTimeouts() {
+        Timeout timeout;
+        while ((timeout = pendingTimeouts.poll()) != null) {
+            if (timeout.isCancelled) {
+                continue;
+            }
+            long dueTick = Math.max((timeout.deadline - startTime) / tickNanos, tick);
+            timeout.remainingRounds = (dueTick - tick) / wheel.length;
+            wheel[(int) (dueTick & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Runs the due timeouts of a slot.
+     *
+     * @param slot Slot of the current tick.
+     */
+    private void expireTimeouts(Queue<Timeout> slot) {
+        Iterator<Timeout> iterator = slot.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.isCancelled) {
+                iterator.remove();
+            } else if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else {
+                iterator.remove();
+                try {
+                    timeout.task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package cw2.communication.server;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stock of the items expected to sell fastest, set aside on the primary server in split counters
+ * of whole units. Orders take whole quantities from them without checking the item's version, so
+ * concurrent orders of a hot item neither conflict with each other nor queue up on one counter;
+ * the catalog is decremented on commit and the order settles its reservation afterwards.
+ */
+public class HotItemEscrow {
+    private final Set<String> hotItems;
+    private final int stripeCount;
+
+    // This keeps track of {item_id -> split counter} pairs, created on the first order of the item
+    private final Map<String, SplitCounter> counters = new ConcurrentHashMap<>();
+
+    /**
+     * HotItemEscrow Constructor.
+     *
+     * @param hotItems    Ids of the hot items.
+     * @param stripeCount Number of sub-counters per item.
+     */
+    public HotItemEscrow(Set<String> hotItems, int stripeCount) {
+        this.hotItems = hotItems;
+        this.stripeCount = stripeCount;
+    }
+
+    /**
+     * Checks whether an item is hot
+     * @param itemId - item id
+     * @return whether orders take the item from a split counter
+     */
+    public boolean isHot(String itemId) {
+        return hotItems.contains(itemId);
+    }
+
+    /**
+     * Checks whether an order takes a quantity of an item from its split counter
+     * @param itemId - item id
+     * @param quantity - quantity ordered
+     * @return whether the item is hot and the quantity is made of whole units
+     */
+    public boolean isEscrowed(String itemId, double quantity) {
+        return isHot(itemId) && quantity > 0 && quantity == Math.rint(quantity);
+    }
+
+    /**
+     * Take stock of a hot item for an undecided order
+     * @param itemId - item id
+     * @param quantity - whole units to take
+     * @param committedQuantity - quantity in the catalog, used when the item is first taken from
+     * @return the reservation to settle or give back once the order is decided, null if there is not enough stock
+     */
+    public SplitCounter.Reservation tryTake(String itemId, long quantity, double committedQuantity) {
+        return counters.computeIfAbsent(itemId, key -> new SplitCounter(stripeCount, wholeUnits(committedQuantity)))
+                .tryTake(quantity);
+    }
+
+    /**
+     * Settle stock taken for an order once it is decided
+     * @param itemId - item id
+     * @param reservation - stock taken
+     * @param isSold - whether the order committed, otherwise the stock is given back
+     */
+    public void release(String itemId, SplitCounter.Reservation reservation, boolean isSold) {
+        SplitCounter counter = counters.get(itemId);
+        if (counter == null) {
+            return;
+        }
+        if (isSold) {
+            counter.settle(reservation);
+        } else {
+            counter.giveBack(reservation);
+        }
+    }
+
+    /**
+     * Follow a quantity written to the catalog some other way than by a taken order
+     * @param itemId - item id
+     * @param committedQuantity - new quantity in the catalog
+     */
+    public void reset(String itemId, double committedQuantity) {
+        SplitCounter counter = counters.get(itemId);
+        if (counter != null) {
+            counter.reset(wholeUnits(committedQuantity));
+        }
+    }
+
+    /**
+     * Whole units of a quantity, the fraction left over is only sold through versioned changes
+     * @param quantity - quantity in the catalog
+     * @return whole units
+     */
+    private static long wholeUnits(double quantity) {
+        return (long) Math.floor(Math.max(0, quantity));
+    }
+}
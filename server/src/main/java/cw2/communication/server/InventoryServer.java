@@ -1,112 +1,299 @@
 package cw2.communication.server;
 
+import cw2.communication.coordination.CoordinationBackend;
+import cw2.communication.coordination.InProcessCoordination;
+import cw2.communication.coordination.TransactionCoordinator;
+import cw2.communication.coordination.TransactionParticipant;
+import cw2.communication.coordination.ZooKeeperCoordination;
+import cw2.communication.distributedTxProtocol.ReplicationMode;
 import cw2.communication.distributedTxProtocol.TwoPhaseCommit;
-import cw2.communication.distributedTxProtocol.coordinator.TwoPhaseCommitCoordinator;
 import cw2.communication.nameServiceModule.NameServiceClient;
-import cw2.communication.distributedTxProtocol.participant.TwoPhaseCommitParticipant;
-import cw2.communication.primaryBasedProtocol.PrimaryBasedProtocol;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
 import org.apache.zookeeper.KeeperException;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Create and expose the server of the inventory system
  */
 public class InventoryServer {
-    private static PrimaryBasedProtocol primaryLock;
+    private final CoordinationBackend coordination;
+    private final CoordinationBackend.GroupMember primaryLock;
+    private final String serverHost;
     private final int serverPort;
+    private Server grpcServer;
     private final AtomicBoolean isPrimary = new AtomicBoolean(false);
     private byte[] primaryData;
     private final OrderManagerServiceImpl orderManagerService;
     private final QuantityManagerServiceImpl quantityManagerService;
     private final CartManagerServiceImpl cartManagerService;
-    private TwoPhaseCommit orderManagerTransaction;
-
-    private TwoPhaseCommit qtyManagerTransaction;
-    private TwoPhaseCommit cartManagerTransaction;
+    private final ReplicationServiceImpl replicationService;
+    private final ReplicationCoordinator replicationCoordinator;
+    // Whether two-phase commits run over grpc instead of ZooKeeper nodes
+    private final boolean isDirectReplication;
+    // Both sides are kept, the coordinators are used once this server is the primary server
+    private final TransactionCoordinator orderManagerCoordinator;
+    private final TransactionParticipant orderManagerParticipant;
+    private final TransactionCoordinator qtyManagerCoordinator;
+    private final TransactionParticipant qtyManagerParticipant;
     public static final String NAME_SERVICE_ADDRESS = "http://localhost:2379";
+    private static final String PRIMARY_LOCK_NAME = "InventorySystem";
+
+    // Two-phase commit decisions coordinated or learned by this server
+    private final DecisionLog decisionLog;
+    // History of the orders committed on this server
+    private final OrderLog orderLog;
+
+    // Outcomes of committed requests, keyed by their idempotency key
+    private final DeduplicationCache deduplicationCache;
+
+    // Stock held for carts, null when reservations are disabled
+    private final StockReservations stockReservations;
 
-    // This keeps track of {item_id -> qty} pairs
-    private final Map<String, Double> inventoryProducts = new HashMap<>();
+    // Stock of the hot items set aside in split counters for orders
+    private final HotItemEscrow hotItemEscrow;
 
-    // This keeps track of user_id -> {item_id -> qty} pairs
-    private final Map<String, Map<String, Double>> shoppingCart = new HashMap<>();
+    // Drops the carts left untouched for too long, or beyond the cap
+    private final CartExpiry cartExpiry;
 
+    // Latest published {item_id -> versioned qty} pairs, replaced as a whole on every write
+    private final AtomicReference<CatalogSnapshot> catalog = new AtomicReference<>(CatalogSnapshot.EMPTY);
+
+    // Items changed by the transactions this server coordinates and has not applied yet
+    private final StockLocks stockLocks = new StockLocks();
 
     /**
      * Constructor.
      *
      * @param host Server IP address.
      * @param port Server port.
+     * @param coordination Backend for the primary lock and the two-phase commits.
      * @throws InterruptedException Interrupt exception.
      * @throws IOException IO exception.
      * @throws KeeperException Zookeeper exception.
      */
-    public InventoryServer(String host, int port) throws InterruptedException, IOException, KeeperException {
+    public InventoryServer(String host, int port, CoordinationBackend coordination)
+            throws InterruptedException, IOException, KeeperException {
+        this.serverHost = host;
         this.serverPort = port;
-        primaryLock = new PrimaryBasedProtocol("InventorySystem", buildServerData(host, port));
+        this.coordination = coordination;
+        String protocol = System.getProperty("replication.protocol", "grpc");
+        isDirectReplication = !"zookeeper".equalsIgnoreCase(protocol) && !"coordination".equalsIgnoreCase(protocol);
+        if (!isDirectReplication && TwoPhaseCommit.getReplicationMode() == ReplicationMode.QUORUM) {
+            // Only the grpc protocol sends a missed write to a lagging secondary server again
+            throw new IllegalArgumentException("The quorum replication mode needs the grpc replication protocol");
+        }
+        long cartTtl = Long.getLong("cart.ttlMs", 0);
+        int maxCarts = Integer.getInteger("cart.maxCarts", 0);
+        if (!isDirectReplication && (cartTtl > 0 || maxCarts > 0)) {
+            // Expired carts are dropped through a state delta, which only the grpc protocol replicates
+            throw new IllegalArgumentException("Cart expiry needs the grpc replication protocol");
+        }
+        primaryLock = coordination.joinGroup(PRIMARY_LOCK_NAME, buildServerData(host, port));
         setCurrentPrimaryData(primaryLock.getPrimaryServerData());
         String[] serverAddress = new String(this.primaryData).split(":");
         if(serverAddress[0].equals(host) && Integer.parseInt(serverAddress[1]) == port){
             isPrimary.set(true);
         }
+        decisionLog = new DecisionLog(Paths.get(System.getProperty("replication.decisionLog", "decisions-" + port + ".log")),
+                Integer.getInteger("replication.decisionLogCapacity", 100000),
+                Boolean.getBoolean("replication.decisionLogSync"));
+        orderLog = new OrderLog(Paths.get(System.getProperty("orders.directory", "orders-" + port)),
+                Long.getLong("orders.segmentBytes", 64L * 1024 * 1024), Boolean.getBoolean("orders.sync"));
+        deduplicationCache = new DeduplicationCache(Integer.getInteger("dedup.capacity", 100000));
+        long reservationTtl = Long.getLong("cart.reservationTtlMs", 0);
+        stockReservations = (reservationTtl > 0) ? new StockReservations(reservationTtl) : null;
+        // A split counter cannot tell the stock held for other users' carts apart, so holds turn the escrow off
+        Set<String> hotItems = parseItemIds(System.getProperty("inventory.hotItems", ""));
+        if (stockReservations != null && !hotItems.isEmpty()) {
+            System.out.println("Stock reservations are enabled, ignoring the hot items " + hotItems);
+            hotItems = Collections.emptySet();
+        }
+        hotItemEscrow = new HotItemEscrow(hotItems,
+                Integer.getInteger("inventory.hotItemStripes", Runtime.getRuntime().availableProcessors()));
+        cartExpiry = new CartExpiry(this, cartTtl, maxCarts, Long.getLong("cart.sweepIntervalMs", 60000));
         quantityManagerService = new QuantityManagerServiceImpl(this);
         orderManagerService = new OrderManagerServiceImpl(this);
-        cartManagerService = new CartManagerServiceImpl(this);
-        orderManagerTransaction = new TwoPhaseCommitParticipant(orderManagerService);
-        qtyManagerTransaction = new TwoPhaseCommitParticipant(quantityManagerService);
-        cartManagerTransaction = new TwoPhaseCommitParticipant(cartManagerService);
+        cartManagerService = new CartManagerServiceImpl(this,
+                Integer.getInteger("cart.partitions", Runtime.getRuntime().availableProcessors()));
+        replicationService = new ReplicationServiceImpl(this);
+        replicationCoordinator = new ReplicationCoordinator(this);
+        orderManagerCoordinator = coordination.newCoordinator(orderManagerService);
+        orderManagerParticipant = coordination.newParticipant(orderManagerService);
+        qtyManagerCoordinator = coordination.newCoordinator(quantityManagerService);
+        qtyManagerParticipant = coordination.newParticipant(quantityManagerService);
     }
 
     /**
      * Bootstrap the server
      */
     public static void main(String[] args) throws InterruptedException, IOException, KeeperException {
-        PrimaryBasedProtocol.setZooKeeperURL("localhost:2181");
-        TwoPhaseCommit.setZooKeeperURL("localhost:2181");
+        configure();
         int serverPort = Integer.parseInt(args[0]);
 
-        InventoryServer server = new InventoryServer("localhost", serverPort);
+        InventoryServer server = new InventoryServer(System.getProperty("server.host", "localhost"), serverPort,
+                createCoordinationBackend());
         server.startServer();
     }
 
+    /**
+     * Sets up the replication settings shared by the servers of this JVM.
+     */
+    public static void configure() {
+        TwoPhaseCommit.setReplicationMode(ReplicationMode.valueOf(
+                System.getProperty("replication.mode", "all").toUpperCase()));
+        TwoPhaseCommit.setVoteTimeout(Long.getLong("replication.voteTimeoutMs", 5000));
+    }
+
+    /**
+     * Creates the coordination backend named by coordination.backend:
+     * "zookeeper" coordinates through the ensemble at zooKeeper.address,
+     * "inprocess" keeps everything in this JVM, for a single server without ZooKeeper.
+     *
+     * @return coordination backend.
+     */
+    public static CoordinationBackend createCoordinationBackend() {
+        String backend = System.getProperty("coordination.backend", "zookeeper");
+        if ("inprocess".equalsIgnoreCase(backend)) {
+            return new InProcessCoordination();
+        }
+        if (!"zookeeper".equalsIgnoreCase(backend)) {
+            throw new IllegalArgumentException("Unknown coordination backend: " + backend);
+        }
+
+        return new ZooKeeperCoordination(System.getProperty("zooKeeper.address", "localhost:2181"));
+    }
+
+    /**
+     * Parses a comma separated list of item ids.
+     *
+     * @param itemIds item ids.
+     * @return set of item ids.
+     */
+    private static Set<String> parseItemIds(String itemIds) {
+        Set<String> result = new HashSet<>();
+        for (String itemId : itemIds.split(",")) {
+            if (!itemId.trim().isEmpty()) {
+                result.add(itemId.trim());
+            }
+        }
+
+        return result;
+    }
+
     /**
      * Get all products
      * @return map of products
      */
     public Map<String, Double> getInventoryProducts() {
-        return inventoryProducts;
+        Map<String, Double> products = new HashMap<>();
+        for (Map.Entry<String, StockEntry> entry : catalog.get().getItems().entrySet()) {
+            products.put(entry.getKey(), entry.getValue().getQuantity());
+        }
+
+        return products;
     }
 
     /**
-     * Starts the grpc server.
+     * Starts the grpc server and waits until it is terminated.
      *
      * @throws IOException IO exception.
      * @throws InterruptedException Interrupt exception.
      */
     public void startServer() throws IOException, InterruptedException {
-        Server server = ServerBuilder
-                .forPort(serverPort)
+        start();
+        grpcServer.awaitTermination();
+    }
+
+    /**
+     * Starts the grpc server, registers it with the name service and starts contesting
+     * to be the primary server, without waiting for the server to terminate.
+     *
+     * @throws IOException IO exception.
+     */
+    public void start() throws IOException {
+        grpcServer = GrpcTransport
+                .serverBuilder(serverPort)
+                .executor(createExecutor(System.getProperty("server.executor", "pooled")))
                 .addService(orderManagerService)
                 .addService(quantityManagerService)
                 .addService(cartManagerService)
+                .addService(replicationService)
                 .build();
 
-        server.start();
+        grpcServer.start();
 
-        NameServiceClient client = new NameServiceClient(NAME_SERVICE_ADDRESS);
-        client.registerService("localhost:" + serverPort, "localhost", serverPort, "tcp");
+        NameServiceClient client = new NameServiceClient(System.getProperty("nameService.address", NAME_SERVICE_ADDRESS));
+        client.registerService(buildServerData(serverHost, serverPort), serverHost, serverPort, "tcp");
         System.out.println("Inventory Server is ready to accept client requests on the port " + serverPort);
 
         tryToBePrimary();
-        server.awaitTermination();
+        cartExpiry.start();
+    }
+
+    /**
+     * Stops the server the way a crash would: calls in progress are cut off and the ZooKeeper
+     * session is closed, so another server takes over as the primary server.
+     *
+     * @throws InterruptedException Interrupt exception.
+     */
+    public void shutdown() throws InterruptedException {
+        System.out.println("Shutting down the server on the port " + serverPort);
+        if (grpcServer != null) {
+            grpcServer.shutdownNow();
+            grpcServer.awaitTermination();
+        }
+        cartExpiry.close();
+        primaryLock.close();
+        decisionLog.close();
+        orderLog.close();
+    }
+
+    /**
+     * Gets the port of the server.
+     *
+     * @return port.
+     */
+    public int getPort() {
+        return serverPort;
+    }
+
+    /**
+     * Creates the executor running the grpc calls.
+     * "pooled" runs calls on a thread pool, bounded when server.threads is set;
+     * "virtual" runs each call on its own virtual thread (Java 21+), so calls blocked
+     * on ZooKeeper or nested grpc calls do not hold on to platform threads.
+     *
+     * @param mode Executor mode.
+     * @return executor for the grpc server.
+     */
+    static Executor createExecutor(String mode) {
+        if ("virtual".equalsIgnoreCase(mode)) {
+            try {
+                // Looked up reflectively so the server still builds and runs on Java 11
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Virtual threads need Java 21 or newer", e);
+            }
+        }
+
+        Integer threadCount = Integer.getInteger("server.threads");
+        return (threadCount != null) ? Executors.newFixedThreadPool(threadCount) : Executors.newCachedThreadPool();
     }
 
     /**
@@ -122,30 +309,150 @@ public class InventoryServer {
     }
 
     /**
-     * Returns an object that performs a two-phase commit for order mgt.
+     * Returns the coordinator side of the two-phase commits for order mgt.
      *
-     * @return two-phase commit type object.
+     * @return transaction coordinator.
      */
-    public TwoPhaseCommit getOrderManagerTransaction() {
-        return orderManagerTransaction;
+    public TransactionCoordinator getOrderManagerCoordinator() {
+        return orderManagerCoordinator;
     }
 
     /**
-     * Returns an object that performs a two-phase commit for quantity mgt.
+     * Returns the participant side of the two-phase commits for order mgt.
      *
-     * @return two-phase commit type object.
+     * @return transaction participant.
      */
-    public TwoPhaseCommit getQtyManagerTransaction() {
-        return qtyManagerTransaction;
+    public TransactionParticipant getOrderManagerParticipant() {
+        return orderManagerParticipant;
     }
 
     /**
-     * Returns an object that performs a two-phase commit for cart mgt.
+     * Returns the coordinator side of the two-phase commits for quantity mgt.
      *
-     * @return two-phase commit type object.
+     * @return transaction coordinator.
      */
-    public TwoPhaseCommit getCartManagerTransaction() {
-        return cartManagerTransaction;
+    public TransactionCoordinator getQtyManagerCoordinator() {
+        return qtyManagerCoordinator;
+    }
+
+    /**
+     * Returns the participant side of the two-phase commits for quantity mgt.
+     *
+     * @return transaction participant.
+     */
+    public TransactionParticipant getQtyManagerParticipant() {
+        return qtyManagerParticipant;
+    }
+
+    /**
+     * Returns the backend the primary lock and the two-phase commits run on.
+     *
+     * @return coordination backend.
+     */
+    public CoordinationBackend getCoordination() {
+        return coordination;
+    }
+
+    /**
+     * Whether two-phase commits run over the grpc replication service
+     * rather than through ZooKeeper nodes.
+     *
+     * @return whether the direct replication protocol is used.
+     */
+    public boolean isDirectReplication() {
+        return isDirectReplication;
+    }
+
+    /**
+     * Returns the participant side of the grpc two-phase commit.
+     *
+     * @return replication service.
+     */
+    public ReplicationServiceImpl getReplicationService() {
+        return replicationService;
+    }
+
+    /**
+     * Returns the coordinator side of the grpc two-phase commit.
+     *
+     * @return replication coordinator.
+     */
+    public ReplicationCoordinator getReplicationCoordinator() {
+        return replicationCoordinator;
+    }
+
+    /**
+     * Returns the cart manager service.
+     *
+     * @return cart manager service.
+     */
+    public CartManagerServiceImpl getCartManagerService() {
+        return cartManagerService;
+    }
+
+    /**
+     * Returns the order manager service.
+     *
+     * @return order manager service.
+     */
+    public OrderManagerServiceImpl getOrderManagerService() {
+        return orderManagerService;
+    }
+
+    /**
+     * Returns the quantity manager service.
+     *
+     * @return quantity manager service.
+     */
+    public QuantityManagerServiceImpl getQuantityManagerService() {
+        return quantityManagerService;
+    }
+
+    /**
+     * Returns the log of two-phase commit decisions.
+     *
+     * @return decision log.
+     */
+    public DecisionLog getDecisionLog() {
+        return decisionLog;
+    }
+
+    /**
+     * Returns the expiry of the carts held by this server.
+     *
+     * @return cart expiry.
+     */
+    CartExpiry getCartExpiry() {
+        return cartExpiry;
+    }
+
+    /**
+     * Returns the history of the orders committed on this server.
+     *
+     * @return order log.
+     */
+    public OrderLog getOrderLog() {
+        return orderLog;
+    }
+
+    /**
+     * Settles the transactions the previous primary server left undecided,
+     * before any new transaction is coordinated by this server.
+     */
+    private void resolveInDoubtTransactions() {
+        try {
+            if (isDirectReplication) {
+                replicationCoordinator.resolveInDoubtTransactions();
+            } else {
+                int orphanCount = coordination.startSweeper(
+                        Long.getLong("replication.sweepIntervalMs", 10000),
+                        Long.getLong("replication.transactionTtlMs", 30000));
+                System.out.println("Aborted " + orphanCount + " transactions left by the previous primary server");
+            }
+        } catch (Exception e) {
+            System.out.println("Error while resolving in-doubt transactions: " + e.getMessage());
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -169,10 +476,8 @@ public class InventoryServer {
                     amIPrimary = primaryLock.tryToBeThePrimary();
                 }
                 System.out.println("Acquired the primary lock. I am the primary server now...");
+                resolveInDoubtTransactions();
                 isPrimary.set(true);
-                orderManagerTransaction = new TwoPhaseCommitCoordinator(orderManagerService);
-                cartManagerTransaction = new TwoPhaseCommitCoordinator(cartManagerService);
-                qtyManagerTransaction = new TwoPhaseCommitCoordinator(quantityManagerService);
                 currentPrimaryData = null;
             } catch (Exception e) {
                 System.out.println(e.getMessage());
@@ -244,7 +549,14 @@ public class InventoryServer {
      * @param value - quantity
      */
     public void setItemQuantity(String id, double value) {
-        inventoryProducts.put(id, value);
+        boolean isPublished = false;
+        while (!isPublished) {
+            CatalogSnapshot current = catalog.get();
+            StockEntry stock = current.get(id);
+            long version = (stock != null) ? stock.getVersion() + 1 : 1;
+            isPublished = publish(current, Collections.singletonMap(id, new StockEntry(value, version)));
+        }
+        hotItemEscrow.reset(id, value);
     }
 
     /**
@@ -253,38 +565,172 @@ public class InventoryServer {
      * @return quantity
      */
     public double getItemQuantity(String id) {
-        Double value = inventoryProducts.get(id);
-        return (value != null) ? value : 0.0;
+        StockEntry entry = catalog.get().get(id);
+        return (entry != null) ? entry.getQuantity() : 0.0;
     }
 
     /**
-     * Set cart item quantity mapping for a particular user
-     * @param userId - user who trying to add to the cart
-     * @param itemId - item id
-     * @param quantity - quantity of the provided item
-     */
-    public void setCartItemQuantity(String userId, String itemId, double quantity) {
-        // Check if the user already has a record
-        if (shoppingCart.containsKey(userId)) {
-            Map<String, Double> userRecord = shoppingCart.get(userId);
-
-            // Check if the item already exists in the user's record
-            if (userRecord.containsKey(itemId)) {
-                // Item exists, append the quantity
-                double existingQuantity = userRecord.get(itemId);
-                userRecord.put(itemId, existingQuantity + quantity);
-            } else {
-                // Item doesn't exist, add a new entry
-                userRecord.put(itemId, quantity);
+     * Get the versioned quantity of an item
+     * @param id - item id
+     * @return versioned quantity, null if the item is unknown
+     */
+    public StockEntry getStockEntry(String id) {
+        return catalog.get().get(id);
+    }
+
+    /**
+     * Get the latest published catalog, a consistent view that later writes leave untouched
+     * @return catalog snapshot
+     */
+    public CatalogSnapshot getCatalogSnapshot() {
+        return catalog.get();
+    }
+
+    /**
+     * Get the items of the latest published catalog ordered by quantity
+     * @return quantity index
+     */
+    public QuantityIndex getQuantityIndex() {
+        return catalog.get().getQuantityIndex();
+    }
+
+    /**
+     * Get the locks on the items of the transactions this server coordinates
+     * @return stock locks
+     */
+    StockLocks getStockLocks() {
+        return stockLocks;
+    }
+
+    /**
+     * Publish the next catalog snapshot, its quantity index included, unless another write was published
+     * since the current one was read; the writer then works its changes out again from the newer snapshot
+     * @param current - snapshot the changes apply to
+     * @param changes - item id -> new versioned quantity
+     * @return whether the snapshot was published
+     */
+    private boolean publish(CatalogSnapshot current, Map<String, StockEntry> changes) {
+        return catalog.compareAndSet(current, current.with(changes));
+    }
+
+    /**
+     * Decrement the quantities of several items at once, provided none of them changed since
+     * the given versions were read and all of them still have enough stock.
+     * Either every item is decremented or none is.
+     * @param quantities - item id -> quantity to take
+     * @param expectedVersions - item id -> version the quantity was checked against
+     * @return null on success, otherwise the id of the first conflicting item
+     */
+    public String decrementItemQuantities(Map<String, Double> quantities, Map<String, Long> expectedVersions) {
+        Map<String, StockEntry> changes;
+        CatalogSnapshot current;
+        do {
+            current = catalog.get();
+            for (Map.Entry<String, Double> entry : quantities.entrySet()) {
+                StockEntry stock = current.get(entry.getKey());
+                Long expectedVersion = expectedVersions.get(entry.getKey());
+                if (stock == null || expectedVersion == null || stock.getVersion() != expectedVersion
+                        || stock.getQuantity() < entry.getValue()) {
+                    return entry.getKey();
+                }
+            }
+
+            // Every item changes in the same snapshot, readers never see half an order
+            changes = new HashMap<>();
+            for (Map.Entry<String, Double> entry : quantities.entrySet()) {
+                StockEntry stock = current.get(entry.getKey());
+                changes.put(entry.getKey(), new StockEntry(stock.getQuantity() - entry.getValue(), stock.getVersion() + 1));
+            }
+        } while (!publish(current, changes));
+        for (Map.Entry<String, StockEntry> change : changes.entrySet()) {
+            hotItemEscrow.reset(change.getKey(), change.getValue().getQuantity());
+        }
+
+        return null;
+    }
+
+    /**
+     * Apply the stock changes worked out by the primary server for a request, all of them or none.
+     * Versioned changes only apply to items still at the version they were computed from.
+     * On success the user's holds on the items are confirmed and the response is kept for retries.
+     * Expired carts only have their items taken out and their holds given back
+     * @param delta - changes of the request
+     * @return null on success, otherwise the id of the first conflicting item
+     * @throws IOException when the order is applied but cannot be written to the order log
+     */
+    public String applyDelta(StateDelta delta) throws IOException {
+        if (delta.isCartExpiry()) {
+            expireCarts(delta.getExpiredCarts());
+            return null;
+        }
+        String conflictingItem = applyStockChanges(delta.getStockChanges());
+        if (conflictingItem == null) {
+            if (!delta.getUserId().isEmpty()) {
+                List<String> itemIds = new ArrayList<>();
+                for (StateDelta.StockChange change : delta.getStockChanges()) {
+                    itemIds.add(change.getItemId());
+                }
+                confirmReservation(delta.getUserId(), itemIds);
+            }
+            deduplicationCache.put(delta.getRequestId(), delta.getResponse());
+            if (delta.isOrder()) {
+                try {
+                    orderLog.append(delta.getRequestId(), delta.getUserId(), delta.getPlacedAt(), delta.getCartItems());
+                } finally {
+                    // Placed either way, the cart is emptied even when the order could not be logged
+                    takeOutOfCart(delta.getUserId(), delta.getCartItems());
+                }
             }
-        } else {
-            // User record doesn't exist, create a new one
-            Map<String, Double> userRecord = new HashMap<>();
-            userRecord.put(itemId, quantity);
-            shoppingCart.put(userId, userRecord);
         }
+
+        return conflictingItem;
     }
 
+    /**
+     * Publish new quantities in a single snapshot, provided every versioned one still matches.
+     * Taken quantities are subtracted whatever the version, their stock was set aside beforehand
+     * @param stockChanges - new or taken quantities
+     * @return null on success, otherwise the id of the first conflicting item
+     */
+    private String applyStockChanges(List<StateDelta.StockChange> stockChanges) {
+        Map<String, StockEntry> changes;
+        CatalogSnapshot current;
+        do {
+            current = catalog.get();
+            changes = new HashMap<>();
+            for (StateDelta.StockChange change : stockChanges) {
+                StockEntry stock = current.get(change.getItemId());
+                long version = (stock != null) ? stock.getVersion() : 0;
+                if (change.getExpectedVersion() == StateDelta.TAKEN) {
+                    double quantity = (stock != null) ? stock.getQuantity() : 0;
+                    changes.put(change.getItemId(), new StockEntry(quantity - change.getQuantity(), version + 1));
+                    continue;
+                }
+                if (change.getExpectedVersion() != StateDelta.ANY_VERSION && change.getExpectedVersion() != version) {
+                    return change.getItemId();
+                }
+                changes.put(change.getItemId(), new StockEntry(change.getQuantity(), version + 1));
+            }
+        } while (!publish(current, changes));
+        // Taken stock is settled by its order afterwards. On the primary server the stock locks keep a reset
+        // of an item apart from the orders taking it, so a reset never counts a sold quantity twice
+        for (StateDelta.StockChange change : stockChanges) {
+            if (change.getExpectedVersion() != StateDelta.TAKEN) {
+                hotItemEscrow.reset(change.getItemId(), change.getQuantity());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the stock of the hot items set aside for orders.
+     *
+     * @return hot item escrow.
+     */
+    public HotItemEscrow getHotItemEscrow() {
+        return hotItemEscrow;
+    }
 
     /**
      * Get user cart based on the user id
@@ -292,6 +738,150 @@ public class InventoryServer {
      * @return user cart
      */
     public Map<String, Double> getUserCart(String userId) {
-        return shoppingCart.get(userId);
+        return cartManagerService.getUserCart(userId);
+    }
+
+    /**
+     * Take the ordered items out of a user's cart
+     * @param userId - user id
+     * @param items - item id -> quantity ordered
+     */
+    public void takeOutOfCart(String userId, Map<String, Double> items) {
+        awaitCartChanges(Collections.singletonList(cartManagerService.takeOutOfCart(userId, items)));
+    }
+
+    /**
+     * Drop the items of the expired carts and give back the stock held for them
+     * @param expiredCarts - user id -> items in the user's cart when it expired
+     */
+    private void expireCarts(Map<String, Map<String, Double>> expiredCarts) {
+        List<Future<?>> changes = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Double>> cart : expiredCarts.entrySet()) {
+            changes.add(cartManagerService.takeOutOfCart(cart.getKey(), cart.getValue()));
+            if (stockReservations != null) {
+                for (Map.Entry<String, Double> item : cart.getValue().entrySet()) {
+                    stockReservations.release(cart.getKey(), item.getKey(), item.getValue());
+                }
+            }
+        }
+        awaitCartChanges(changes);
+    }
+
+    /**
+     * Wait on the primary server until cart changes queued on their partitions are applied, so the user's
+     * next request sees them. Secondary servers leave them to the partitions, which may still be waiting
+     * for decisions that arrive after the one applied here
+     * @param changes - queued cart changes
+     */
+    private void awaitCartChanges(List<Future<?>> changes) {
+        if (!isPrimary()) {
+            return;
+        }
+        try {
+            for (Future<?> change : changes) {
+                change.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.out.println("Error while taking items out of a cart: " + e.getCause().getMessage());
+            e.getCause().printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the table of committed request outcomes.
+     *
+     * @return deduplication cache.
+     */
+    public DeduplicationCache getDeduplicationCache() {
+        return deduplicationCache;
+    }
+
+    /**
+     * Checks whether adding to the cart holds stock
+     * @return whether reservations are enabled
+     */
+    public boolean isReservationEnabled() {
+        return stockReservations != null;
+    }
+
+    /**
+     * Hold stock of an item for a user, if enough of it is not held for others
+     * @param userId - user id
+     * @param itemId - item id
+     * @param quantity - quantity to hold
+     * @return whether the stock was held
+     */
+    public boolean tryReserveStock(String userId, String itemId, double quantity) {
+        return stockReservations.tryReserve(userId, itemId, quantity, getItemQuantity(itemId));
+    }
+
+    /**
+     * Hold stock of an item for a user as the primary server did, without checking what is left
+     * @param userId - user id
+     * @param itemId - item id
+     * @param quantity - quantity to hold
+     */
+    public void holdStock(String userId, String itemId, double quantity) {
+        stockReservations.hold(userId, itemId, quantity);
+    }
+
+    /**
+     * Give back stock held for a user
+     * @param userId - user id
+     * @param itemId - item id
+     * @param quantity - quantity to give back
+     */
+    public void releaseStock(String userId, String itemId, double quantity) {
+        stockReservations.release(userId, itemId, quantity);
+    }
+
+    /**
+     * Drop the holds of a user on checked out items
+     * @param userId - user id
+     * @param itemIds - checked out items
+     */
+    public void confirmReservation(String userId, Collection<String> itemIds) {
+        if (stockReservations != null) {
+            stockReservations.confirm(userId, itemIds);
+        }
+    }
+
+    /**
+     * Get the quantity of an item held for a user
+     * @param userId - user id
+     * @param itemId - item id
+     * @return held quantity, 0 when reservations are disabled
+     */
+    public double getHeldQuantity(String userId, String itemId) {
+        return (stockReservations != null) ? stockReservations.getHeld(userId, itemId) : 0.0;
+    }
+
+    /**
+     * Get the quantity of an item a user can buy, i.e. the stock not held for other users
+     * @param itemId - item id
+     * @param userId - user id
+     * @return available quantity
+     */
+    public double getAvailableQuantity(String itemId, String userId) {
+        return getAvailableQuantity(catalog.get(), itemId, userId);
+    }
+
+    /**
+     * Get the quantity of an item a user can buy as of a catalog snapshot
+     * @param snapshot - catalog snapshot
+     * @param itemId - item id
+     * @param userId - user id
+     * @return available quantity
+     */
+    public double getAvailableQuantity(CatalogSnapshot snapshot, String itemId, String userId) {
+        StockEntry stock = snapshot.get(itemId);
+        double quantity = (stock != null) ? stock.getQuantity() : 0.0;
+        if (stockReservations != null) {
+            quantity -= stockReservations.getHeldByOthers(itemId, userId);
+        }
+
+        return quantity;
     }
 }
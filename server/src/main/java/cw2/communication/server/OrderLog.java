@@ -0,0 +1,362 @@
+package cw2.communication.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only history of the orders committed on this server, kept on disk in segment files.
+ * Each order is a record of its length, a checksum and the order itself, written at the end of the
+ * latest segment; once a segment reaches its size a new one is started, named after the log offset it starts at.
+ * The offsets of every user's orders are indexed in memory, so a page of a user's history is a binary search
+ * in that index followed by one positional read per order. The index is rebuilt from the segments on start.
+ */
+public class OrderLog {
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Length and checksum ahead of each record
+    private static final int HEADER_SIZE = 8;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final boolean isSynced;
+    // This keeps track of {first offset -> segment} pairs, the last one being written to
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<>();
+    // This keeps track of {user_id -> offsets of the user's orders, oldest first} pairs
+    private final Map<String, OffsetList> userIndex = new HashMap<>();
+    private FileChannel activeSegment;
+    private long activeSegmentStart;
+    private long endOffset = 0;
+
+    /**
+     * A committed order
+     */
+    public static final class Order {
+        private final long offset;
+        private final String orderId;
+        private final String userId;
+        private final long placedAt;
+        private final Map<String, Double> items;
+        // Length of the record on disk, header included
+        private final int recordSize;
+
+        private Order(long offset, String orderId, String userId, long placedAt, Map<String, Double> items,
+                      int recordSize) {
+            this.offset = offset;
+            this.orderId = orderId;
+            this.userId = userId;
+            this.placedAt = placedAt;
+            this.items = items;
+            this.recordSize = recordSize;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public String getOrderId() {
+            return orderId;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public long getPlacedAt() {
+            return placedAt;
+        }
+
+        public Map<String, Double> getItems() {
+            return items;
+        }
+    }
+
+    /**
+     * Offsets of one user's orders, without boxing each of them
+     */
+    private static final class OffsetList {
+        private long[] offsets = new long[4];
+        private int size = 0;
+
+        void add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+    }
+
+    /**
+     * OrderLog Constructor. Opens the segments already in the directory and indexes their orders.
+     *
+     * @param directory    Directory of the segment files.
+     * @param segmentBytes Size a segment grows to before the next one is started.
+     * @param isSynced     Whether every order is flushed to disk before the commit completes.
+     * @throws IOException when the segments cannot be read or opened.
+     */
+    public OrderLog(Path directory, long segmentBytes, boolean isSynced) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.isSynced = isSynced;
+        Files.createDirectories(directory);
+
+        List<Long> segmentStarts = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segmentStarts.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(segmentStarts);
+        for (long segmentStart : segmentStarts) {
+            FileChannel segment = FileChannel.open(segmentPath(segmentStart), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            segments.put(segmentStart, segment);
+            endOffset = segmentStart + indexSegment(segmentStart, segment);
+        }
+
+        if (segments.isEmpty()) {
+            startSegment();
+        } else {
+            activeSegmentStart = segments.lastKey();
+            activeSegment = segments.lastEntry().getValue();
+            // A torn record at the end is cut off, the next order is written in its place
+            activeSegment.truncate(endOffset - activeSegmentStart);
+        }
+    }
+
+    /**
+     * Appends a committed order.
+     *
+     * @param orderId  order id, the request id of the order.
+     * @param userId   user id.
+     * @param placedAt time the primary server placed the order at, in milliseconds.
+     * @param items    item id -> quantity bought.
+     * @throws IOException when the order cannot be written, the next order is written in its place.
+     */
+    public synchronized void append(String orderId, String userId, long placedAt, Map<String, Double> items)
+            throws IOException {
+        ByteBuffer record = toRecord(orderId, userId, placedAt, items);
+        if (endOffset > activeSegmentStart && endOffset - activeSegmentStart + record.remaining() > segmentBytes) {
+            startSegment();
+        }
+
+        long offset = endOffset;
+        while (record.hasRemaining()) {
+            activeSegment.write(record, offset - activeSegmentStart + record.position());
+        }
+        if (isSynced) {
+            activeSegment.force(false);
+        }
+        endOffset = offset + record.limit();
+        userIndex.computeIfAbsent(userId, key -> new OffsetList()).add(offset);
+    }
+
+    /**
+     * Gets a page of a user's orders, latest first.
+     *
+     * @param userId       user id.
+     * @param beforeOffset only orders logged before this offset, -1 for the latest ones.
+     * @param pageSize     largest number of orders returned.
+     * @return orders, latest first.
+     * @throws IOException when an order cannot be read.
+     */
+    public List<Order> getOrders(String userId, long beforeOffset, int pageSize) throws IOException {
+        long[] pageOffsets;
+        synchronized (this) {
+            OffsetList offsets = userIndex.get(userId);
+            if (offsets == null) {
+                return Collections.emptyList();
+            }
+            int end = offsets.size;
+            if (beforeOffset >= 0) {
+                int position = Arrays.binarySearch(offsets.offsets, 0, offsets.size, beforeOffset);
+                end = (position >= 0) ? position : -position - 1;
+            }
+            int start = Math.max(0, end - pageSize);
+            pageOffsets = Arrays.copyOfRange(offsets.offsets, start, end);
+        }
+
+        // Read outside the lock, appends never touch a record once it is indexed
+        List<Order> orders = new ArrayList<>(pageOffsets.length);
+        for (int i = pageOffsets.length - 1; i >= 0; i--) {
+            orders.add(readOrder(pageOffsets[i]));
+        }
+
+        return orders;
+    }
+
+    /**
+     * Closes the segment files.
+     */
+    public synchronized void close() {
+        for (FileChannel segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                System.out.println("Error while closing the order log: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment at the end of the log.
+     *
+     * @throws IOException when the segment cannot be created.
+     */
+    private void startSegment() throws IOException {
+        if (activeSegment != null) {
+            activeSegment.force(false);
+        }
+        activeSegmentStart = endOffset;
+        activeSegment = FileChannel.open(segmentPath(endOffset), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segments.put(endOffset, activeSegment);
+    }
+
+    /**
+     * Indexes the orders of a segment.
+     *
+     * @param segmentStart offset the segment starts at.
+     * @param segment      segment file.
+     * @return length of the well formed records of the segment.
+     * @throws IOException when the segment cannot be read.
+     */
+    private long indexSegment(long segmentStart, FileChannel segment) throws IOException {
+        long position = 0;
+        while (true) {
+            Order order = readRecord(segment, segmentStart, position);
+            if (order == null) {
+                return position;
+            }
+            userIndex.computeIfAbsent(order.getUserId(), key -> new OffsetList()).add(segmentStart + position);
+            position += order.recordSize;
+        }
+    }
+
+    /**
+     * Reads the order logged at an offset.
+     *
+     * @param offset log offset.
+     * @return the order.
+     * @throws IOException when the order cannot be read.
+     */
+    private Order readOrder(long offset) throws IOException {
+        Map.Entry<Long, FileChannel> segment;
+        synchronized (this) {
+            segment = segments.floorEntry(offset);
+        }
+        Order order = readRecord(segment.getValue(), segment.getKey(), offset - segment.getKey());
+        if (order == null) {
+            throw new IOException("No order at offset " + offset);
+        }
+
+        return order;
+    }
+
+    /**
+     * Reads a record of a segment.
+     *
+     * @param segment      segment file.
+     * @param segmentStart offset the segment starts at.
+     * @param position     position of the record in the segment.
+     * @return the order, null past the last record or for a torn one.
+     * @throws IOException when the segment cannot be read.
+     */
+    private static Order readRecord(FileChannel segment, long segmentStart, long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(segment, header, position)) {
+            return null;
+        }
+        int length = header.getInt(0);
+        int checksum = header.getInt(4);
+        if (length <= 0 || length > segment.size() - position - HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        if (!readFully(segment, payload, position + HEADER_SIZE)) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, length);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()))) {
+            String orderId = in.readUTF();
+            String userId = in.readUTF();
+            long placedAt = in.readLong();
+            int itemCount = in.readInt();
+            if (itemCount < 0) {
+                return null;
+            }
+            Map<String, Double> items = new LinkedHashMap<>();
+            for (int i = 0; i < itemCount; i++) {
+                items.put(in.readUTF(), in.readDouble());
+            }
+            return new Order(segmentStart + position, orderId, userId, placedAt, items, HEADER_SIZE + length);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static boolean readFully(FileChannel segment, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (segment.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Encodes an order.
+     *
+     * @return the record, header included.
+     */
+    private static ByteBuffer toRecord(String orderId, String userId, long placedAt, Map<String, Double> items)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(orderId);
+            out.writeUTF(userId);
+            out.writeLong(placedAt);
+            out.writeInt(items.size());
+            for (Map.Entry<String, Double> item : items.entrySet()) {
+                out.writeUTF(item.getKey());
+                out.writeDouble(item.getValue());
+            }
+        }
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+
+        return record;
+    }
+
+    private Path segmentPath(long segmentStart) {
+        return directory.resolve(String.format("%020d", segmentStart) + SEGMENT_SUFFIX);
+    }
+}
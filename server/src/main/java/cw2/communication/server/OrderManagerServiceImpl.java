@@ -1,28 +1,43 @@
 package cw2.communication.server;
 
 import cw2.communication.grpc.generated.*;
-import cw2.communication.distributedTxProtocol.coordinator.TwoPhaseCommitCoordinator;
 import cw2.communication.distributedTxProtocol.listener.TwoPhaseCommitListener;
-import cw2.communication.distributedTxProtocol.participant.TwoPhaseCommitParticipant;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import org.apache.zookeeper.KeeperException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 /**
- * Implement order manager grpc service
+ * Implement order manager grpc service.
+ * Only cart updates go through a prepare and decision pipeline. With the grpc protocol orders on different
+ * items are replicated concurrently and an order whose items another write holds is turned down at once;
+ * with the zookeeper protocol orders share the server's single two-phase commit session and tempOrder slot,
+ * so they run one at a time.
  */
 public class OrderManagerServiceImpl extends OrderManagerServiceGrpc.OrderManagerServiceImplBase
         implements TwoPhaseCommitListener {
 
+    private static final String ABORT_RESPONSE = "Transaction Aborted by the Coordinator";
+    private static final String BUSY_RESPONSE =
+            "Order could not be placed, its items are being changed by another request";
+    private static final int DEFAULT_ORDER_PAGE_SIZE = 20;
+    private static final int MAX_ORDER_PAGE_SIZE = 1000;
+
     private final InventoryServer server;
+    private final PendingRequests pendingRequests = new PendingRequests();
+    private final AdmissionController admissionController = AdmissionController.forService("placeOrder");
     private PlaceOrderRequest tempOrder;
+    private Map<String, Double> tempCart;
+    private Map<String, Long> tempStockVersions;
     private boolean isOrderFromClient = false;
     private StreamObserver<PlaceOrderResponse> responseObserver;
 
@@ -37,8 +52,7 @@ public class OrderManagerServiceImpl extends OrderManagerServiceGrpc.OrderManage
         this.server = server;
         String[] primaryData = this.server.getCurrentPrimaryData();
         if (primaryData != null && primaryData.length > 0 && !this.server.isPrimary()) {
-            ManagedChannel channel = ManagedChannelBuilder.forAddress(primaryData[0],
-                    Integer.parseInt(primaryData[1])).usePlaintext().build();
+            ManagedChannel channel = GrpcTransport.getChannel(primaryData[0], Integer.parseInt(primaryData[1]));
             clientStub = OrderManagerServiceGrpc.newBlockingStub(channel);
         }
     }
@@ -49,8 +63,9 @@ public class OrderManagerServiceImpl extends OrderManagerServiceGrpc.OrderManage
      * receive from clients to the primary server.
      *
      * @param request The order data to be sent.
+     * @return response of the primary server.
      */
-    private void sendDataToPrimary(PlaceOrderRequest request) {
+    private PlaceOrderResponse sendDataToPrimary(PlaceOrderRequest request) {
         System.out.println("Sending received data to the primary server...");
         String[] currentLeaderData = server.getCurrentPrimaryData();
         String IPAddress = currentLeaderData[0];
@@ -60,9 +75,10 @@ public class OrderManagerServiceImpl extends OrderManagerServiceGrpc.OrderManage
                 .setUserId(request.getUserId())
                 .setIsSentByPrimary(false)
                 .setIsSentBySecondary(true)
+                .setRequestId(request.getRequestId())
                 .build();
 
-        sendDataToServer(newRequest, IPAddress, port);
+        return sendDataToServer(newRequest, IPAddress, port);
     }
 
     /**
@@ -71,103 +87,310 @@ public class OrderManagerServiceImpl extends OrderManagerServiceGrpc.OrderManage
      * @param request   Request object
      * @param ipAddress Server IP address.
      * @param port      Serer port.
+     * @return response of the server.
      */
-    private void sendDataToServer(PlaceOrderRequest request, String ipAddress, int port) {
-        ManagedChannel channel = ManagedChannelBuilder.forAddress(ipAddress, port).usePlaintext().build();
+    private PlaceOrderResponse sendDataToServer(PlaceOrderRequest request, String ipAddress, int port) {
+        ManagedChannel channel = GrpcTransport.getChannel(ipAddress, port);
         clientStub = OrderManagerServiceGrpc.newBlockingStub(channel);
 
-        PlaceOrderResponse response = clientStub.placeOrder(request);
+        return clientStub.placeOrder(request);
     }
 
     /**
-     * Sends data to all the secondary servers registered
-     *
-     * @param request data.
-     * @throws KeeperException      Exception thrown by Zookeeper.
-     * @throws InterruptedException Exception thrown when secondary servers data is obtained.
+     * Is the user cart items are available to buy in the inventory
+     * @param userId
+     * @return whether the order can be placed
      */
-    private void sendDataToSecondaryServers(PlaceOrderRequest request) throws KeeperException, InterruptedException {
-        System.out.println("Sending data to the secondary servers...");
-        List<String[]> secondaryServers = server.getAllServersData();
-
-        for (String[] secondaryServer : secondaryServers) {
-            String ipAddress = secondaryServer[0];
-            int port = Integer.parseInt(secondaryServer[1]);
-            sendDataToServer(request, ipAddress, port);
+    private boolean isProcessable(String userId) {
+        if (isCartEmpty(server.getUserCart(userId))) {
+            System.out.println(userId + "'s cart is empty");
+            return false;
         }
+        return findUnavailableItem(userId) == null;
     }
 
     /**
-     * Is the user cart items are available to buy in the inventory
+     * Checks in a single pass whether the user cart items are available to buy in the inventory,
+     * remembering the cart and the stock versions it was checked against
      * @param userId
-     * @return
+     * @return null if every item is available, otherwise the id of the first unavailable item
      */
-    private boolean isProcessable(String userId) {
-        boolean isProcessable = true;
-        System.out.println("userId : "+ userId);
+    private String findUnavailableItem(String userId) {
         Map<String, Double> userCart = server.getUserCart(userId);
-        System.out.println("userCart : "+ userCart);
+        if (userCart == null) {
+            // Cleared by an order or expired meanwhile
+            userCart = Collections.emptyMap();
+        }
+        Map<String, Long> stockVersions = new HashMap<>();
+        String unavailableItem = findUnavailableItem(userId, userCart, server.getCatalogSnapshot(), stockVersions);
+        if (unavailableItem == null) {
+            tempCart = userCart;
+            tempStockVersions = stockVersions;
+        }
 
+        return unavailableItem;
+    }
+
+    /**
+     * Checks whether a user has nothing to order
+     * @param userCart - item id -> quantity to buy, null if the user has no cart
+     * @return whether the cart is empty
+     */
+    private static boolean isCartEmpty(Map<String, Double> userCart) {
+        return userCart == null || userCart.isEmpty();
+    }
+
+    /**
+     * Checks the user cart items against one catalog snapshot, so every item is checked against the same catalog
+     * @param userId
+     * @param userCart - item id -> quantity to buy
+     * @param catalog - catalog snapshot
+     * @param stockVersions - filled with item id -> version each item was checked against
+     * @return null if every item is available, otherwise the id of the first unavailable item
+     */
+    private String findUnavailableItem(String userId, Map<String, Double> userCart, CatalogSnapshot catalog,
+                                       Map<String, Long> stockVersions) {
         for (Map.Entry<String, Double> entry : userCart.entrySet()) {
-            System.out.println("entry : " + entry);
             String itemId = entry.getKey();
             Double qty = entry.getValue();
 
-            double availableQuantity = server.getItemQuantity(itemId);
-            System.out.println("availableQuantity : " + availableQuantity);
-            if(availableQuantity < qty) {
-                isProcessable = false;
+            StockEntry stock = catalog.get(itemId);
+            if (stock == null || !isAvailable(userId, itemId, qty, stock, catalog)) {
+                System.out.println("Not enough stock of " + itemId);
+                return itemId;
             }
+            stockVersions.put(itemId, stock.getVersion());
         }
 
-        return isProcessable;
+        return null;
     }
 
     /**
-     * Grpc method for placing the order.
+     * Checks whether a user can buy a quantity of an item. Stock held for the user since the add to cart
+     * is confirmed as it is, without checking it against the holds of other users again
+     * @param userId
+     * @param itemId - item id
+     * @param qty - quantity to buy
+     * @param stock - stock of the item in the catalog snapshot
+     * @param catalog - catalog snapshot
+     * @return whether the quantity can be bought
+     */
+    private boolean isAvailable(String userId, String itemId, double qty, StockEntry stock, CatalogSnapshot catalog) {
+        if (server.getHeldQuantity(userId, itemId) >= qty) {
+            // Only a quantity update cutting the stock below what is held can take a hold away
+            return stock.getQuantity() >= qty;
+        }
+
+        return server.getAvailableQuantity(catalog, itemId, userId) >= qty;
+    }
+
+    /**
+     * Works out the stock left once the order is placed, for the secondary servers to apply as it is;
+     * called with the cart items locked
+     * @param request - order request
+     * @param userCart - cart of the user, as its items were locked
+     * @param reservations - filled with item id -> stock taken from the escrow of the hot items
+     * @return the stock changes, null if the order cannot be placed
+     */
+    private StateDelta buildOrderDelta(PlaceOrderRequest request, Map<String, Double> userCart,
+                                       Map<String, SplitCounter.Reservation> reservations) {
+        String userId = request.getUserId();
+        CatalogSnapshot catalog = server.getCatalogSnapshot();
+        Map<String, Long> stockVersions = new HashMap<>();
+        if (isCartEmpty(userCart) || findUnavailableItem(userId, userCart, catalog, stockVersions) != null) {
+            return null;
+        }
+
+        HotItemEscrow hotItemEscrow = server.getHotItemEscrow();
+        List<StateDelta.StockChange> stockChanges = new ArrayList<>();
+        for (Map.Entry<String, Double> entry : userCart.entrySet()) {
+            StockEntry stock = catalog.get(entry.getKey());
+            if (!hotItemEscrow.isEscrowed(entry.getKey(), entry.getValue())) {
+                stockChanges.add(new StateDelta.StockChange(entry.getKey(), stock.getVersion(),
+                        stock.getQuantity() - entry.getValue()));
+                continue;
+            }
+            SplitCounter.Reservation reservation =
+                    hotItemEscrow.tryTake(entry.getKey(), entry.getValue().longValue(), stock.getQuantity());
+            if (reservation == null) {
+                System.out.println("Not enough stock of " + entry.getKey() + " left to take");
+                releaseTakenStock(reservations, false);
+                return null;
+            }
+            // Set aside, so the change holds whatever other orders commit first
+            reservations.put(entry.getKey(), reservation);
+            stockChanges.add(new StateDelta.StockChange(entry.getKey(), StateDelta.TAKEN, entry.getValue()));
+        }
+
+        return StateDelta.ofOrder(request.getRequestId(), userId + "'s orders are placed successfully!", userId,
+                stockChanges, userCart, System.currentTimeMillis());
+    }
+
+    /**
+     * Places the order over the grpc replication service. The stock changes are worked out here
+     * and the secondary servers apply them without checking the order again. The cart items stay
+     * locked until the order is applied here, so no other transaction changes their stock meanwhile;
+     * an order whose items are already locked is turned down at once.
+     *
+     * @param request Request.
+     * @return response to the order.
+     * @throws KeeperException      Exception thrown by Zookeeper.
+     * @throws InterruptedException when interrupted while waiting for votes.
+     * @throws IOException          when the order is placed but cannot be written to the order log.
+     */
+    private String replicateOrder(PlaceOrderRequest request)
+            throws KeeperException, InterruptedException, IOException {
+        Map<String, Double> userCart = server.getUserCart(request.getUserId());
+        if (isCartEmpty(userCart)) {
+            System.out.println(request.getUserId() + "'s cart is empty");
+            return request.getUserId() + "'s cart is empty";
+        }
+        List<String> exclusiveItemIds = new ArrayList<>();
+        List<String> sharedItemIds = new ArrayList<>();
+        for (Map.Entry<String, Double> entry : userCart.entrySet()) {
+            // Taking from a hot item's escrow commutes with the other orders taking from it
+            if (server.getHotItemEscrow().isEscrowed(entry.getKey(), entry.getValue())) {
+                sharedItemIds.add(entry.getKey());
+            } else {
+                exclusiveItemIds.add(entry.getKey());
+            }
+        }
+
+        StockLocks.Held locks = server.getStockLocks().tryLock(exclusiveItemIds, sharedItemIds);
+        if (locks == null) {
+            // Another write of these items is still being decided, turned down instead of waiting for it
+            System.out.println("Items of " + request.getUserId() + "'s order are being changed by another request");
+            return BUSY_RESPONSE;
+        }
+        try (StockLocks.Held ignored = locks) {
+            Map<String, SplitCounter.Reservation> reservations = new HashMap<>();
+            StateDelta delta = buildOrderDelta(request, userCart, reservations);
+            if (delta == null) {
+                // Turned down before anything is sent out
+                System.out.println(ABORT_RESPONSE);
+                return ABORT_RESPONSE;
+            }
+
+            DeltaCommit commit = new DeltaCommit(server, delta);
+            try {
+                ReplicationCoordinator.PreparedTransaction transaction = server.getReplicationCoordinator()
+                        .prepare(PrepareRequest.newBuilder().setDelta(delta.toByteString()));
+                if (!server.getReplicationCoordinator().decide(transaction, true, commit)) {
+                    return ABORT_RESPONSE;
+                }
+                if (commit.getLogError() != null) {
+                    throw commit.getLogError();
+                }
+
+                return commit.isApplied() ? delta.getResponse() : conflictResponse(commit.getConflictingItem());
+            } finally {
+                // Settled once the catalog holds the sale, still under the locks so no reset comes in between
+                releaseTakenStock(reservations, commit.isApplied());
+            }
+        }
+    }
+
+    /**
+     * Settles the stock of hot items taken for an order, or gives it back when the order was not placed
+     * @param reservations - item id -> stock taken
+     * @param isSold - whether the order was applied
+     */
+    private void releaseTakenStock(Map<String, SplitCounter.Reservation> reservations, boolean isSold) {
+        for (Map.Entry<String, SplitCounter.Reservation> entry : reservations.entrySet()) {
+            server.getHotItemEscrow().release(entry.getKey(), entry.getValue(), isSold);
+        }
+    }
+
+    /**
+     * Response to an order whose stock changed while it was being placed
+     * @param conflictingItem - item id
+     * @return response message
+     */
+    private static String conflictResponse(String conflictingItem) {
+        return "Order could not be placed, stock of " + conflictingItem + " is no longer available";
+    }
+
+    /**
+     * Grpc method for paging through a user's order history, latest first.
+     * Answered by every server from its own order log.
      *
      * @param request          Request.
      * @param responseObserver Stream observer used to return data.
      */
     @Override
-    public void placeOrder(PlaceOrderRequest request, StreamObserver<PlaceOrderResponse> responseObserver) {
-        System.out.println("placing order...");
-        if (server.isPrimary()) {
-            // If the server is the primary server.
+    public void getOrders(GetOrdersRequest request, StreamObserver<GetOrdersResponse> responseObserver) {
+        int pageSize = (request.getPageSize() > 0) ? Math.min(request.getPageSize(), MAX_ORDER_PAGE_SIZE)
+                : DEFAULT_ORDER_PAGE_SIZE;
+        long beforeOffset = -1;
+        if (!request.getPageToken().isEmpty()) {
             try {
-                System.out.println("Updating trade order as the primary server...");
-                PlaceOrderRequest newRequest = PlaceOrderRequest
-                        .newBuilder()
-                        .setUserId(request.getUserId())
-                        .setIsSentByPrimary(true)
-                        .setIsSentBySecondary(false)
-                        .build();
-
-                startTwoPhaseCommit(request);
-                sendDataToSecondaryServers(newRequest);
-
-                if (!request.getIsSentBySecondary()) {
-                    this.responseObserver = responseObserver;
-                    this.isOrderFromClient = true;
-                }
+                beforeOffset = Long.parseLong(request.getPageToken());
+            } catch (NumberFormatException e) {
+                responseObserver.onError(Status.INVALID_ARGUMENT
+                        .withDescription("Invalid page token " + request.getPageToken())
+                        .asRuntimeException());
+                return;
+            }
+        }
 
-                // Start two-phase commit
-                if (isProcessable(request.getUserId())) {
-                    ((TwoPhaseCommitCoordinator) server.getOrderManagerTransaction()).perform();
-                } else {
-                    ((TwoPhaseCommitCoordinator) server.getOrderManagerTransaction()).sendGlobalAbort();
+        try {
+            // One more than asked for, to know whether a next page follows
+            List<OrderLog.Order> orders = server.getOrderLog().getOrders(request.getUserId(), beforeOffset, pageSize + 1);
+            GetOrdersResponse.Builder response = GetOrdersResponse.newBuilder();
+            for (OrderLog.Order order : orders.subList(0, Math.min(pageSize, orders.size()))) {
+                OrderRecord.Builder record = OrderRecord.newBuilder()
+                        .setOrderId(order.getOrderId())
+                        .setPlacedAt(order.getPlacedAt());
+                for (Map.Entry<String, Double> item : order.getItems().entrySet()) {
+                    record.addItems(ItemRequest.newBuilder().setId(item.getKey()).setQuantity(item.getValue()));
                 }
+                response.addOrders(record);
+            }
+            if (orders.size() > pageSize) {
+                response.setNextPageToken(String.valueOf(orders.get(pageSize - 1).getOffset()));
+            }
 
-                if (request.getIsSentBySecondary()) {
-                    responseObserver.onNext(PlaceOrderResponse.newBuilder().build());
-                    responseObserver.onCompleted();
-                }
-            } catch (Exception e) {
-                System.out.println("Error while updating order: " + e.getMessage());
-                e.printStackTrace();
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        } catch (IOException e) {
+            System.out.println("Error while reading the orders of " + request.getUserId() + ": " + e.getMessage());
+            e.printStackTrace();
 
-                responseObserver.onError(Status.INTERNAL.withDescription("Error occurred, placing order").asRuntimeException());
+            responseObserver.onError(Status.INTERNAL.withDescription("Error occurred, reading orders").asRuntimeException());
+        }
+    }
+
+    /**
+     * Grpc method for placing the order.
+     *
+     * @param request          Request.
+     * @param responseObserver Stream observer used to return data.
+     */
+    @Override
+    public void placeOrder(PlaceOrderRequest request, StreamObserver<PlaceOrderResponse> responseObserver) {
+        System.out.println("placing order...");
+        String previousResponse = server.getDeduplicationCache().get(request.getRequestId());
+        if (!request.getIsSentByPrimary() && previousResponse != null) {
+            // A retry of an already committed request, answer with the original outcome
+            System.out.println("Request " + request.getRequestId() + " was already processed");
+            responseObserver.onNext(PlaceOrderResponse.newBuilder().setResponse(previousResponse).build());
+            responseObserver.onCompleted();
+            return;
+        }
 
+        if (server.isPrimary()) {
+            // If the server is the primary server.
+            try {
+                pendingRequests.start(request.getRequestId());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                responseObserver.onError(Status.CANCELLED.withDescription("Interrupted while placing order").asRuntimeException());
+                return;
+            }
+            try {
+                placeOrderAsPrimary(request, responseObserver);
+            } finally {
+                pendingRequests.finish(request.getRequestId());
             }
         } else {
             // If the server is a secondary server.
@@ -176,13 +399,13 @@ public class OrderManagerServiceImpl extends OrderManagerServiceGrpc.OrderManage
                 System.out.println("Updating trade order on a secondary server, " +
                         "on the primary server's instruction...");
 
-                startTwoPhaseCommit(request);
+                startTwoPhaseCommit(request, request.getTransactionId());
 
                 // Start two-phase commit
                 if (isProcessable(request.getUserId())) {
-                    ((TwoPhaseCommitParticipant) server.getOrderManagerTransaction()).voteCommit();
+                    server.getOrderManagerParticipant().voteCommit();
                 } else {
-                    ((TwoPhaseCommitParticipant) server.getOrderManagerTransaction()).voteAbort();
+                    server.getOrderManagerParticipant().voteAbort();
                 }
 
                 responseObserver.onNext(PlaceOrderResponse.newBuilder().build());
@@ -191,30 +414,136 @@ public class OrderManagerServiceImpl extends OrderManagerServiceGrpc.OrderManage
                 // If the data is sent by a client.
                 this.isOrderFromClient = true;
                 this.responseObserver = responseObserver;
-                sendDataToPrimary(request);
+                PlaceOrderResponse response;
+                try {
+                    response = sendDataToPrimary(request);
+                } catch (StatusRuntimeException e) {
+                    // Pass the primary server's rejection, along with its retry hint, back to the client
+                    System.out.println("Error while forwarding to the primary server: " + e.getMessage());
+                    this.responseObserver = null;
+                    this.isOrderFromClient = false;
+                    responseObserver.onError(e);
+                    return;
+                }
+                if (!response.getResponse().isEmpty()) {
+                    // The primary server answered a retry on its own, no transaction will follow
+                    this.responseObserver = null;
+                    this.isOrderFromClient = false;
+                    responseObserver.onNext(response);
+                    responseObserver.onCompleted();
+                }
             }
         }
     }
 
+    /**
+     * Processes a request as the primary server, once no other attempt of it is running.
+     *
+     * @param request          Request.
+     * @param responseObserver Stream observer used to return data.
+     */
+    private void placeOrderAsPrimary(PlaceOrderRequest request, StreamObserver<PlaceOrderResponse> responseObserver) {
+        String previousResponse = server.getDeduplicationCache().get(request.getRequestId());
+        if (previousResponse != null) {
+            // Committed by an attempt that was still running when this retry arrived
+            System.out.println("Request " + request.getRequestId() + " was already processed");
+            responseObserver.onNext(PlaceOrderResponse.newBuilder().setResponse(previousResponse).build());
+            responseObserver.onCompleted();
+            return;
+        }
+
+        if (!admissionController.tryAdmit()) {
+            responseObserver.onError(admissionController.rejection());
+            return;
+        }
+        try {
+            System.out.println("Updating trade order as the primary server...");
+            if (server.isDirectReplication()) {
+                // Answered to secondary servers as well, they pass the response on to their client
+                String response = replicateOrder(request);
+                responseObserver.onNext(PlaceOrderResponse.newBuilder().setResponse(response).build());
+                responseObserver.onCompleted();
+                return;
+            }
+
+            String transactionId = String.valueOf(UUID.randomUUID());
+            PlaceOrderRequest newRequest = PlaceOrderRequest
+                    .newBuilder()
+                    .setUserId(request.getUserId())
+                    .setIsSentByPrimary(true)
+                    .setIsSentBySecondary(false)
+                    .setRequestId(request.getRequestId())
+                    .setTransactionId(transactionId)
+                    .build();
+
+            startTwoPhaseCommit(request, transactionId);
+            if (!request.getIsSentBySecondary()) {
+                this.responseObserver = responseObserver;
+                this.isOrderFromClient = true;
+            }
+
+            int participantCount = SecondaryFanOut.<PlaceOrderRequest, PlaceOrderResponse>send(server, newRequest,
+                    (channel, secondaryRequest, observer) ->
+                            OrderManagerServiceGrpc.newStub(channel).placeOrder(secondaryRequest, observer));
+
+            // Start two-phase commit
+            if (isProcessable(request.getUserId())) {
+                server.getOrderManagerCoordinator().perform(participantCount);
+            } else {
+                server.getOrderManagerCoordinator().abort();
+            }
+
+            if (request.getIsSentBySecondary()) {
+                responseObserver.onNext(PlaceOrderResponse.newBuilder().build());
+                responseObserver.onCompleted();
+            }
+        } catch (Exception e) {
+            System.out.println("Error while updating order: " + e.getMessage());
+            e.printStackTrace();
+
+            responseObserver.onError(Status.INTERNAL.withDescription("Error occurred, placing order").asRuntimeException());
+
+        } finally {
+            admissionController.release();
+        }
+    }
+
 
     /**
-     * Write the order to the in memory data store.
+     * Write the order to the in memory data store, decrementing the stock of every cart item
+     * only if none of them changed since the order was checked.
      *
      * @param request  request.
+     * @return null on success, otherwise the id of the first conflicting item.
+     * @throws IOException when the order is placed but cannot be written to the order log.
      */
-    private void writeOrder(PlaceOrderRequest request) {
-        boolean isProcessable = isProcessable(request.getUserId());
-        Map<String, Double> userCart = server.getUserCart(request.getUserId());
+    private String writeOrder(PlaceOrderRequest request) throws IOException {
+        if (tempCart == null || tempStockVersions == null) {
+            // The order was not checked on this server yet
+            String unavailableItem = findUnavailableItem(request.getUserId());
+            if (unavailableItem != null) {
+                return unavailableItem;
+            }
+        }
 
-        if(isProcessable) {
-            for (Map.Entry<String, Double> entry : userCart.entrySet()) {
-                String itemId = entry.getKey();
-                Double qty = entry.getValue();
+        Map<String, Double> cart = tempCart;
+        String conflictingItem = server.decrementItemQuantities(cart, tempStockVersions);
+        tempCart = null;
+        tempStockVersions = null;
+        if (conflictingItem != null) {
+            System.out.println("Stock of " + conflictingItem + " changed while placing the order of " + request.getUserId());
+            return conflictingItem;
+        }
 
-                double availableQuantity = server.getItemQuantity(itemId);
-                server.setItemQuantity(itemId, availableQuantity - qty);
-            }
+        server.confirmReservation(request.getUserId(), cart.keySet());
+        try {
+            server.getOrderLog().append(request.getRequestId(), request.getUserId(), System.currentTimeMillis(), cart);
+        } finally {
+            // The stock is already decremented, so the cart is cleared whether or not the log took the order
+            server.takeOutOfCart(request.getUserId(), cart);
         }
+
+        return null;
     }
 
     /**
@@ -224,14 +553,31 @@ public class OrderManagerServiceImpl extends OrderManagerServiceGrpc.OrderManage
         System.out.println("Committing order...");
         if (tempOrder != null) {
             System.out.println("Writing order...");
-            writeOrder(tempOrder);
+            String conflictingItem = null;
+            IOException logError = null;
+            try {
+                conflictingItem = writeOrder(tempOrder);
+            } catch (IOException e) {
+                System.out.println("Error while logging the order of " + tempOrder.getUserId() + ": " + e.getMessage());
+                e.printStackTrace();
+                logError = e;
+            }
+            String response = (conflictingItem == null)
+                    ? tempOrder.getUserId() + "'s orders are placed successfully!"
+                    : conflictResponse(conflictingItem);
+            if (conflictingItem == null) {
+                server.getDeduplicationCache().put(tempOrder.getRequestId(), response);
+            }
             if (!(tempOrder.getIsSentBySecondary() || (tempOrder.getIsSentByPrimary() && !this.isOrderFromClient))) {
 
                 isOrderFromClient = false;
 
-                if (this.responseObserver != null) {
+                if (this.responseObserver != null && logError != null) {
+                    this.responseObserver.onError(Status.INTERNAL
+                            .withDescription("Order placed, but it could not be logged").asRuntimeException());
+                } else if (this.responseObserver != null) {
                     System.out.println("Return response to the client...");
-                    PlaceOrderResponse responseToClient = PlaceOrderResponse.newBuilder().setResponse(tempOrder.getUserId() + "'s orders are placed successfully!").build();
+                    PlaceOrderResponse responseToClient = PlaceOrderResponse.newBuilder().setResponse(response).build();
                     this.responseObserver.onNext(responseToClient);
                     this.responseObserver.onCompleted();
                 }
@@ -254,7 +600,7 @@ public class OrderManagerServiceImpl extends OrderManagerServiceGrpc.OrderManage
      */
     @Override
     public void onGlobalAbort() {
-        String response = "Transaction Aborted by the Coordinator";
+        String response = ABORT_RESPONSE;
         System.out.println(response);
         if (!(tempOrder.getIsSentBySecondary()
                 || (tempOrder.getIsSentByPrimary() && !this.isOrderFromClient))) {
@@ -266,18 +612,27 @@ public class OrderManagerServiceImpl extends OrderManagerServiceGrpc.OrderManage
             }
         }
         tempOrder = null;
+        tempCart = null;
+        tempStockVersions = null;
     }
 
     /**
      * Starts the two-phase commit.
      *
-     * @param request request.
+     * @param request       request.
+     * @param transactionId transaction id given by the primary server.
      */
-    private void startTwoPhaseCommit(PlaceOrderRequest request) {
+    private void startTwoPhaseCommit(PlaceOrderRequest request, String transactionId) {
         try {
-            server.getOrderManagerTransaction().start(request.getUserId(), String.valueOf(UUID.randomUUID()));
+            // Set before starting, a participant may apply an already decided transaction right away
             tempOrder = request;
+            if (server.isPrimary()) {
+                server.getOrderManagerCoordinator().start(transactionId);
+            } else {
+                server.getOrderManagerParticipant().start(transactionId, String.valueOf(UUID.randomUUID()));
+            }
         } catch (IOException e) {
+            tempOrder = null;
             e.printStackTrace();
         }
     }
@@ -0,0 +1,49 @@
+package cw2.communication.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Request ids being processed by the primary server. A retry that arrives while its first attempt
+ * is still running waits for it, then finds the outcome in the deduplication cache instead of
+ * running the request a second time.
+ */
+class PendingRequests {
+    // This keeps track of {request_id -> latch released once the attempt is done} pairs
+    private final Map<String, CountDownLatch> requests = new ConcurrentHashMap<>();
+
+    /**
+     * Registers an attempt of a request, first waiting for any other attempt of it to finish.
+     * Every call must be followed by {@link #finish(String)}.
+     *
+     * @param requestId request id, requests without one are not tracked.
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    void start(String requestId) throws InterruptedException {
+        if (requestId.isEmpty()) {
+            return;
+        }
+        CountDownLatch isFinished = new CountDownLatch(1);
+        CountDownLatch pendingAttempt;
+        while ((pendingAttempt = requests.putIfAbsent(requestId, isFinished)) != null) {
+            System.out.println("Request " + requestId + " is still being processed, waiting for it...");
+            pendingAttempt.await();
+        }
+    }
+
+    /**
+     * Marks an attempt of a request as done, letting a waiting retry go on.
+     *
+     * @param requestId request id.
+     */
+    void finish(String requestId) {
+        if (requestId.isEmpty()) {
+            return;
+        }
+        CountDownLatch isFinished = requests.remove(requestId);
+        if (isFinished != null) {
+            isFinished.countDown();
+        }
+    }
+}
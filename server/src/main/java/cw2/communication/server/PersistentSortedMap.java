@@ -0,0 +1,254 @@
+package cw2.communication.server;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted map held in a balanced (AVL) tree. A change copies only the nodes on the path
+ * to the changed key, O(log n), and shares every other node with the map it was made from,
+ * so older versions stay readable by other threads as they were.
+ *
+ * @param <K> key type.
+ * @param <V> value type.
+ */
+final class PersistentSortedMap<K, V> {
+    private final Comparator<? super K> comparator;
+    private final Node<K, V> root;
+    private final int size;
+
+    /**
+     * A tree node, never changed once built.
+     */
+    private static final class Node<K, V> {
+        private final K key;
+        private final V value;
+        private final Node<K, V> left;
+        private final Node<K, V> right;
+        private final int height;
+
+        private Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = 1 + Math.max(height(left), height(right));
+        }
+    }
+
+    private PersistentSortedMap(Comparator<? super K> comparator, Node<K, V> root, int size) {
+        this.comparator = comparator;
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Creates an empty map ordered by the natural order of its keys.
+     *
+     * @param <K> key type.
+     * @param <V> value type.
+     * @return empty map.
+     */
+    static <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> empty() {
+        return new PersistentSortedMap<>(Comparator.naturalOrder(), null, 0);
+    }
+
+    /**
+     * Creates an empty map.
+     *
+     * @param comparator order of the keys.
+     * @param <K>        key type.
+     * @param <V>        value type.
+     * @return empty map.
+     */
+    static <K, V> PersistentSortedMap<K, V> empty(Comparator<? super K> comparator) {
+        return new PersistentSortedMap<>(comparator, null, 0);
+    }
+
+    /**
+     * Gets the value of a key.
+     *
+     * @param key key.
+     * @return value, null if the key is not in the map.
+     */
+    V get(K key) {
+        Node<K, V> node = find(key);
+
+        return (node != null) ? node.value : null;
+    }
+
+    /**
+     * Checks whether a key is in the map.
+     *
+     * @param key key.
+     * @return whether the key is in the map.
+     */
+    boolean containsKey(K key) {
+        return find(key) != null;
+    }
+
+    /**
+     * Creates a map with a key set to a value.
+     *
+     * @param key   key.
+     * @param value value.
+     * @return the new map, this one is left unchanged.
+     */
+    PersistentSortedMap<K, V> put(K key, V value) {
+        int nextSize = containsKey(key) ? size : size + 1;
+
+        return new PersistentSortedMap<>(comparator, insert(root, key, value), nextSize);
+    }
+
+    /**
+     * Creates a map without a key.
+     *
+     * @param key key.
+     * @return the new map, this one if the key is not in it.
+     */
+    PersistentSortedMap<K, V> remove(K key) {
+        if (!containsKey(key)) {
+            return this;
+        }
+
+        return new PersistentSortedMap<>(comparator, delete(root, key), size - 1);
+    }
+
+    /**
+     * Gets the number of keys.
+     *
+     * @return size.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Walks the entries in key order, starting at a key.
+     *
+     * @param fromKey lowest key walked, included; null to start at the first key.
+     * @return iterator over the entries.
+     */
+    Iterator<Map.Entry<K, V>> iterator(K fromKey) {
+        Deque<Node<K, V>> path = new ArrayDeque<>();
+        Node<K, V> node = root;
+        while (node != null) {
+            if (fromKey == null || comparator.compare(node.key, fromKey) >= 0) {
+                path.push(node);
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+
+        return new Iterator<Map.Entry<K, V>>() {
+            @Override
+            public boolean hasNext() {
+                return !path.isEmpty();
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (path.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Node<K, V> next = path.pop();
+                for (Node<K, V> child = next.right; child != null; child = child.left) {
+                    path.push(child);
+                }
+                return new AbstractMap.SimpleImmutableEntry<>(next.key, next.value);
+            }
+        };
+    }
+
+    private Node<K, V> find(K key) {
+        Node<K, V> node = root;
+        while (node != null) {
+            int order = comparator.compare(key, node.key);
+            if (order == 0) {
+                return node;
+            }
+            node = (order < 0) ? node.left : node.right;
+        }
+
+        return null;
+    }
+
+    private Node<K, V> insert(Node<K, V> node, K key, V value) {
+        if (node == null) {
+            return new Node<>(key, value, null, null);
+        }
+        int order = comparator.compare(key, node.key);
+        if (order < 0) {
+            return balance(node.key, node.value, insert(node.left, key, value), node.right);
+        }
+        if (order > 0) {
+            return balance(node.key, node.value, node.left, insert(node.right, key, value));
+        }
+
+        return new Node<>(key, value, node.left, node.right);
+    }
+
+    private Node<K, V> delete(Node<K, V> node, K key) {
+        int order = comparator.compare(key, node.key);
+        if (order < 0) {
+            return balance(node.key, node.value, delete(node.left, key), node.right);
+        }
+        if (order > 0) {
+            return balance(node.key, node.value, node.left, delete(node.right, key));
+        }
+        if (node.left == null) {
+            return node.right;
+        }
+        if (node.right == null) {
+            return node.left;
+        }
+        Node<K, V> successor = node.right;
+        while (successor.left != null) {
+            successor = successor.left;
+        }
+
+        return balance(successor.key, successor.value, node.left, deleteFirst(node.right));
+    }
+
+    private static <K, V> Node<K, V> deleteFirst(Node<K, V> node) {
+        if (node.left == null) {
+            return node.right;
+        }
+
+        return balance(node.key, node.value, deleteFirst(node.left), node.right);
+    }
+
+    /**
+     * Builds a node, rotating it when one side grew two levels taller than the other.
+     */
+    private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> left, Node<K, V> right) {
+        int difference = height(left) - height(right);
+        if (difference > 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node<>(left.key, left.value, left.left, new Node<>(key, value, left.right, right));
+            }
+            Node<K, V> pivot = left.right;
+            return new Node<>(pivot.key, pivot.value, new Node<>(left.key, left.value, left.left, pivot.left),
+                    new Node<>(key, value, pivot.right, right));
+        }
+        if (difference < -1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node<>(right.key, right.value, new Node<>(key, value, left, right.left), right.right);
+            }
+            Node<K, V> pivot = right.left;
+            return new Node<>(pivot.key, pivot.value, new Node<>(key, value, left, pivot.left),
+                    new Node<>(right.key, right.value, pivot.right, right.right));
+        }
+
+        return new Node<>(key, value, left, right);
+    }
+
+    private static int height(Node<?, ?> node) {
+        return (node != null) ? node.height : 0;
+    }
+}
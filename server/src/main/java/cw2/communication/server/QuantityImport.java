@@ -0,0 +1,156 @@
+package cw2.communication.server;
+
+import cw2.communication.grpc.generated.ImportQuantitiesResponse;
+import cw2.communication.grpc.generated.UpdateQuantityRequest;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One bulk import streamed to the primary server. Items are gathered into chunks and every chunk is set
+ * in one replicated transaction, instead of a two-phase commit per item. A chunk is replicated on the
+ * thread delivering the item that filled it, so the client is held back by gRPC flow control meanwhile.
+ * A chunk turned down with a retry-after hint, because too many writes are pending or some of its items are
+ * locked by other writes, is tried again after the delay asked for, holding no lock meanwhile.
+ * Chunks committed before a failure stay committed; the quantities are absolute, so an import can be rerun.
+ */
+class QuantityImport implements StreamObserver<UpdateQuantityRequest> {
+    // Items set together in one replicated transaction
+    private static final int CHUNK_SIZE = Math.max(1, Integer.getInteger("import.chunkSize", 10000));
+    // Leaves room in a replication batch for the prepare call around the chunk and other entries
+    private static final int CHUNK_BYTES = ReplicationSender.MAX_BATCH_BYTES / 2;
+    // Tries of a chunk turned down with a retry-after hint before the import fails
+    private static final int MAX_CHUNK_ATTEMPTS = 5;
+
+    private final QuantityManagerServiceImpl quantityManagerService;
+    private final StreamObserver<ImportQuantitiesResponse> responseObserver;
+    private final List<StateDelta.StockChange> chunk = new ArrayList<>(CHUNK_SIZE);
+    private int chunkBytes = 0;
+    private long importedCount = 0;
+    private long rejectedCount = 0;
+    private boolean isFailed = false;
+
+    /**
+     * QuantityImport Constructor.
+     *
+     * @param quantityManagerService service replicating the chunks.
+     * @param responseObserver       The stream observer that uses to return the outcome of the import.
+     */
+    QuantityImport(QuantityManagerServiceImpl quantityManagerService,
+                   StreamObserver<ImportQuantitiesResponse> responseObserver) {
+        this.quantityManagerService = quantityManagerService;
+        this.responseObserver = responseObserver;
+    }
+
+    @Override
+    public void onNext(UpdateQuantityRequest request) {
+        if (isFailed) {
+            return;
+        }
+        if (request.getId().isEmpty() || request.getQuantity() <= 0) {
+            // Turned down the same way a single quantity update is
+            rejectedCount++;
+            return;
+        }
+
+        chunk.add(new StateDelta.StockChange(request.getId(), StateDelta.ANY_VERSION, request.getQuantity()));
+        // Item id, its length, the version and the quantity, as written in the state delta
+        chunkBytes += request.getIdBytes().size() + 2 + 16;
+        if (chunk.size() >= CHUNK_SIZE || chunkBytes >= CHUNK_BYTES) {
+            commitChunk();
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        System.out.println("Import stopped by the client after " + importedCount + " items : " + t.getMessage());
+    }
+
+    @Override
+    public void onCompleted() {
+        if (isFailed) {
+            return;
+        }
+        commitChunk();
+        if (isFailed) {
+            return;
+        }
+
+        String response = "Imported " + importedCount + " items, rejected " + rejectedCount;
+        System.out.println(response);
+        responseObserver.onNext(ImportQuantitiesResponse.newBuilder()
+                .setImportedCount(importedCount)
+                .setRejectedCount(rejectedCount)
+                .setResponse(response)
+                .build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Sets the quantities of the gathered chunk in one transaction.
+     */
+    private void commitChunk() {
+        if (chunk.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (replicateChunk()) {
+                importedCount += chunk.size();
+                chunk.clear();
+                chunkBytes = 0;
+                return;
+            }
+            fail(Status.ABORTED.withDescription("Import aborted by the coordinator after " + importedCount + " items")
+                    .asRuntimeException());
+        } catch (StatusRuntimeException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(Status.CANCELLED.withDescription("Interrupted while importing quantities after " + importedCount
+                    + " items").asRuntimeException());
+        } catch (Exception e) {
+            System.out.println("Error while importing quantities: " + e.getMessage());
+            e.printStackTrace();
+
+            fail(Status.INTERNAL.withDescription("Error occurred, importing quantities after " + importedCount
+                    + " items").asRuntimeException());
+        }
+    }
+
+    /**
+     * Replicates the gathered chunk, trying again while the primary server asks to retry later.
+     *
+     * @return whether the chunk committed.
+     * @throws Exception when the chunk cannot be replicated.
+     */
+    private boolean replicateChunk() throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return quantityManagerService.replicateQuantities(chunk);
+            } catch (StatusRuntimeException e) {
+                String retryAfter = (e.getTrailers() != null)
+                        ? e.getTrailers().get(AdmissionController.RETRY_AFTER_KEY) : null;
+                if (retryAfter == null || attempt >= MAX_CHUNK_ATTEMPTS) {
+                    throw e;
+                }
+                Thread.sleep(Long.parseLong(retryAfter));
+            }
+        }
+    }
+
+    /**
+     * Ends the import with an error, ignoring the items still streamed in.
+     *
+     * @param error error returned to the client.
+     */
+    private void fail(StatusRuntimeException error) {
+        isFailed = true;
+        chunk.clear();
+        chunkBytes = 0;
+        responseObserver.onError(error);
+    }
+}
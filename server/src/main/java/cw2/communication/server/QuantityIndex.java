@@ -0,0 +1,91 @@
+package cw2.communication.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Items ordered by quantity, held by every catalog snapshot next to its items, so a query sees
+ * exactly the quantities of the snapshot it reads and takes no lock. Each change moves one entry,
+ * and a query seeks to its lower bound and walks the matching items,
+ * so answering takes O(log n + k) instead of a scan of the whole catalog.
+ */
+public final class QuantityIndex {
+    private static final Comparator<Entry> ORDER = Comparator.comparingDouble((Entry entry) -> entry.quantity)
+            .thenComparing(entry -> entry.itemId);
+
+    static final QuantityIndex EMPTY = new QuantityIndex(PersistentSortedMap.empty(ORDER));
+
+    // The entries are the keys, ordered by quantity then item id
+    private final PersistentSortedMap<Entry, Boolean> entries;
+
+    /**
+     * An item at a quantity
+     */
+    public static final class Entry {
+        private final String itemId;
+        private final double quantity;
+
+        private Entry(String itemId, double quantity) {
+            this.itemId = itemId;
+            this.quantity = quantity;
+        }
+
+        public String getItemId() {
+            return itemId;
+        }
+
+        public double getQuantity() {
+            return quantity;
+        }
+    }
+
+    private QuantityIndex(PersistentSortedMap<Entry, Boolean> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Creates the index with an item moved to its new quantity.
+     *
+     * @param itemId   item id.
+     * @param previous quantity the item had, null if it is new.
+     * @param next     quantity the item has now.
+     * @return the new index, this one is left unchanged.
+     */
+    QuantityIndex move(String itemId, StockEntry previous, StockEntry next) {
+        PersistentSortedMap<Entry, Boolean> nextEntries = entries;
+        if (previous != null) {
+            nextEntries = nextEntries.remove(new Entry(itemId, previous.getQuantity()));
+        }
+
+        return new QuantityIndex(nextEntries.put(new Entry(itemId, next.getQuantity()), Boolean.TRUE));
+    }
+
+    /**
+     * Finds the items whose quantity is in a range, lowest quantity first.
+     *
+     * @param minQuantity lowest quantity included, null for no lower bound.
+     * @param maxQuantity quantity the items must be below, null for no upper bound.
+     * @param limit       largest number of items returned, 0 for no limit.
+     * @return matching items ordered by quantity, then item id.
+     */
+    public List<Entry> query(Double minQuantity, Double maxQuantity, int limit) {
+        // An empty item id sorts before every item at the same quantity
+        Iterator<Map.Entry<Entry, Boolean>> range =
+                entries.iterator((minQuantity != null) ? new Entry("", minQuantity) : null);
+        Entry upperBound = (maxQuantity != null) ? new Entry("", maxQuantity) : null;
+
+        List<Entry> result = new ArrayList<>();
+        while (range.hasNext() && (limit <= 0 || result.size() < limit)) {
+            Entry entry = range.next().getKey();
+            if (upperBound != null && ORDER.compare(entry, upperBound) >= 0) {
+                break;
+            }
+            result.add(entry);
+        }
+
+        return result;
+    }
+}
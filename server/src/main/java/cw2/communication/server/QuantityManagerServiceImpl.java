@@ -1,26 +1,41 @@
 package cw2.communication.server;
 
 import cw2.communication.grpc.generated.*;
-import cw2.communication.distributedTxProtocol.coordinator.TwoPhaseCommitCoordinator;
 import cw2.communication.distributedTxProtocol.listener.TwoPhaseCommitListener;
-import cw2.communication.distributedTxProtocol.participant.TwoPhaseCommitParticipant;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.apache.zookeeper.KeeperException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Implement quantity manager grpc service
+ * Implement quantity manager grpc service.
+ * Only cart updates go through a prepare and decision pipeline. With the grpc protocol updates of different
+ * items are replicated concurrently and an update of an item another write holds is turned down at once;
+ * with the zookeeper protocol updates share the server's single two-phase commit session and
+ * tempQuantityUpdate slot, so they run one at a time.
  */
 public class QuantityManagerServiceImpl extends QuantityManagerServiceGrpc.QuantityManagerServiceImplBase
         implements TwoPhaseCommitListener {
 
+    private static final String ABORT_RESPONSE = "Transaction Aborted by the Coordinator";
+    // Delay suggested to a write turned down because its items are locked by another one
+    private static final long BUSY_RETRY_AFTER_MS = Long.getLong("admission.retryAfterMs", 100);
+
     private final InventoryServer server;
+    private final PendingRequests pendingRequests = new PendingRequests();
+    private final AdmissionController admissionController = AdmissionController.forService("updateQuantity");
 //    private PlaceOrderRequest tempOrder;
 
     private UpdateQuantityRequest tempQuantityUpdate;
@@ -39,8 +54,7 @@ public class QuantityManagerServiceImpl extends QuantityManagerServiceGrpc.Quant
         this.server = server;
         String[] primaryData = this.server.getCurrentPrimaryData();
         if (primaryData != null && primaryData.length > 0 && !this.server.isPrimary()) {
-            ManagedChannel channel = ManagedChannelBuilder.forAddress(primaryData[0],
-                    Integer.parseInt(primaryData[1])).usePlaintext().build();
+            ManagedChannel channel = GrpcTransport.getChannel(primaryData[0], Integer.parseInt(primaryData[1]));
             clientStub = QuantityManagerServiceGrpc.newBlockingStub(channel);
         }
     }
@@ -51,8 +65,9 @@ public class QuantityManagerServiceImpl extends QuantityManagerServiceGrpc.Quant
      * from clients into the primary server.
      *
      * @param request The update quantity request.
+     * @return response of the primary server.
      */
-    private void sendDataToPrimary(UpdateQuantityRequest request) {
+    private UpdateQuantityResponse sendDataToPrimary(UpdateQuantityRequest request) {
         System.out.println("Sending received data to the primary server...");
         String[] currentLeaderData = server.getCurrentPrimaryData();
         String IPAddress = currentLeaderData[0];
@@ -62,10 +77,11 @@ public class QuantityManagerServiceImpl extends QuantityManagerServiceGrpc.Quant
                 .setQuantity(request.getQuantity())
                 .setIsSentByPrimary(false)
                 .setIsSentBySecondary(true)
+                .setRequestId(request.getRequestId())
                 .setId(request.getId())
                 .build();
 
-        sendDataToServer(newRequest, IPAddress, port);
+        return sendDataToServer(newRequest, IPAddress, port);
     }
 
     /**
@@ -74,30 +90,13 @@ public class QuantityManagerServiceImpl extends QuantityManagerServiceGrpc.Quant
      * @param request   Request object
      * @param ipAddress Server IP address.
      * @param port      Serer port.
+     * @return response of the server.
      */
-    private void sendDataToServer(UpdateQuantityRequest request, String ipAddress, int port) {
-        ManagedChannel channel = ManagedChannelBuilder.forAddress(ipAddress, port).usePlaintext().build();
+    private UpdateQuantityResponse sendDataToServer(UpdateQuantityRequest request, String ipAddress, int port) {
+        ManagedChannel channel = GrpcTransport.getChannel(ipAddress, port);
         clientStub = QuantityManagerServiceGrpc.newBlockingStub(channel);
 
-        UpdateQuantityResponse response = clientStub.updateQuantity(request);
-    }
-
-    /**
-     * Sends data to all the secondary servers registered
-     *
-     * @param request data.
-     * @throws KeeperException      Exception thrown by Zookeeper.
-     * @throws InterruptedException Exception thrown when secondary servers data is obtained.
-     */
-    private void sendDataToSecondaryServers(UpdateQuantityRequest request) throws KeeperException, InterruptedException {
-        System.out.println("Sending data to the secondary servers...");
-        List<String[]> secondaryServers = server.getAllServersData();
-
-        for (String[] secondaryServer : secondaryServers) {
-            String ipAddress = secondaryServer[0];
-            int port = Integer.parseInt(secondaryServer[1]);
-            sendDataToServer(request, ipAddress, port);
-        }
+        return clientStub.updateQuantity(request);
     }
 
     /**
@@ -108,42 +107,28 @@ public class QuantityManagerServiceImpl extends QuantityManagerServiceGrpc.Quant
      */
     @Override
     public void updateQuantity(UpdateQuantityRequest request, StreamObserver<UpdateQuantityResponse> responseObserver) {
+        String previousResponse = server.getDeduplicationCache().get(request.getRequestId());
+        if (!request.getIsSentByPrimary() && previousResponse != null) {
+            // A retry of an already committed request, answer with the original outcome
+            System.out.println("Request " + request.getRequestId() + " was already processed");
+            responseObserver.onNext(UpdateQuantityResponse.newBuilder().setResponse(previousResponse).build());
+            responseObserver.onCompleted();
+            return;
+        }
+
         if (server.isPrimary()) {
             // If the server is the primary server.
             try {
-                System.out.println("Updating trade order as the primary server...");
-                UpdateQuantityRequest newRequest = UpdateQuantityRequest
-                        .newBuilder()
-                        .setQuantity(request.getQuantity())
-                        .setIsSentByPrimary(true)
-                        .setIsSentBySecondary(false)
-                        .setId(request.getId())
-                        .build();
-
-                startTwoPhaseCommit(request);
-                sendDataToSecondaryServers(newRequest);
-
-                if (!request.getIsSentBySecondary()) {
-                    this.responseObserver = responseObserver;
-                    this.initiatedFromClient = true;
-                }
-
-                // Start two-phase commit
-                if (request.getQuantity() > 0) {
-                    ((TwoPhaseCommitCoordinator) server.getQtyManagerTransaction()).perform();
-                } else {
-                    ((TwoPhaseCommitCoordinator) server.getQtyManagerTransaction()).sendGlobalAbort();
-                }
-
-                if (request.getIsSentBySecondary()) {
-                    responseObserver.onNext(UpdateQuantityResponse.newBuilder().build());
-                    responseObserver.onCompleted();
-                }
-            } catch (Exception e) {
-                System.out.println("Error while updating trade order: " + e.getMessage());
-                e.printStackTrace();
-
-                responseObserver.onError(Status.INTERNAL.withDescription("Error occurred, updating quantity").asRuntimeException());
+                pendingRequests.start(request.getRequestId());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                responseObserver.onError(Status.CANCELLED.withDescription("Interrupted while updating quantity").asRuntimeException());
+                return;
+            }
+            try {
+                updateQuantityAsPrimary(request, responseObserver);
+            } finally {
+                pendingRequests.finish(request.getRequestId());
             }
         } else {
             // If the server is a secondary server.
@@ -152,13 +137,13 @@ public class QuantityManagerServiceImpl extends QuantityManagerServiceGrpc.Quant
                 System.out.println("Updating trade order on a secondary server, " +
                         "on the primary server's instruction...");
 
-                startTwoPhaseCommit(request);
+                startTwoPhaseCommit(request, request.getTransactionId());
 
                 // Start two-phase commit
                 if (request.getQuantity() > 0) {
-                    ((TwoPhaseCommitParticipant) server.getQtyManagerTransaction()).voteCommit();
+                    server.getQtyManagerParticipant().voteCommit();
                 } else {
-                    ((TwoPhaseCommitParticipant) server.getQtyManagerTransaction()).voteAbort();
+                    server.getQtyManagerParticipant().voteAbort();
                 }
 
                 responseObserver.onNext(UpdateQuantityResponse.newBuilder().build());
@@ -167,11 +152,305 @@ public class QuantityManagerServiceImpl extends QuantityManagerServiceGrpc.Quant
                 // If the data is sent by a client.
                 this.initiatedFromClient = true;
                 this.responseObserver = responseObserver;
-                sendDataToPrimary(request);
+                UpdateQuantityResponse response;
+                try {
+                    response = sendDataToPrimary(request);
+                } catch (StatusRuntimeException e) {
+                    // Pass the primary server's rejection, along with its retry hint, back to the client
+                    System.out.println("Error while forwarding to the primary server: " + e.getMessage());
+                    this.responseObserver = null;
+                    this.initiatedFromClient = false;
+                    responseObserver.onError(e);
+                    return;
+                }
+                if (!response.getResponse().isEmpty()) {
+                    // The primary server answered a retry on its own, no transaction will follow
+                    this.responseObserver = null;
+                    this.initiatedFromClient = false;
+                    responseObserver.onNext(response);
+                    responseObserver.onCompleted();
+                }
             }
         }
     }
 
+    /**
+     * Processes a request as the primary server, once no other attempt of it is running.
+     *
+     * @param request          Request.
+     * @param responseObserver Stream observer used to return data.
+     */
+    private void updateQuantityAsPrimary(UpdateQuantityRequest request, StreamObserver<UpdateQuantityResponse> responseObserver) {
+        String previousResponse = server.getDeduplicationCache().get(request.getRequestId());
+        if (previousResponse != null) {
+            // Committed by an attempt that was still running when this retry arrived
+            System.out.println("Request " + request.getRequestId() + " was already processed");
+            responseObserver.onNext(UpdateQuantityResponse.newBuilder().setResponse(previousResponse).build());
+            responseObserver.onCompleted();
+            return;
+        }
+
+        if (!admissionController.tryAdmit()) {
+            responseObserver.onError(admissionController.rejection());
+            return;
+        }
+        try {
+            System.out.println("Updating trade order as the primary server...");
+            if (server.isDirectReplication()) {
+                // Answered to secondary servers as well, they pass the response on to their client
+                String response = replicateQuantityUpdate(request);
+                responseObserver.onNext(UpdateQuantityResponse.newBuilder().setResponse(response).build());
+                responseObserver.onCompleted();
+                return;
+            }
+
+            String transactionId = String.valueOf(UUID.randomUUID());
+            UpdateQuantityRequest newRequest = UpdateQuantityRequest
+                    .newBuilder()
+                    .setQuantity(request.getQuantity())
+                    .setIsSentByPrimary(true)
+                    .setIsSentBySecondary(false)
+                    .setRequestId(request.getRequestId())
+                    .setId(request.getId())
+                    .setTransactionId(transactionId)
+                    .build();
+
+            startTwoPhaseCommit(request, transactionId);
+            if (!request.getIsSentBySecondary()) {
+                this.responseObserver = responseObserver;
+                this.initiatedFromClient = true;
+            }
+
+            int participantCount = SecondaryFanOut.<UpdateQuantityRequest, UpdateQuantityResponse>send(server, newRequest,
+                    (channel, secondaryRequest, observer) ->
+                            QuantityManagerServiceGrpc.newStub(channel).updateQuantity(secondaryRequest, observer));
+
+            // Start two-phase commit
+            if (request.getQuantity() > 0) {
+                server.getQtyManagerCoordinator().perform(participantCount);
+            } else {
+                server.getQtyManagerCoordinator().abort();
+            }
+
+            if (request.getIsSentBySecondary()) {
+                responseObserver.onNext(UpdateQuantityResponse.newBuilder().build());
+                responseObserver.onCompleted();
+            }
+        } catch (StatusRuntimeException e) {
+            responseObserver.onError(e);
+        } catch (Exception e) {
+            System.out.println("Error while updating trade order: " + e.getMessage());
+            e.printStackTrace();
+
+            responseObserver.onError(Status.INTERNAL.withDescription("Error occurred, updating quantity").asRuntimeException());
+        } finally {
+            admissionController.release();
+        }
+    }
+
+    /**
+     * Updates the quantity over the grpc replication service, sending the new quantity
+     * for the secondary servers to apply as it is.
+     *
+     * @param request Request.
+     * @return response to the update.
+     * @throws KeeperException      Exception thrown by Zookeeper.
+     * @throws InterruptedException when interrupted while waiting for votes.
+     * @throws StatusRuntimeException ABORTED with a retry-after hint when the item is locked by another write.
+     */
+    private String replicateQuantityUpdate(UpdateQuantityRequest request) throws KeeperException, InterruptedException {
+        if (request.getQuantity() <= 0) {
+            // Turned down before anything is sent out
+            System.out.println(ABORT_RESPONSE);
+            return ABORT_RESPONSE;
+        }
+
+        StateDelta delta = StateDelta.ofStock(request.getRequestId(), request.getId() + " updated successfully!", "",
+                Collections.singletonList(new StateDelta.StockChange(request.getId(), StateDelta.ANY_VERSION,
+                        request.getQuantity())));
+        // Locked until applied here, so every server applies the updates of the item in the same order
+        StockLocks.Held locks = server.getStockLocks()
+                .tryLock(Collections.singletonList(request.getId()), Collections.emptyList());
+        if (locks == null) {
+            throw busy(request.getId() + " is being changed by another request, retry later");
+        }
+        try (StockLocks.Held ignored = locks) {
+            ReplicationCoordinator.PreparedTransaction transaction = server.getReplicationCoordinator()
+                    .prepare(PrepareRequest.newBuilder().setDelta(delta.toByteString()));
+
+            return server.getReplicationCoordinator().decide(transaction, true, new DeltaCommit(server, delta))
+                    ? delta.getResponse() : ABORT_RESPONSE;
+        }
+    }
+
+    /**
+     * Grpc method for importing quantities in bulk, streamed by the client.
+     *
+     * @param responseObserver Stream observer used to return the outcome of the import.
+     * @return observer of the streamed items.
+     */
+    @Override
+    public StreamObserver<UpdateQuantityRequest> importQuantities(
+            StreamObserver<ImportQuantitiesResponse> responseObserver) {
+        if (!server.isDirectReplication()) {
+            responseObserver.onError(Status.FAILED_PRECONDITION
+                    .withDescription("Bulk imports need the grpc replication protocol")
+                    .asRuntimeException());
+            return new StreamObserver<UpdateQuantityRequest>() {
+                @Override
+                public void onNext(UpdateQuantityRequest request) {
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            };
+        }
+
+        if (server.isPrimary()) {
+            System.out.println("Importing quantities as the primary server...");
+            return new QuantityImport(this, responseObserver);
+        }
+
+        return forwardImportToPrimary(responseObserver);
+    }
+
+    /**
+     * Relays an import streamed to this secondary server on to the primary server.
+     * Items are only taken from the client as fast as the primary server takes them, one at a time.
+     *
+     * @param responseObserver Stream observer used to return the outcome of the import.
+     * @return observer of the streamed items.
+     */
+    private StreamObserver<UpdateQuantityRequest> forwardImportToPrimary(
+            StreamObserver<ImportQuantitiesResponse> responseObserver) {
+        System.out.println("Forwarding the import to the primary server...");
+        String[] currentLeaderData = server.getCurrentPrimaryData();
+        ManagedChannel channel = GrpcTransport.getChannel(currentLeaderData[0], Integer.parseInt(currentLeaderData[1]));
+
+        ServerCallStreamObserver<ImportQuantitiesResponse> clientCall =
+                (ServerCallStreamObserver<ImportQuantitiesResponse>) responseObserver;
+        clientCall.disableAutoInboundFlowControl();
+        // Set while an item is requested from the client and has not arrived yet
+        AtomicBoolean isItemRequested = new AtomicBoolean(false);
+
+        ClientCallStreamObserver<UpdateQuantityRequest> primaryCall = (ClientCallStreamObserver<UpdateQuantityRequest>)
+                QuantityManagerServiceGrpc.newStub(channel).importQuantities(
+                        new ClientResponseObserver<UpdateQuantityRequest, ImportQuantitiesResponse>() {
+                            @Override
+                            public void beforeStart(ClientCallStreamObserver<UpdateQuantityRequest> requestStream) {
+                                // Take the next item once the primary server has room for it again
+                                requestStream.setOnReadyHandler(
+                                        () -> requestNextItem(requestStream, clientCall, isItemRequested));
+                            }
+
+                            @Override
+                            public void onNext(ImportQuantitiesResponse response) {
+                                responseObserver.onNext(response);
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {
+                                responseObserver.onError(t);
+                            }
+
+                            @Override
+                            public void onCompleted() {
+                                responseObserver.onCompleted();
+                            }
+                        });
+        requestNextItem(primaryCall, clientCall, isItemRequested);
+
+        return new StreamObserver<UpdateQuantityRequest>() {
+            @Override
+            public void onNext(UpdateQuantityRequest request) {
+                isItemRequested.set(false);
+                primaryCall.onNext(request);
+                // The ready handler only runs when the primary server turns ready again, not while it stays so
+                requestNextItem(primaryCall, clientCall, isItemRequested);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                primaryCall.onError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                primaryCall.onCompleted();
+            }
+        };
+    }
+
+    /**
+     * Takes the next imported item from the client, unless one is already requested
+     * or the primary server has no room for it.
+     *
+     * @param primaryCall     stream relaying the items to the primary server.
+     * @param clientCall      stream of the items from the client.
+     * @param isItemRequested set while a requested item has not arrived yet.
+     */
+    private static void requestNextItem(ClientCallStreamObserver<UpdateQuantityRequest> primaryCall,
+                                        ServerCallStreamObserver<ImportQuantitiesResponse> clientCall,
+                                        AtomicBoolean isItemRequested) {
+        if (primaryCall.isReady() && isItemRequested.compareAndSet(false, true)) {
+            clientCall.request(1);
+        }
+    }
+
+    /**
+     * Sets the quantities of several items in one transaction over the grpc replication service.
+     *
+     * @param stockChanges new quantities, applied together or not at all.
+     * @return whether the transaction committed.
+     * @throws KeeperException      Exception thrown by Zookeeper.
+     * @throws InterruptedException when interrupted while waiting for votes.
+     * @throws StatusRuntimeException with a retry-after hint when too many writes are pending
+     *                              or an item is locked by another write.
+     */
+    boolean replicateQuantities(List<StateDelta.StockChange> stockChanges) throws KeeperException, InterruptedException {
+        List<String> itemIds = new ArrayList<>();
+        for (StateDelta.StockChange change : stockChanges) {
+            itemIds.add(change.getItemId());
+        }
+        if (!admissionController.tryAdmit()) {
+            throw admissionController.rejection();
+        }
+        StockLocks.Held locks = server.getStockLocks().tryLock(itemIds, Collections.emptyList());
+        if (locks == null) {
+            admissionController.release();
+            throw busy("Items of the import are being changed by other requests, retry later");
+        }
+        try (StockLocks.Held ignored = locks) {
+            StateDelta delta = StateDelta.ofStock("", stockChanges.size() + " items updated successfully!", "",
+                    new ArrayList<>(stockChanges));
+            ReplicationCoordinator.PreparedTransaction transaction = server.getReplicationCoordinator()
+                    .prepare(PrepareRequest.newBuilder().setDelta(delta.toByteString()));
+
+            return server.getReplicationCoordinator().decide(transaction, true, new DeltaCommit(server, delta));
+        } finally {
+            admissionController.release();
+        }
+    }
+
+    /**
+     * Builds the error returned when the items of a write are locked by another one still being decided.
+     *
+     * @param description error description.
+     * @return ABORTED error carrying a retry-after hint.
+     */
+    private static StatusRuntimeException busy(String description) {
+        System.out.println(description);
+        Metadata trailers = new Metadata();
+        trailers.put(AdmissionController.RETRY_AFTER_KEY, String.valueOf(BUSY_RETRY_AFTER_MS));
+
+        return Status.ABORTED.withDescription(description).asRuntimeException(trailers);
+    }
+
     /**
      * Write the transaction to the in memory data store.
      *
@@ -189,13 +468,15 @@ public class QuantityManagerServiceImpl extends QuantityManagerServiceGrpc.Quant
         if (tempQuantityUpdate != null) {
             System.out.println("Writing order...");
             writeTransaction(tempQuantityUpdate);
+            String response = tempQuantityUpdate.getId() + " updated successfully!";
+            server.getDeduplicationCache().put(tempQuantityUpdate.getRequestId(), response);
             if (!(tempQuantityUpdate.getIsSentBySecondary() || (tempQuantityUpdate.getIsSentByPrimary() && !this.initiatedFromClient))) {
 
                 initiatedFromClient = false;
 
                 if (this.responseObserver != null) {
                     System.out.println("Return response to the client...");
-                    UpdateQuantityResponse responseToClient = UpdateQuantityResponse.newBuilder().setResponse(tempQuantityUpdate.getId() + " updated successfully!").build();
+                    UpdateQuantityResponse responseToClient = UpdateQuantityResponse.newBuilder().setResponse(response).build();
                     this.responseObserver.onNext(responseToClient);
                     this.responseObserver.onCompleted();
                 }
@@ -218,7 +499,7 @@ public class QuantityManagerServiceImpl extends QuantityManagerServiceGrpc.Quant
      */
     @Override
     public void onGlobalAbort() {
-        String response = "Transaction Aborted by the Coordinator";
+        String response = ABORT_RESPONSE;
         System.out.println(response);
         if (!(tempQuantityUpdate.getIsSentBySecondary()
                 || (tempQuantityUpdate.getIsSentByPrimary() && !this.initiatedFromClient))) {
@@ -235,13 +516,20 @@ public class QuantityManagerServiceImpl extends QuantityManagerServiceGrpc.Quant
     /**
      * Starts the two-phase commit.
      *
-     * @param request request.
+     * @param request       request.
+     * @param transactionId transaction id given by the primary server.
      */
-    private void startTwoPhaseCommit(UpdateQuantityRequest request) {
+    private void startTwoPhaseCommit(UpdateQuantityRequest request, String transactionId) {
         try {
-            server.getQtyManagerTransaction().start(request.getId(), String.valueOf(UUID.randomUUID()));
+            // Set before starting, a participant may apply an already decided transaction right away
             tempQuantityUpdate = request;
+            if (server.isPrimary()) {
+                server.getQtyManagerCoordinator().start(transactionId);
+            } else {
+                server.getQtyManagerParticipant().start(transactionId, String.valueOf(UUID.randomUUID()));
+            }
         } catch (IOException e) {
+            tempQuantityUpdate = null;
             e.printStackTrace();
         }
     }
@@ -0,0 +1,390 @@
+package cw2.communication.server;
+
+import com.google.protobuf.Empty;
+import cw2.communication.distributedTxProtocol.TwoPhaseCommit;
+import cw2.communication.distributedTxProtocol.listener.TwoPhaseCommitListener;
+import cw2.communication.grpc.generated.DecisionRequest;
+import cw2.communication.grpc.generated.Decisions;
+import cw2.communication.grpc.generated.PrepareRequest;
+import cw2.communication.grpc.generated.PrepareResponse;
+import cw2.communication.grpc.generated.ReplicationEntry;
+import cw2.communication.grpc.generated.ReplicationServiceGrpc;
+import cw2.communication.grpc.generated.TransactionList;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import org.apache.zookeeper.KeeperException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinator side of the two-phase commit run over grpc.
+ * Prepare calls go out to every secondary server at once, their responses carry the votes,
+ * and the decision is sent back with commit or abort calls.
+ */
+public class ReplicationCoordinator {
+
+    private final InventoryServer server;
+
+    // One sender per secondary server, keyed by host:port
+    private final Map<String, ReplicationSender> senders = new ConcurrentHashMap<>();
+
+    // Transactions prepared by this server whose decision is not logged yet
+    private final Set<String> undecidedTransactions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * A transaction whose prepare calls are sent out.
+     */
+    public static class PreparedTransaction {
+        private final String transactionId;
+        private final List<String[]> participants;
+        private final Semaphore answers = new Semaphore(0);
+        private int commitVotes = 0;
+        private int abortVotes = 0;
+
+        private PreparedTransaction(String transactionId, List<String[]> participants) {
+            this.transactionId = transactionId;
+            this.participants = participants;
+        }
+
+        /**
+         * Records the answer of a participant; a failed call counts as neither vote.
+         *
+         * @param vote true for commit, false for abort, null for no answer.
+         */
+        private synchronized void onAnswer(Boolean vote) {
+            if (Boolean.TRUE.equals(vote)) {
+                commitVotes++;
+            } else if (Boolean.FALSE.equals(vote)) {
+                abortVotes++;
+            }
+            answers.release();
+        }
+
+        private synchronized int getCommitVotes() {
+            return commitVotes;
+        }
+
+        private synchronized int getAbortVotes() {
+            return abortVotes;
+        }
+
+        public String getTransactionId() {
+            return transactionId;
+        }
+    }
+
+    /**
+     * ReplicationCoordinator Constructor.
+     *
+     * @param server server object.
+     */
+    public ReplicationCoordinator(InventoryServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Sends the operation to every secondary server without waiting for their votes.
+     * The calls are gathered with other writes to the same server, see {@link ReplicationSender}.
+     *
+     * @param request prepare request holding the operation.
+     * @return the prepared transaction.
+     * @throws KeeperException      Exception thrown by Zookeeper.
+     * @throws InterruptedException Exception thrown when secondary server(s) data is retrieved.
+     */
+    public PreparedTransaction prepare(PrepareRequest.Builder request) throws KeeperException, InterruptedException {
+        String transactionId = String.valueOf(UUID.randomUUID());
+        PrepareRequest prepareRequest = request.setTransactionId(transactionId).build();
+        List<String[]> participants = server.getAllServersData();
+        PreparedTransaction transaction = new PreparedTransaction(transactionId, participants);
+        undecidedTransactions.add(transactionId);
+        closeDepartedSenders(participants);
+
+        System.out.println("Preparing " + transactionId + " on " + participants.size() + " secondary servers...");
+        for (String[] participant : participants) {
+            String ipAddress = participant[0];
+            int port = Integer.parseInt(participant[1]);
+            getSender(ipAddress, port).send(ReplicationEntry.newBuilder().setPrepare(prepareRequest).build(),
+                    new StreamObserver<PrepareResponse>() {
+                        @Override
+                        public void onNext(PrepareResponse response) {
+                            transaction.onAnswer(response.getVoteCommit());
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                            System.out.println("Error while preparing on " + ipAddress + ":" + port + " : " + t.getMessage());
+                            transaction.onAnswer(null);
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                        }
+                    });
+        }
+
+        return transaction;
+    }
+
+    /**
+     * Waits for the votes required by the replication mode, aborting on the first abort vote
+     * or when the vote timeout elapses, then hands the decision to the listener and the participants.
+     * The decision is reached even when interrupted, so the participants never wait for it in vain.
+     *
+     * @param transaction the prepared transaction.
+     * @param localVote   vote of the primary server.
+     * @param listener    listener of the decision on the primary server.
+     * @return whether the transaction was committed.
+     * @throws InterruptedException when interrupted while waiting for votes.
+     */
+    public boolean decide(PreparedTransaction transaction, boolean localVote, TwoPhaseCommitListener listener)
+            throws InterruptedException {
+        int participantCount = transaction.participants.size();
+        int requiredVotes = TwoPhaseCommit.getReplicationMode().requiredVotes(participantCount);
+        long deadline = System.currentTimeMillis() + TwoPhaseCommit.getVoteTimeout();
+        int answerCount = 0;
+        InterruptedException interruption = null;
+
+        while (localVote && transaction.getAbortVotes() == 0 && transaction.getCommitVotes() < requiredVotes
+                && answerCount < participantCount) {
+            long remaining = deadline - System.currentTimeMillis();
+            try {
+                if (remaining <= 0 || !transaction.answers.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interruption = e;
+                break;
+            }
+            answerCount++;
+        }
+
+        boolean isCommitted = localVote && transaction.getAbortVotes() == 0
+                && transaction.getCommitVotes() >= requiredVotes;
+        System.out.println("Commit votes : " + transaction.getCommitVotes() + "/" + participantCount
+                + ", required : " + requiredVotes);
+        System.out.println("Sending " + (isCommitted ? "GLOBAL_COMMIT" : "GLOBAL_ABORT")
+                + " for " + transaction.transactionId);
+
+        // Logged first, so a later primary server can still learn the decision from this one
+        server.getDecisionLog().record(transaction.transactionId, isCommitted);
+        undecidedTransactions.remove(transaction.transactionId);
+        sendDecision(transaction, isCommitted);
+        if (isCommitted) {
+            listener.onGlobalCommit();
+        } else {
+            listener.onGlobalAbort();
+        }
+        if (interruption != null) {
+            throw interruption;
+        }
+
+        return isCommitted;
+    }
+
+    /**
+     * Answers a server asking for the decisions it did not receive. The transactions this server
+     * is still deciding are left out, it asks again later; the others are settled, see {@link #settle}.
+     *
+     * @param transactionIds transactions the server holds prepared.
+     * @return the decisions reached.
+     */
+    public Decisions queryDecisions(List<String> transactionIds) {
+        List<String> decidedTransactionIds = new ArrayList<>();
+        for (String transactionId : transactionIds) {
+            // Checked before the log, a decision is logged before the transaction leaves this set
+            if (!undecidedTransactions.contains(transactionId)) {
+                decidedTransactionIds.add(transactionId);
+            }
+        }
+
+        return settle(decidedTransactionIds);
+    }
+
+    /**
+     * Gets the decisions of transactions this server is not deciding, logging every one it reaches so that
+     * it gives the same answer from then on. A decision missing from the log is looked up in the logs of
+     * the other servers; a transaction none of them saw committed is aborted, but only once every one of
+     * them answered, otherwise it is left out until a later call.
+     *
+     * @param transactionIds transactions prepared by this server or by a previous primary server.
+     * @return the decisions reached.
+     */
+    private synchronized Decisions settle(Collection<String> transactionIds) {
+        Decisions.Builder decisions = Decisions.newBuilder();
+        List<String> unknown = new ArrayList<>();
+        for (String transactionId : transactionIds) {
+            Boolean isCommitted = server.getDecisionLog().getDecision(transactionId);
+            if (Boolean.TRUE.equals(isCommitted)) {
+                decisions.addCommitted(transactionId);
+            } else if (Boolean.FALSE.equals(isCommitted)) {
+                decisions.addAborted(transactionId);
+            } else {
+                unknown.add(transactionId);
+            }
+        }
+        if (unknown.isEmpty()) {
+            return decisions.build();
+        }
+
+        Set<String> committed = new HashSet<>();
+        boolean isEveryLogRead = true;
+        TransactionList transactionList = TransactionList.newBuilder().addAllTransactionIds(unknown).build();
+        try {
+            for (String[] participant : server.getAllServersData()) {
+                try {
+                    committed.addAll(newBlockingStub(participant).lookupDecisions(transactionList).getCommittedList());
+                } catch (StatusRuntimeException e) {
+                    System.out.println("Error while looking up decisions on " + participant[0] + ":"
+                            + participant[1] + " : " + e.getMessage());
+                    isEveryLogRead = false;
+                }
+            }
+        } catch (KeeperException e) {
+            System.out.println("Error while looking up decisions: " + e.getMessage());
+            isEveryLogRead = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            isEveryLogRead = false;
+        }
+
+        for (String transactionId : unknown) {
+            if (committed.contains(transactionId)) {
+                server.getDecisionLog().record(transactionId, true);
+                decisions.addCommitted(transactionId);
+            } else if (isEveryLogRead) {
+                server.getDecisionLog().record(transactionId, false);
+                decisions.addAborted(transactionId);
+            }
+        }
+
+        return decisions.build();
+    }
+
+    /**
+     * Sends the decision to every participant without waiting for them,
+     * behind the prepare calls already queued for them.
+     *
+     * @param transaction the prepared transaction.
+     * @param isCommitted whether the transaction is committed.
+     */
+    private void sendDecision(PreparedTransaction transaction, boolean isCommitted) {
+        DecisionRequest request = DecisionRequest.newBuilder()
+                .setTransactionId(transaction.transactionId)
+                .build();
+        ReplicationEntry entry = isCommitted
+                ? ReplicationEntry.newBuilder().setCommit(request).build()
+                : ReplicationEntry.newBuilder().setAbort(request).build();
+
+        for (String[] participant : transaction.participants) {
+            String ipAddress = participant[0];
+            int port = Integer.parseInt(participant[1]);
+            getSender(ipAddress, port).send(entry, new StreamObserver<PrepareResponse>() {
+                @Override
+                public void onNext(PrepareResponse response) {
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    System.out.println("Error while sending the decision to " + ipAddress + ":" + port
+                            + " : " + t.getMessage());
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            });
+        }
+    }
+
+    /**
+     * Gets the sender batching the calls to a secondary server.
+     *
+     * @param ipAddress Server IP address.
+     * @param port      Server port.
+     * @return replication sender.
+     */
+    private ReplicationSender getSender(String ipAddress, int port) {
+        return senders.computeIfAbsent(ipAddress + ":" + port, key -> new ReplicationSender(ipAddress, port));
+    }
+
+    /**
+     * Stops retrying the calls to secondary servers that left the cluster.
+     *
+     * @param participants secondary servers still in the cluster.
+     */
+    private void closeDepartedSenders(List<String[]> participants) {
+        Set<String> addresses = new HashSet<>();
+        for (String[] participant : participants) {
+            addresses.add(participant[0] + ":" + participant[1]);
+        }
+        senders.entrySet().removeIf(sender -> {
+            if (addresses.contains(sender.getKey())) {
+                return false;
+            }
+            sender.getValue().close();
+            return true;
+        });
+    }
+
+    /**
+     * Settles the transactions a failed primary server left prepared, in one batch per server.
+     * Every server lists its in-doubt transactions, every server is asked for the decisions it
+     * logged for them, and the outcome goes back to all of them. A transaction that no live server
+     * saw committed is aborted; one that cannot be settled yet stays prepared, its servers ask for it later.
+     *
+     * @throws KeeperException      Exception thrown by Zookeeper.
+     * @throws InterruptedException Exception thrown when secondary server(s) data is retrieved.
+     */
+    public void resolveInDoubtTransactions() throws KeeperException, InterruptedException {
+        List<String[]> participants = server.getAllServersData();
+        Set<String> inDoubt = new LinkedHashSet<>(server.getReplicationService().getInDoubtTransactionIds());
+        for (String[] participant : participants) {
+            try {
+                inDoubt.addAll(newBlockingStub(participant).listInDoubt(Empty.getDefaultInstance())
+                        .getTransactionIdsList());
+            } catch (StatusRuntimeException e) {
+                System.out.println("Error while listing in-doubt transactions on " + participant[0] + ":"
+                        + participant[1] + " : " + e.getMessage());
+            }
+        }
+        if (inDoubt.isEmpty()) {
+            return;
+        }
+
+        Decisions resolution = settle(inDoubt);
+        System.out.println("Resolving " + inDoubt.size() + " in-doubt transactions: "
+                + resolution.getCommittedCount() + " committed, " + resolution.getAbortedCount() + " aborted");
+
+        server.getReplicationService().resolve(resolution);
+        for (String[] participant : participants) {
+            try {
+                newBlockingStub(participant).resolve(resolution);
+            } catch (StatusRuntimeException e) {
+                System.out.println("Error while resolving transactions on " + participant[0] + ":"
+                        + participant[1] + " : " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates a blocking stub to another server, limited by the vote timeout.
+     *
+     * @param participant Server IP address and port.
+     * @return blocking stub.
+     */
+    private ReplicationServiceGrpc.ReplicationServiceBlockingStub newBlockingStub(String[] participant) {
+        return ReplicationServiceGrpc
+                .newBlockingStub(GrpcTransport.getChannel(participant[0], Integer.parseInt(participant[1])))
+                .withDeadlineAfter(TwoPhaseCommit.getVoteTimeout(), TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,247 @@
+package cw2.communication.server;
+
+import cw2.communication.distributedTxProtocol.TwoPhaseCommit;
+import cw2.communication.grpc.generated.PrepareResponse;
+import cw2.communication.grpc.generated.ReplicationBatch;
+import cw2.communication.grpc.generated.ReplicationBatchResponse;
+import cw2.communication.grpc.generated.ReplicationEntry;
+import cw2.communication.grpc.generated.ReplicationServiceGrpc;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the prepare calls and decisions meant for one secondary server in batches.
+ * Entries wait up to the linger time, or until the batch reaches its byte size, and go out
+ * as one replicate call. Only one batch is in flight at a time, so entries arrive in the order
+ * they were sent and later ones gather while the previous batch is answered.
+ * A batch that fails is sent again, ahead of the entries queued since, until the secondary server
+ * acknowledges it or leaves the cluster; the secondary server ignores the entries it already applied.
+ */
+class ReplicationSender {
+    private static final long LINGER_MS = Long.getLong("replication.lingerMs", 0);
+    private static final int BATCH_BYTES = Integer.getInteger("replication.batchBytes", 64 * 1024);
+    // Kept below the 4 MB grpc accepts in one message
+    static final int MAX_BATCH_BYTES = Integer.getInteger("replication.maxBatchBytes", 3 * 1024 * 1024);
+    private static final long RETRY_MS = Long.getLong("replication.retryMs", 1000);
+
+    private static final ScheduledExecutorService lingerExecutor = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "replication-linger");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final String ipAddress;
+    private final int port;
+    private final Deque<Pending> entries = new ArrayDeque<>();
+    private int batchSize = 0;
+    private boolean isInFlight = false;
+    private boolean isClosed = false;
+    private ScheduledFuture<?> lingerTask;
+    private ScheduledFuture<?> retryTask;
+
+    /**
+     * An entry waiting to be acknowledged, with the observer of its outcome.
+     */
+    private static final class Pending {
+        private final ReplicationEntry entry;
+        private final StreamObserver<PrepareResponse> observer;
+        // Set once the observer got an error, later outcomes of the entry are not passed on
+        private volatile boolean isReported = false;
+
+        private Pending(ReplicationEntry entry, StreamObserver<PrepareResponse> observer) {
+            this.entry = entry;
+            this.observer = observer;
+        }
+
+        private void reportError(Throwable t) {
+            if (!isReported) {
+                isReported = true;
+                observer.onError(t);
+            }
+        }
+    }
+
+    /**
+     * ReplicationSender Constructor.
+     *
+     * @param ipAddress Server IP address.
+     * @param port      Server port.
+     */
+    ReplicationSender(String ipAddress, int port) {
+        this.ipAddress = ipAddress;
+        this.port = port;
+    }
+
+    /**
+     * Queues an entry for the next batch.
+     *
+     * @param entry    prepare call or decision.
+     * @param observer gets the vote for this entry, or the error of the first batch it failed in.
+     */
+    void send(ReplicationEntry entry, StreamObserver<PrepareResponse> observer) {
+        synchronized (this) {
+            if (isClosed) {
+                observer.onError(Status.UNAVAILABLE.withDescription(ipAddress + ":" + port
+                        + " left the cluster").asRuntimeException());
+                return;
+            }
+            entries.add(new Pending(entry, observer));
+            batchSize += entry.getSerializedSize();
+            if (isInFlight) {
+                // Sent as soon as the batch in flight is answered
+                return;
+            }
+            if (LINGER_MS > 0 && batchSize < BATCH_BYTES) {
+                if (lingerTask == null) {
+                    lingerTask = lingerExecutor.schedule(this::flush, LINGER_MS, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Drops the queued entries once the secondary server left the cluster, failing those not reported yet.
+     */
+    void close() {
+        List<Pending> dropped;
+        synchronized (this) {
+            isClosed = true;
+            if (lingerTask != null) {
+                lingerTask.cancel(false);
+            }
+            if (retryTask != null) {
+                retryTask.cancel(false);
+            }
+            dropped = new ArrayList<>(entries);
+            entries.clear();
+            batchSize = 0;
+        }
+        for (Pending pending : dropped) {
+            pending.reportError(Status.UNAVAILABLE.withDescription(ipAddress + ":" + port + " left the cluster")
+                    .asRuntimeException());
+        }
+    }
+
+    /**
+     * Sends the queued entries that fit in one batch, unless a batch is already in flight.
+     */
+    private void flush() {
+        List<Pending> batch = new ArrayList<>();
+        synchronized (this) {
+            if (lingerTask != null) {
+                lingerTask.cancel(false);
+                lingerTask = null;
+            }
+            if (isInFlight || isClosed || entries.isEmpty()) {
+                return;
+            }
+            int size = 0;
+            // At least one entry, however large
+            while (!entries.isEmpty()
+                    && (batch.isEmpty() || size + entries.peek().entry.getSerializedSize() <= MAX_BATCH_BYTES)) {
+                Pending pending = entries.poll();
+                size += pending.entry.getSerializedSize();
+                batch.add(pending);
+            }
+            batchSize -= size;
+            isInFlight = true;
+        }
+
+        // Detached from the request that happened to flush the batch, which may be answered and cancelled first
+        Context previous = Context.ROOT.attach();
+        try {
+            sendBatch(batch);
+        } finally {
+            Context.ROOT.detach(previous);
+        }
+    }
+
+    /**
+     * Sends one batch and hands each vote to the observer of its entry.
+     *
+     * @param batch entries of the batch, in order.
+     */
+    private void sendBatch(List<Pending> batch) {
+        ReplicationBatch.Builder request = ReplicationBatch.newBuilder();
+        for (Pending pending : batch) {
+            request.addEntries(pending.entry);
+        }
+        ReplicationServiceGrpc.newStub(GrpcTransport.getChannel(ipAddress, port))
+                .withDeadlineAfter(TwoPhaseCommit.getVoteTimeout(), TimeUnit.MILLISECONDS)
+                .replicate(request.build(), new StreamObserver<ReplicationBatchResponse>() {
+                    @Override
+                    public void onNext(ReplicationBatchResponse response) {
+                        onBatchDone();
+                        for (int i = 0; i < batch.size(); i++) {
+                            Pending pending = batch.get(i);
+                            if (pending.isReported) {
+                                continue;
+                            }
+                            if (i < response.getVotesCount()) {
+                                pending.observer.onNext(response.getVotes(i));
+                                pending.observer.onCompleted();
+                            } else {
+                                pending.reportError(new IllegalStateException("No answer in the batch"));
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        for (Pending pending : batch) {
+                            pending.reportError(t);
+                        }
+                        retryLater(batch);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                    }
+                });
+    }
+
+    /**
+     * Puts a failed batch back ahead of the queued entries and sends it again after a while.
+     *
+     * @param batch entries of the failed batch, in order.
+     */
+    private void retryLater(List<Pending> batch) {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                entries.addFirst(batch.get(i));
+                batchSize += batch.get(i).entry.getSerializedSize();
+            }
+            // Still counted as in flight, so entries sent meanwhile do not overtake the batch
+            retryTask = lingerExecutor.schedule(this::onBatchDone, RETRY_MS, TimeUnit.MILLISECONDS);
+        }
+        System.out.println("Sending " + batch.size() + " entries to " + ipAddress + ":" + port
+                + " again in " + RETRY_MS + "ms");
+    }
+
+    /**
+     * Lets the next batch go out; the entries queued meanwhile have lingered long enough.
+     */
+    private void onBatchDone() {
+        synchronized (this) {
+            isInFlight = false;
+            retryTask = null;
+        }
+        flush();
+    }
+}
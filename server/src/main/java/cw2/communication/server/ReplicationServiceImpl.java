@@ -0,0 +1,406 @@
+package cw2.communication.server;
+
+import com.google.protobuf.Empty;
+import cw2.communication.distributedTxProtocol.TwoPhaseCommit;
+import cw2.communication.distributedTxProtocol.listener.TwoPhaseCommitListener;
+import cw2.communication.grpc.generated.DecisionRequest;
+import cw2.communication.grpc.generated.DecisionResponse;
+import cw2.communication.grpc.generated.Decisions;
+import cw2.communication.grpc.generated.PrepareRequest;
+import cw2.communication.grpc.generated.PrepareResponse;
+import cw2.communication.grpc.generated.ReplicationBatch;
+import cw2.communication.grpc.generated.ReplicationBatchResponse;
+import cw2.communication.grpc.generated.ReplicationEntry;
+import cw2.communication.grpc.generated.ReplicationServiceGrpc;
+import cw2.communication.grpc.generated.TransactionList;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Participant side of the two-phase commit run over grpc.
+ * The primary server sends the state changes of the operation in a prepare call and gets the vote
+ * back in the response, then sends commit or abort; ZooKeeper is left out of the write path.
+ * A prepared transaction waits for its decision as long as it takes: once it has waited for twice the
+ * vote timeout the current primary server is asked for it, and asked again until it answers.
+ * A decision that arrives before its prepare call is kept until the call arrives, then applied with it;
+ * only the decisions of transactions prepared here go to the decision log.
+ */
+public class ReplicationServiceImpl extends ReplicationServiceGrpc.ReplicationServiceImplBase {
+
+    private final InventoryServer server;
+
+    // transaction id -> listener waiting for the decision, oldest first
+    private final Map<String, TwoPhaseCommitListener> preparedTransactions = new LinkedHashMap<>();
+
+    // transaction id -> time it was prepared at
+    private final Map<String, Long> prepareTimes = new HashMap<>();
+
+    // Early decisions kept at most, the oldest is dropped beyond it and asked for again once its call arrives
+    private static final int MAX_EARLY_DECISIONS = 100000;
+
+    // transaction id -> decision that arrived before the prepare call was taken, oldest first
+    private final Map<String, Boolean> earlyDecisions = new LinkedHashMap<>();
+
+    private final ScheduledExecutorService expiryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "replication-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * ReplicationServiceImpl Constructor.
+     *
+     * @param server server object.
+     */
+    public ReplicationServiceImpl(InventoryServer server) {
+        this.server = server;
+        long voteTimeout = TwoPhaseCommit.getVoteTimeout();
+        expiryExecutor.scheduleWithFixedDelay(this::queryOverdueDecisions, voteTimeout, voteTimeout,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes the state changes of a transaction, to be applied as they are once it commits.
+     * Cart changes go through the partition of their user, so they land in the order they were prepared.
+     *
+     * @param request          The prepare request.
+     * @param responseObserver The stream observer that uses to return the vote.
+     */
+    @Override
+    public void prepare(PrepareRequest request, StreamObserver<PrepareResponse> responseObserver) {
+        String transactionId = request.getTransactionId();
+        StateDelta delta;
+        try {
+            delta = StateDelta.parseFrom(request.getDelta());
+        } catch (IOException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("Malformed state delta: " + e.getMessage()).asRuntimeException());
+            return;
+        }
+
+        if (!startPreparing(transactionId)) {
+            // Sent again after the answer was lost, the first call already took the changes or applied them
+            responseObserver.onNext(PrepareResponse.newBuilder().setVoteCommit(true).build());
+            responseObserver.onCompleted();
+            return;
+        }
+        if (delta.isCart()) {
+            server.getCartManagerService().prepare(transactionId, delta, responseObserver);
+            return;
+        }
+        // The primary server already checked the request, nothing is left to vote against
+        awaitDecision(transactionId, new DeltaCommit(server, delta));
+        responseObserver.onNext(PrepareResponse.newBuilder().setVoteCommit(true).build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void commit(DecisionRequest request, StreamObserver<DecisionResponse> responseObserver) {
+        onDecision(request.getTransactionId(), true);
+        responseObserver.onNext(DecisionResponse.newBuilder().build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void abort(DecisionRequest request, StreamObserver<DecisionResponse> responseObserver) {
+        onDecision(request.getTransactionId(), false);
+        responseObserver.onNext(DecisionResponse.newBuilder().build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Applies a batch of prepare calls and decisions in order. The answer holds one vote per entry
+     * once every prepare call of the batch is voted on; decisions get an empty vote.
+     *
+     * @param request          The batch.
+     * @param responseObserver The stream observer that uses to return the votes.
+     */
+    @Override
+    public void replicate(ReplicationBatch request, StreamObserver<ReplicationBatchResponse> responseObserver) {
+        int entryCount = request.getEntriesCount();
+        PrepareResponse[] votes = new PrepareResponse[entryCount];
+        AtomicInteger pendingVotes = new AtomicInteger(entryCount + 1);
+        Runnable onVote = () -> {
+            if (pendingVotes.decrementAndGet() == 0) {
+                responseObserver.onNext(ReplicationBatchResponse.newBuilder().addAllVotes(Arrays.asList(votes)).build());
+                responseObserver.onCompleted();
+            }
+        };
+
+        for (int i = 0; i < entryCount; i++) {
+            ReplicationEntry entry = request.getEntries(i);
+            int index = i;
+            switch (entry.getEntryCase()) {
+                case PREPARE:
+                    prepare(entry.getPrepare(), new StreamObserver<PrepareResponse>() {
+                        @Override
+                        public void onNext(PrepareResponse response) {
+                            votes[index] = response;
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                            // Refused, e.g. malformed, counted as an abort vote
+                            System.out.println("Error while preparing a batched transaction: " + t.getMessage());
+                            votes[index] = PrepareResponse.newBuilder().setVoteCommit(false).build();
+                            onVote.run();
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                            onVote.run();
+                        }
+                    });
+                    break;
+                case COMMIT:
+                    onDecision(entry.getCommit().getTransactionId(), true);
+                    votes[index] = PrepareResponse.getDefaultInstance();
+                    onVote.run();
+                    break;
+                case ABORT:
+                    onDecision(entry.getAbort().getTransactionId(), false);
+                    votes[index] = PrepareResponse.getDefaultInstance();
+                    onVote.run();
+                    break;
+                default:
+                    votes[index] = PrepareResponse.getDefaultInstance();
+                    onVote.run();
+            }
+        }
+        onVote.run();
+    }
+
+    @Override
+    public void listInDoubt(Empty request, StreamObserver<TransactionList> responseObserver) {
+        responseObserver.onNext(TransactionList.newBuilder().addAllTransactionIds(getInDoubtTransactionIds()).build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void lookupDecisions(TransactionList request, StreamObserver<Decisions> responseObserver) {
+        Decisions.Builder decisions = Decisions.newBuilder();
+        for (String transactionId : request.getTransactionIdsList()) {
+            Boolean isCommitted = getKnownDecision(transactionId);
+            if (Boolean.TRUE.equals(isCommitted)) {
+                decisions.addCommitted(transactionId);
+            } else if (Boolean.FALSE.equals(isCommitted)) {
+                decisions.addAborted(transactionId);
+            }
+        }
+
+        responseObserver.onNext(decisions.build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void resolve(Decisions request, StreamObserver<DecisionResponse> responseObserver) {
+        resolve(request);
+        responseObserver.onNext(DecisionResponse.newBuilder().build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void queryDecisions(TransactionList request, StreamObserver<Decisions> responseObserver) {
+        if (!server.isPrimary() || !server.isDirectReplication()) {
+            // Not the primary server yet, or still settling the previous one's transactions
+            responseObserver.onNext(Decisions.getDefaultInstance());
+            responseObserver.onCompleted();
+            return;
+        }
+
+        responseObserver.onNext(server.getReplicationCoordinator().queryDecisions(request.getTransactionIdsList()));
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Gets the transactions prepared on this server that are still waiting for a decision.
+     *
+     * @return transaction ids.
+     */
+    synchronized List<String> getInDoubtTransactionIds() {
+        return new ArrayList<>(preparedTransactions.keySet());
+    }
+
+    /**
+     * Applies a batch of decisions to the transactions prepared here. The batch settles in-doubt
+     * transactions of any server, the others have no prepare call on its way to this one.
+     *
+     * @param decisions committed and aborted transactions.
+     */
+    void resolve(Decisions decisions) {
+        for (String transactionId : decisions.getCommittedList()) {
+            if (isPrepared(transactionId)) {
+                onDecision(transactionId, true);
+            }
+        }
+        for (String transactionId : decisions.getAbortedList()) {
+            if (isPrepared(transactionId)) {
+                onDecision(transactionId, false);
+            }
+        }
+    }
+
+    private synchronized boolean isPrepared(String transactionId) {
+        return preparedTransactions.containsKey(transactionId);
+    }
+
+    /**
+     * Gets the decision this server learned for a transaction, applied or still waiting for its prepare call.
+     *
+     * @param transactionId transaction id.
+     * @return whether it committed, null if no decision is known.
+     */
+    private synchronized Boolean getKnownDecision(String transactionId) {
+        Boolean isCommitted = server.getDecisionLog().getDecision(transactionId);
+
+        return (isCommitted != null) ? isCommitted : earlyDecisions.get(transactionId);
+    }
+
+    /**
+     * Marks a transaction as being prepared, unless a prepare call for it was already taken.
+     * The primary server sends a batch again when its answer is lost, so the same call can arrive twice.
+     *
+     * @param transactionId transaction id.
+     * @return whether this is the first prepare call for the transaction.
+     */
+    private synchronized boolean startPreparing(String transactionId) {
+        if (preparedTransactions.containsKey(transactionId)) {
+            return false;
+        }
+        if (server.getDecisionLog().getDecision(transactionId) != null) {
+            // Prepared and decided already, only applied transactions are logged
+            return false;
+        }
+        // Holds the place of the listener until the transaction is registered
+        preparedTransactions.put(transactionId, null);
+        prepareTimes.put(transactionId, System.currentTimeMillis());
+
+        return true;
+    }
+
+    /**
+     * Registers a prepared transaction. The listener gets the decision of the primary server,
+     * however long it takes to arrive.
+     *
+     * @param transactionId transaction id.
+     * @param listener      listener of the decision.
+     */
+    void awaitDecision(String transactionId, TwoPhaseCommitListener listener) {
+        Boolean earlyDecision;
+        synchronized (this) {
+            earlyDecision = earlyDecisions.remove(transactionId);
+            if (earlyDecision == null) {
+                preparedTransactions.put(transactionId, listener);
+                prepareTimes.putIfAbsent(transactionId, System.currentTimeMillis());
+            } else {
+                // Logged now that it is prepared here, so a copy of the call is not taken again
+                server.getDecisionLog().record(transactionId, earlyDecision);
+                preparedTransactions.remove(transactionId);
+                prepareTimes.remove(transactionId);
+            }
+        }
+        if (earlyDecision != null) {
+            System.out.println("Catching up with an already decided transaction... " + transactionId);
+            notifyListener(listener, earlyDecision);
+        }
+    }
+
+    /**
+     * Asks the primary server for the decisions of the transactions prepared for more than twice
+     * the vote timeout. Those it has not decided yet, or that it cannot be reached for, keep waiting.
+     * Once this server is the primary server it settles the ones left from before on its own.
+     */
+    private void queryOverdueDecisions() {
+        List<String> overdue = new ArrayList<>();
+        long preparedBefore = System.currentTimeMillis() - 2 * TwoPhaseCommit.getVoteTimeout();
+        synchronized (this) {
+            for (String transactionId : preparedTransactions.keySet()) {
+                if (prepareTimes.get(transactionId) > preparedBefore) {
+                    break;
+                }
+                overdue.add(transactionId);
+            }
+        }
+        if (overdue.isEmpty()) {
+            return;
+        }
+        if (server.isPrimary()) {
+            resolve(server.getReplicationCoordinator().queryDecisions(overdue));
+            return;
+        }
+        String[] primaryData = server.getCurrentPrimaryData();
+        if (primaryData.length < 2) {
+            return;
+        }
+
+        try {
+            Decisions decisions = ReplicationServiceGrpc
+                    .newBlockingStub(GrpcTransport.getChannel(primaryData[0], Integer.parseInt(primaryData[1])))
+                    .withDeadlineAfter(TwoPhaseCommit.getVoteTimeout(), TimeUnit.MILLISECONDS)
+                    .queryDecisions(TransactionList.newBuilder().addAllTransactionIds(overdue).build());
+            System.out.println("No decision received for " + overdue.size() + " transactions, the primary server "
+                    + "decided " + (decisions.getCommittedCount() + decisions.getAbortedCount()) + " of them");
+            resolve(decisions);
+        } catch (Exception e) {
+            System.out.println("Error while asking the primary server for decisions: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Passes a decision of the primary server on to the waiting listener, logging it
+     * so that a later primary server can still find it. A decision for a transaction whose prepare
+     * call was not taken yet is kept until the call arrives, however late.
+     *
+     * @param transactionId transaction id.
+     * @param isCommitted   whether the transaction is committed.
+     */
+    private void onDecision(String transactionId, boolean isCommitted) {
+        TwoPhaseCommitListener listener;
+        synchronized (this) {
+            if (server.getDecisionLog().getDecision(transactionId) != null) {
+                // Sent again after the answer was lost, already applied
+                return;
+            }
+            listener = preparedTransactions.get(transactionId);
+            if (listener == null) {
+                // The prepare call is still on its way or being taken
+                earlyDecisions.put(transactionId, isCommitted);
+                if (earlyDecisions.size() > MAX_EARLY_DECISIONS) {
+                    // Its call still waits for the decision, and asks the primary server for it once overdue
+                    earlyDecisions.remove(earlyDecisions.keySet().iterator().next());
+                }
+                return;
+            }
+            server.getDecisionLog().record(transactionId, isCommitted);
+            preparedTransactions.remove(transactionId);
+            prepareTimes.remove(transactionId);
+        }
+        notifyListener(listener, isCommitted);
+    }
+
+    /**
+     * Calls the listener for a decision.
+     *
+     * @param listener    listener of the decision.
+     * @param isCommitted whether the transaction is committed.
+     */
+    private void notifyListener(TwoPhaseCommitListener listener, boolean isCommitted) {
+        if (isCommitted) {
+            listener.onGlobalCommit();
+        } else {
+            listener.onGlobalAbort();
+        }
+    }
+}
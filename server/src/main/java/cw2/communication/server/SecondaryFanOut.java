@@ -0,0 +1,73 @@
+package cw2.communication.server;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+import org.apache.zookeeper.KeeperException;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Sends a request coordinated through the coordination backend to every secondary server at once,
+ * returning once every one of them answered. Nothing resends a request a secondary server missed,
+ * which is why the servers refuse to start in the quorum replication mode with this protocol.
+ */
+final class SecondaryFanOut {
+
+    /**
+     * Call of a grpc method on another server, e.g. {@code (channel, request, observer) ->
+     * OrderManagerServiceGrpc.newStub(channel).placeOrder(request, observer)}.
+     *
+     * @param <Q> request type.
+     * @param <R> response type.
+     */
+    interface AsyncCall<Q, R> {
+        void call(ManagedChannel channel, Q request, StreamObserver<R> responseObserver);
+    }
+
+    private SecondaryFanOut() {
+    }
+
+    /**
+     * Sends a request to all the secondary servers registered.
+     *
+     * @param server  server object.
+     * @param request data.
+     * @param call    grpc method to call.
+     * @param <Q>     request type.
+     * @param <R>     response type.
+     * @return number of secondary servers the data was sent to.
+     * @throws KeeperException      Exception thrown by Zookeeper.
+     * @throws InterruptedException Exception thrown when secondary servers data is obtained.
+     */
+    static <Q, R> int send(InventoryServer server, Q request, AsyncCall<Q, R> call)
+            throws KeeperException, InterruptedException {
+        System.out.println("Sending data to the secondary servers...");
+        List<String[]> secondaryServers = server.getAllServersData();
+        CountDownLatch answers = new CountDownLatch(secondaryServers.size());
+
+        for (String[] secondaryServer : secondaryServers) {
+            String ipAddress = secondaryServer[0];
+            int port = Integer.parseInt(secondaryServer[1]);
+            call.call(GrpcTransport.getChannel(ipAddress, port), request, new StreamObserver<R>() {
+                @Override
+                public void onNext(R response) {
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    System.out.println("Error while replicating to " + ipAddress + ":" + port + " : " + t.getMessage());
+                    answers.countDown();
+                }
+
+                @Override
+                public void onCompleted() {
+                    answers.countDown();
+                }
+            });
+        }
+        answers.await();
+
+        return secondaryServers.size();
+    }
+}
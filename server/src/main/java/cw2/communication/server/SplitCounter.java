@@ -0,0 +1,240 @@
+package cw2.communication.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stock of one item split into sub-counters of whole units, so that concurrent takes lock different
+ * sub-counters. A take starts at a sub-counter picked at random and moves on past the ones locked by other
+ * takes, whatever kind of thread it runs on; once the one it gets runs dry every sub-counter is locked,
+ * the stock is gathered and spread again, then taken from.
+ * Taken stock stays pending on the sub-counter it came from until the order commits, or comes back
+ * to it when it does not; the reservation remembers which one, whatever thread decides the order.
+ */
+public class SplitCounter {
+    private final Stripe[] stripes;
+
+    /**
+     * A sub-counter with its own lock. Stock taken through it and not decided yet is kept as pending.
+     */
+    private static final class Stripe extends ReentrantLock {
+        private long quantity;
+        private long pendingQuantity;
+    }
+
+    /**
+     * Stock taken for one undecided order, settled or given back on the sub-counter it was taken from.
+     */
+    public static final class Reservation {
+        private final Stripe stripe;
+        private final long quantity;
+
+        private Reservation(Stripe stripe, long quantity) {
+            this.stripe = stripe;
+            this.quantity = quantity;
+        }
+
+        public long getQuantity() {
+            return quantity;
+        }
+    }
+
+    /**
+     * SplitCounter Constructor.
+     *
+     * @param stripeCount Number of sub-counters.
+     * @param quantity    Stock to spread over them.
+     */
+    public SplitCounter(int stripeCount, long quantity) {
+        stripes = new Stripe[Math.max(1, stripeCount)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        // Not shared yet, no lock needed
+        spread(quantity);
+    }
+
+    /**
+     * Takes stock if there is enough of it left.
+     *
+     * @param quantity quantity to take.
+     * @return the reservation, null if there is not enough stock.
+     */
+    public Reservation tryTake(long quantity) {
+        Stripe stripe = lockFreeStripe();
+        try {
+            if (stripe.quantity >= quantity) {
+                stripe.quantity -= quantity;
+                stripe.pendingQuantity += quantity;
+                return new Reservation(stripe, quantity);
+            }
+        } finally {
+            stripe.unlock();
+        }
+
+        return rebalanceAndTake(quantity);
+    }
+
+    /**
+     * Marks taken stock as sold, once its order committed.
+     *
+     * @param reservation stock taken.
+     */
+    public void settle(Reservation reservation) {
+        Stripe stripe = reservation.stripe;
+        stripe.lock();
+        try {
+            stripe.pendingQuantity -= reservation.quantity;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Gives back taken stock, once its order did not commit.
+     *
+     * @param reservation stock taken.
+     */
+    public void giveBack(Reservation reservation) {
+        Stripe stripe = reservation.stripe;
+        stripe.lock();
+        try {
+            stripe.pendingQuantity -= reservation.quantity;
+            stripe.quantity += reservation.quantity;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Starts over from a new committed quantity, keeping the stock still taken by undecided orders.
+     *
+     * @param committedQuantity quantity in the catalog.
+     */
+    public void reset(long committedQuantity) {
+        lockAll();
+        try {
+            spread(committedQuantity);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Gets the stock left to take.
+     *
+     * @return quantity.
+     */
+    public long getAvailable() {
+        lockAll();
+        try {
+            long total = 0;
+            for (Stripe stripe : stripes) {
+                total += stripe.quantity;
+            }
+            return total;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Gets the stock taken by orders not decided yet.
+     *
+     * @return quantity.
+     */
+    public long getPending() {
+        lockAll();
+        try {
+            long total = 0;
+            for (Stripe stripe : stripes) {
+                total += stripe.pendingQuantity;
+            }
+            return total;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Gathers the stock of every sub-counter and takes from it, spreading the rest again.
+     *
+     * @param quantity quantity to take.
+     * @return the reservation, null if there is not enough stock.
+     */
+    private Reservation rebalanceAndTake(long quantity) {
+        lockAll();
+        try {
+            long total = 0;
+            for (Stripe stripe : stripes) {
+                total += stripe.quantity;
+            }
+            if (total < quantity) {
+                return null;
+            }
+            share(total - quantity);
+            Stripe stripe = stripes[ThreadLocalRandom.current().nextInt(stripes.length)];
+            stripe.pendingQuantity += quantity;
+            return new Reservation(stripe, quantity);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Spreads the stock left once the pending takes are set aside; called with every stripe locked.
+     *
+     * @param committedQuantity quantity in the catalog.
+     */
+    private void spread(long committedQuantity) {
+        long pendingQuantity = 0;
+        for (Stripe stripe : stripes) {
+            pendingQuantity += stripe.pendingQuantity;
+        }
+        share(Math.max(0, committedQuantity - pendingQuantity));
+    }
+
+    /**
+     * Shares stock out evenly, the first sub-counters getting one more unit each for the remainder;
+     * called with every stripe locked.
+     *
+     * @param available stock to share out.
+     */
+    private void share(long available) {
+        long remainder = available % stripes.length;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i].quantity = available / stripes.length + ((i < remainder) ? 1 : 0);
+        }
+    }
+
+    /**
+     * Locks the first sub-counter not locked by another take, probing from a random one;
+     * waits for the random one when every sub-counter is locked.
+     *
+     * @return the locked stripe.
+     */
+    private Stripe lockFreeStripe() {
+        int start = ThreadLocalRandom.current().nextInt(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = stripes[(start + i) % stripes.length];
+            if (stripe.tryLock()) {
+                return stripe;
+            }
+        }
+        stripes[start].lock();
+
+        return stripes[start];
+    }
+
+    private void lockAll() {
+        for (Stripe stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+}
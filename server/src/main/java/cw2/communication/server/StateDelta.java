@@ -0,0 +1,341 @@
+package cw2.communication.server;
+
+import com.google.protobuf.ByteString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes a request makes to the state of a server, worked out once by the primary server
+ * and applied as they are by the secondary servers, without running the request again.
+ * Sent as a compact binary record: the kind, the request id, the response for retries and the user id,
+ * followed either by the stock changes or by the cart entry; an order adds the time it was placed at
+ * and the items bought, which leave the user's cart, and a cart expiry every expired cart with the items
+ * dropped from it.
+ */
+public final class StateDelta {
+    // Expected version of a stock change that overwrites the quantity whatever its version
+    static final long ANY_VERSION = -1;
+    // Expected version of a stock change whose quantity is taken off the item whatever its version
+    static final long TAKEN = -2;
+
+    private static final byte STOCK = 'S';
+    private static final byte CART = 'C';
+    private static final byte ORDER = 'O';
+    private static final byte EXPIRY = 'E';
+
+    private final byte kind;
+    private final String requestId;
+    private final String response;
+    private final String userId;
+    private final List<StockChange> stockChanges;
+    private final String cartItemId;
+    private final double cartQuantity;
+    private final boolean isHeld;
+    private final long placedAt;
+    // Items taken out of the user's cart, bought by an order
+    private final Map<String, Double> cartItems;
+    // user id -> items dropped from the user's cart, by an expiry
+    private final Map<String, Map<String, Double>> expiredCarts;
+
+    /**
+     * New quantity of an item, provided it is still at the version the primary server computed it from,
+     * or the quantity taken off a hot item
+     */
+    public static final class StockChange {
+        private final String itemId;
+        private final long expectedVersion;
+        private final double quantity;
+
+        public StockChange(String itemId, long expectedVersion, double quantity) {
+            this.itemId = itemId;
+            this.expectedVersion = expectedVersion;
+            this.quantity = quantity;
+        }
+
+        public String getItemId() {
+            return itemId;
+        }
+
+        public long getExpectedVersion() {
+            return expectedVersion;
+        }
+
+        public double getQuantity() {
+            return quantity;
+        }
+    }
+
+    private StateDelta(byte kind, String requestId, String response, String userId, List<StockChange> stockChanges,
+                       String cartItemId, double cartQuantity, boolean isHeld, long placedAt,
+                       Map<String, Double> cartItems, Map<String, Map<String, Double>> expiredCarts) {
+        this.kind = kind;
+        this.requestId = requestId;
+        this.response = response;
+        this.userId = userId;
+        this.stockChanges = stockChanges;
+        this.cartItemId = cartItemId;
+        this.cartQuantity = cartQuantity;
+        this.isHeld = isHeld;
+        this.placedAt = placedAt;
+        this.cartItems = cartItems;
+        this.expiredCarts = expiredCarts;
+    }
+
+    /**
+     * Creates the delta of a quantity update.
+     *
+     * @param requestId    request id.
+     * @param response     response to the request once applied.
+     * @param userId       user whose holds are confirmed, empty for none.
+     * @param stockChanges new quantities, applied together or not at all.
+     * @return the delta.
+     */
+    static StateDelta ofStock(String requestId, String response, String userId, List<StockChange> stockChanges) {
+        return new StateDelta(STOCK, requestId, response, userId, Collections.unmodifiableList(stockChanges),
+                "", 0, false, 0, Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    /**
+     * Creates the delta of an order.
+     *
+     * @param requestId    request id.
+     * @param response     response to the request once applied.
+     * @param userId       user placing the order.
+     * @param stockChanges new or taken quantities, applied together or not at all.
+     * @param orderedItems item id -> quantity bought.
+     * @param placedAt     time the primary server placed the order at, in milliseconds.
+     * @return the delta.
+     */
+    static StateDelta ofOrder(String requestId, String response, String userId, List<StockChange> stockChanges,
+                              Map<String, Double> orderedItems, long placedAt) {
+        return new StateDelta(ORDER, requestId, response, userId, Collections.unmodifiableList(stockChanges),
+                "", 0, false, placedAt, Collections.unmodifiableMap(new LinkedHashMap<>(orderedItems)),
+                Collections.emptyMap());
+    }
+
+    /**
+     * Creates the delta of the carts expired by one sweep.
+     *
+     * @param expiredCarts user id -> items in the user's cart when it expired, dropped from it.
+     * @return the delta.
+     */
+    static StateDelta ofCartExpiry(Map<String, Map<String, Double>> expiredCarts) {
+        Map<String, Map<String, Double>> carts = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Double>> cart : expiredCarts.entrySet()) {
+            carts.put(cart.getKey(), Collections.unmodifiableMap(new LinkedHashMap<>(cart.getValue())));
+        }
+
+        return new StateDelta(EXPIRY, "", "", "", Collections.emptyList(), "", 0, false, 0, Collections.emptyMap(),
+                Collections.unmodifiableMap(carts));
+    }
+
+    /**
+     * Creates the delta of an add to cart.
+     *
+     * @param requestId request id.
+     * @param response  response to the request once applied.
+     * @param userId    user id.
+     * @param itemId    item id.
+     * @param quantity  quantity added to the cart.
+     * @param isHeld    whether the primary server held the quantity for the user.
+     * @return the delta.
+     */
+    static StateDelta ofCart(String requestId, String response, String userId, String itemId, double quantity,
+                             boolean isHeld) {
+        return new StateDelta(CART, requestId, response, userId, Collections.emptyList(), itemId, quantity, isHeld,
+                0, Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    /**
+     * Encodes the delta.
+     *
+     * @return the binary record.
+     */
+    ByteString toByteString() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(kind);
+            out.writeUTF(requestId);
+            out.writeUTF(response);
+            out.writeUTF(userId);
+            if (kind == CART) {
+                out.writeUTF(cartItemId);
+                out.writeDouble(cartQuantity);
+                out.writeBoolean(isHeld);
+            } else {
+                out.writeInt(stockChanges.size());
+                for (StockChange change : stockChanges) {
+                    out.writeUTF(change.itemId);
+                    out.writeLong(change.expectedVersion);
+                    out.writeDouble(change.quantity);
+                }
+            }
+            if (kind == ORDER) {
+                out.writeLong(placedAt);
+                writeItems(out, cartItems);
+            } else if (kind == EXPIRY) {
+                out.writeInt(expiredCarts.size());
+                for (Map.Entry<String, Map<String, Double>> cart : expiredCarts.entrySet()) {
+                    out.writeUTF(cart.getKey());
+                    writeItems(out, cart.getValue());
+                }
+            }
+        } catch (IOException e) {
+            // Not thrown when writing to memory
+            throw new IllegalStateException(e);
+        }
+
+        return ByteString.copyFrom(bytes.toByteArray());
+    }
+
+    /**
+     * Decodes a delta.
+     *
+     * @param record the binary record.
+     * @return the delta.
+     * @throws IOException when the record is malformed.
+     */
+    static StateDelta parseFrom(ByteString record) throws IOException {
+        try (DataInputStream in = new DataInputStream(record.newInput())) {
+            byte kind = in.readByte();
+            String requestId = in.readUTF();
+            String response = in.readUTF();
+            String userId = in.readUTF();
+            if (kind == CART) {
+                return ofCart(requestId, response, userId, in.readUTF(), in.readDouble(), in.readBoolean());
+            }
+            if (kind != STOCK && kind != ORDER && kind != EXPIRY) {
+                throw new IOException("Unknown state delta kind " + kind);
+            }
+
+            int changeCount = readCount(in);
+            List<StockChange> stockChanges = new ArrayList<>(changeCount);
+            for (int i = 0; i < changeCount; i++) {
+                stockChanges.add(new StockChange(in.readUTF(), in.readLong(), in.readDouble()));
+            }
+
+            if (kind == STOCK) {
+                return ofStock(requestId, response, userId, stockChanges);
+            }
+            if (kind == ORDER) {
+                long placedAt = in.readLong();
+                return ofOrder(requestId, response, userId, stockChanges, readItems(in), placedAt);
+            }
+
+            int cartCount = readCount(in);
+            Map<String, Map<String, Double>> expiredCarts = new LinkedHashMap<>();
+            for (int i = 0; i < cartCount; i++) {
+                expiredCarts.put(in.readUTF(), readItems(in));
+            }
+            return ofCartExpiry(expiredCarts);
+        }
+    }
+
+    /**
+     * Writes items with their quantities.
+     *
+     * @param out   the record.
+     * @param items item id -> quantity.
+     * @throws IOException not thrown when writing to memory.
+     */
+    private static void writeItems(DataOutputStream out, Map<String, Double> items) throws IOException {
+        out.writeInt(items.size());
+        for (Map.Entry<String, Double> item : items.entrySet()) {
+            out.writeUTF(item.getKey());
+            out.writeDouble(item.getValue());
+        }
+    }
+
+    /**
+     * Reads items with their quantities.
+     *
+     * @param in the record.
+     * @return item id -> quantity, in the order written.
+     * @throws IOException when the record is malformed.
+     */
+    private static Map<String, Double> readItems(DataInputStream in) throws IOException {
+        int itemCount = readCount(in);
+        Map<String, Double> items = new LinkedHashMap<>();
+        for (int i = 0; i < itemCount; i++) {
+            items.put(in.readUTF(), in.readDouble());
+        }
+
+        return items;
+    }
+
+    /**
+     * Reads the number of entries that follow.
+     *
+     * @param in the record.
+     * @return entry count.
+     * @throws IOException when the count is negative or the record is cut short.
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Negative entry count " + count);
+        }
+
+        return count;
+    }
+
+    public boolean isCart() {
+        return kind == CART;
+    }
+
+    public boolean isOrder() {
+        return kind == ORDER;
+    }
+
+    public boolean isCartExpiry() {
+        return kind == EXPIRY;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public String getResponse() {
+        return response;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public List<StockChange> getStockChanges() {
+        return stockChanges;
+    }
+
+    public String getCartItemId() {
+        return cartItemId;
+    }
+
+    public double getCartQuantity() {
+        return cartQuantity;
+    }
+
+    public boolean isHeld() {
+        return isHeld;
+    }
+
+    public long getPlacedAt() {
+        return placedAt;
+    }
+
+    public Map<String, Double> getCartItems() {
+        return cartItems;
+    }
+
+    public Map<String, Map<String, Double>> getExpiredCarts() {
+        return expiredCarts;
+    }
+}
@@ -0,0 +1,22 @@
+package cw2.communication.server;
+
+/**
+ * Quantity of an inventory item, stamped with the version of its last write
+ */
+public final class StockEntry {
+    private final double quantity;
+    private final long version;
+
+    public StockEntry(double quantity, long version) {
+        this.quantity = quantity;
+        this.version = version;
+    }
+
+    public double getQuantity() {
+        return quantity;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,78 @@
+package cw2.communication.server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Locks the primary server takes on the items a transaction changes, from before it reads their stock
+ * until the decision is sent and applied locally. Two transactions changing the same item are then never
+ * undecided together, so every server applies them in the same order and a committed change always
+ * applies. A lock is never waited for: a transaction finding one of its items locked is turned down at
+ * once, the same way a stale version would turn it down, so conflicting writes fail fast instead of queueing
+ * for a whole replication round. Taking a hot item's stock from its escrow commutes with other takes, so it
+ * only needs a shared lock. All the items of a transaction are locked at once or not at all.
+ */
+class StockLocks {
+    private static final int EXCLUSIVE = -1;
+
+    // This keeps track of {item_id -> number of shared holders, or EXCLUSIVE} pairs
+    private final Map<String, Integer> holders = new HashMap<>();
+
+    /**
+     * Items locked by a transaction, unlocked once closed.
+     */
+    class Held implements AutoCloseable {
+        private final Collection<String> exclusiveItemIds;
+        private final Collection<String> sharedItemIds;
+
+        private Held(Collection<String> exclusiveItemIds, Collection<String> sharedItemIds) {
+            this.exclusiveItemIds = exclusiveItemIds;
+            this.sharedItemIds = sharedItemIds;
+        }
+
+        @Override
+        public void close() {
+            unlock(exclusiveItemIds, sharedItemIds);
+        }
+    }
+
+    /**
+     * Locks items if every one of them is free right now.
+     *
+     * @param exclusiveItemIds items locked for this transaction only.
+     * @param sharedItemIds    items locked along with other transactions taking stock of them.
+     * @return the locks held, to close once the transaction is applied; null if an item is locked,
+     * nothing is locked then.
+     */
+    synchronized Held tryLock(Collection<String> exclusiveItemIds, Collection<String> sharedItemIds) {
+        for (String itemId : exclusiveItemIds) {
+            if (holders.containsKey(itemId)) {
+                return null;
+            }
+        }
+        for (String itemId : sharedItemIds) {
+            if (holders.getOrDefault(itemId, 0) == EXCLUSIVE) {
+                return null;
+            }
+        }
+
+        for (String itemId : exclusiveItemIds) {
+            holders.put(itemId, EXCLUSIVE);
+        }
+        for (String itemId : sharedItemIds) {
+            holders.merge(itemId, 1, Integer::sum);
+        }
+
+        return new Held(exclusiveItemIds, sharedItemIds);
+    }
+
+    private synchronized void unlock(Collection<String> exclusiveItemIds, Collection<String> sharedItemIds) {
+        for (String itemId : exclusiveItemIds) {
+            holders.remove(itemId);
+        }
+        for (String itemId : sharedItemIds) {
+            holders.computeIfPresent(itemId, (key, count) -> (count > 1) ? count - 1 : null);
+        }
+    }
+}
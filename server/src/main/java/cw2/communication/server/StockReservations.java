@@ -0,0 +1,172 @@
+package cw2.communication.server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stock held for shopping carts until checkout or until the hold expires.
+ * Expiry runs on a hashed timing wheel so that each hold costs O(1) to create, renew and drop.
+ */
+public class StockReservations {
+    private final long ttlMillis;
+    private final HashedTimingWheel timingWheel;
+
+    // This keeps track of user_id -> {item_id -> hold} pairs
+    private final Map<String, Map<String, Hold>> holds = new HashMap<>();
+
+    // This keeps track of {item_id -> held qty} pairs
+    private final Map<String, Double> heldQuantities = new HashMap<>();
+
+    /**
+     * Quantity of an item held for a user
+     */
+    private static final class Hold {
+        private double quantity;
+        private HashedTimingWheel.Timeout expiry;
+    }
+
+    /**
+     * StockReservations Constructor.
+     *
+     * @param ttlMillis How long a hold lasts after the latest add to cart.
+     */
+    public StockReservations(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.timingWheel = new HashedTimingWheel(100, 1024, "reservation-expiry");
+    }
+
+    /**
+     * Holds stock for a user if enough of it is neither sold nor held for others.
+     * Renews the expiry of the user's existing hold on the item.
+     * @param userId - user id
+     * @param itemId - item id
+     * @param quantity - quantity to hold
+     * @param stockQuantity - current stock of the item
+     * @return whether the stock was held
+     */
+    public synchronized boolean tryReserve(String userId, String itemId, double quantity, double stockQuantity) {
+        if (stockQuantity - heldQuantities.getOrDefault(itemId, 0.0) < quantity) {
+            return false;
+        }
+        hold(userId, itemId, quantity);
+
+        return true;
+    }
+
+    /**
+     * Holds stock for a user whatever is left, e.g. as decided by the primary server.
+     * Renews the expiry of the user's existing hold on the item.
+     * @param userId - user id
+     * @param itemId - item id
+     * @param quantity - quantity to hold
+     */
+    public synchronized void hold(String userId, String itemId, double quantity) {
+        Hold hold = holds.computeIfAbsent(userId, key -> new HashMap<>()).computeIfAbsent(itemId, key -> new Hold());
+        if (hold.expiry != null) {
+            hold.expiry.cancel();
+        }
+        hold.quantity += quantity;
+        hold.expiry = timingWheel.schedule(() -> expire(userId, itemId, hold), ttlMillis);
+        heldQuantities.merge(itemId, quantity, Double::sum);
+    }
+
+    /**
+     * Gives back part of a user's hold, e.g. when the add to cart was aborted.
+     * @param userId - user id
+     * @param itemId - item id
+     * @param quantity - quantity to give back
+     */
+    public synchronized void release(String userId, String itemId, double quantity) {
+        Map<String, Hold> userHolds = holds.get(userId);
+        Hold hold = (userHolds != null) ? userHolds.get(itemId) : null;
+        if (hold == null) {
+            return;
+        }
+
+        double released = Math.min(quantity, hold.quantity);
+        hold.quantity -= released;
+        heldQuantities.merge(itemId, -released, Double::sum);
+        if (hold.quantity <= 0) {
+            hold.expiry.cancel();
+            removeHold(userId, itemId);
+        }
+    }
+
+    /**
+     * Drops the user's holds on the given items once checkout took the stock.
+     * @param userId - user id
+     * @param itemIds - checked out items
+     */
+    public synchronized void confirm(String userId, Collection<String> itemIds) {
+        for (String itemId : itemIds) {
+            Map<String, Hold> userHolds = holds.get(userId);
+            Hold hold = (userHolds != null) ? userHolds.get(itemId) : null;
+            if (hold != null) {
+                hold.expiry.cancel();
+                heldQuantities.merge(itemId, -hold.quantity, Double::sum);
+                removeHold(userId, itemId);
+            }
+        }
+    }
+
+    /**
+     * Quantity of an item held for the given user
+     * @param userId - user id
+     * @param itemId - item id
+     * @return held quantity
+     */
+    public synchronized double getHeld(String userId, String itemId) {
+        Map<String, Hold> userHolds = holds.get(userId);
+        Hold hold = (userHolds != null) ? userHolds.get(itemId) : null;
+
+        return (hold != null) ? hold.quantity : 0.0;
+    }
+
+    /**
+     * Quantity of an item held for users other than the given one
+     * @param itemId - item id
+     * @param userId - user id
+     * @return held quantity
+     */
+    public synchronized double getHeldByOthers(String itemId, String userId) {
+        double held = heldQuantities.getOrDefault(itemId, 0.0);
+        Map<String, Hold> userHolds = holds.get(userId);
+        Hold hold = (userHolds != null) ? userHolds.get(itemId) : null;
+
+        return (hold != null) ? held - hold.quantity : held;
+    }
+
+    /**
+     * Drops a hold that was neither renewed nor checked out in time
+     * @param userId - user id
+     * @param itemId - item id
+     * @param hold - the expiring hold
+     */
+    private synchronized void expire(String userId, String itemId, Hold hold) {
+        Map<String, Hold> userHolds = holds.get(userId);
+        if (userHolds == null || userHolds.get(itemId) != hold) {
+            return;
+        }
+
+        System.out.println("Reservation of " + itemId + " for " + userId + " expired");
+        heldQuantities.merge(itemId, -hold.quantity, Double::sum);
+        removeHold(userId, itemId);
+    }
+
+    /**
+     * Removes a hold entry, and the user's entry once it has no holds left
+     * @param userId - user id
+     * @param itemId - item id
+     */
+    private void removeHold(String userId, String itemId) {
+        Map<String, Hold> userHolds = holds.get(userId);
+        userHolds.remove(itemId);
+        if (userHolds.isEmpty()) {
+            holds.remove(userId);
+        }
+        if (heldQuantities.getOrDefault(itemId, 0.0) <= 0) {
+            heldQuantities.remove(itemId);
+        }
+    }
+}
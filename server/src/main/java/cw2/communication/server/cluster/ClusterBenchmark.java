@@ -0,0 +1,173 @@
+package cw2.communication.server.cluster;
+
+import cw2.communication.grpc.generated.CartManagerServiceGrpc;
+import cw2.communication.grpc.generated.CartRequest;
+import cw2.communication.grpc.generated.QuantityManagerServiceGrpc;
+import cw2.communication.grpc.generated.UpdateQuantityRequest;
+import cw2.communication.server.GrpcTransport;
+import cw2.communication.server.InventoryServer;
+import io.grpc.StatusRuntimeException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end benchmark on a {@link LocalCluster}: cart throughput and latency with concurrent
+ * clients spread over the servers, then the time it takes to accept writes again after the
+ * primary server stops.
+ * Usage: ClusterBenchmark [servers=3] [clients=8] [seconds=10]
+ */
+public class ClusterBenchmark {
+    private static final String ITEM_ID = "benchmark-item";
+    private static final long CALL_TIMEOUT_MS = 10000;
+    private static final long FAILOVER_TIMEOUT_MS = 60000;
+
+    public static void main(String[] args) throws Exception {
+        int serverCount = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        int clientCount = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+
+        try (LocalCluster cluster = new LocalCluster(serverCount)) {
+            InventoryServer primary = cluster.awaitPrimary(FAILOVER_TIMEOUT_MS);
+            updateQuantity(primary, 1e9);
+
+            runCartLoad(cluster, clientCount, seconds);
+            if (serverCount > 1) {
+                measureFailover(cluster, primary);
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Adds to carts from concurrent clients for a while and prints the throughput and latencies.
+     *
+     * @param cluster     the cluster.
+     * @param clientCount Number of concurrent clients.
+     * @param seconds     Duration of the run.
+     * @throws Exception when a client fails.
+     */
+    private static void runCartLoad(LocalCluster cluster, int clientCount, int seconds) throws Exception {
+        List<InventoryServer> servers = cluster.getServers();
+        ExecutorService clients = Executors.newFixedThreadPool(clientCount);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<long[]>> results = new ArrayList<>();
+        int[] errors = new int[clientCount];
+
+        for (int i = 0; i < clientCount; i++) {
+            int client = i;
+            InventoryServer server = servers.get(i % servers.size());
+            results.add(clients.submit(() -> {
+                CartManagerServiceGrpc.CartManagerServiceBlockingStub stub = CartManagerServiceGrpc
+                        .newBlockingStub(GrpcTransport.getChannel("localhost", server.getPort()));
+                long[] latencies = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < deadline) {
+                    CartRequest request = CartRequest.newBuilder()
+                            .setUserId("user-" + client)
+                            .setId(ITEM_ID)
+                            .setQuantity(1)
+                            .setRequestId(String.valueOf(UUID.randomUUID()))
+                            .build();
+                    long start = System.nanoTime();
+                    try {
+                        stub.withDeadlineAfter(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS).addToCart(request);
+                    } catch (StatusRuntimeException e) {
+                        errors[client]++;
+                        continue;
+                    }
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, 2 * count);
+                    }
+                    latencies[count++] = System.nanoTime() - start;
+                }
+                return Arrays.copyOf(latencies, count);
+            }));
+        }
+
+        long[] latencies = new long[0];
+        for (Future<long[]> result : results) {
+            long[] clientLatencies = result.get();
+            int offset = latencies.length;
+            latencies = Arrays.copyOf(latencies, offset + clientLatencies.length);
+            System.arraycopy(clientLatencies, 0, latencies, offset, clientLatencies.length);
+        }
+        clients.shutdown();
+        Arrays.sort(latencies);
+
+        System.out.println("=== addToCart: " + cluster.getServers().size() + " servers, " + clientCount
+                + " clients, " + seconds + " s ===");
+        System.out.println("Committed calls : " + latencies.length + ", failed calls : " + Arrays.stream(errors).sum());
+        System.out.printf("Throughput : %.1f calls/s%n", (double) latencies.length / seconds);
+        System.out.println("Latency p50 : " + percentileMillis(latencies, 50) + " ms, p99 : "
+                + percentileMillis(latencies, 99) + " ms, max : " + percentileMillis(latencies, 100) + " ms");
+    }
+
+    /**
+     * Stops the primary server and measures how long until a secondary server accepts a write again.
+     *
+     * @param cluster the cluster.
+     * @param primary the primary server.
+     * @throws Exception when no write is accepted in time.
+     */
+    private static void measureFailover(LocalCluster cluster, InventoryServer primary) throws Exception {
+        long start = System.nanoTime();
+        cluster.stopServer(primary);
+        InventoryServer survivor = cluster.getServers().get(0);
+        int attempts = 0;
+
+        while (true) {
+            attempts++;
+            try {
+                updateQuantity(survivor, 1);
+                break;
+            } catch (StatusRuntimeException e) {
+                if (System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(FAILOVER_TIMEOUT_MS)) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+
+        System.out.println("=== Failover ===");
+        System.out.println("Writes accepted again after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                + " ms (" + attempts + " attempts), new primary on port " + cluster.awaitPrimary(FAILOVER_TIMEOUT_MS).getPort());
+    }
+
+    /**
+     * Sets the quantity of the benchmark item through a server.
+     *
+     * @param server   server to call.
+     * @param quantity new quantity.
+     */
+    private static void updateQuantity(InventoryServer server, double quantity) {
+        QuantityManagerServiceGrpc.newBlockingStub(GrpcTransport.getChannel("localhost", server.getPort()))
+                .withDeadlineAfter(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .updateQuantity(UpdateQuantityRequest.newBuilder()
+                        .setId(ITEM_ID)
+                        .setQuantity(quantity)
+                        .setRequestId(String.valueOf(UUID.randomUUID()))
+                        .build());
+    }
+
+    /**
+     * Gets a percentile of sorted latencies.
+     *
+     * @param sortedNanos latencies in nanoseconds, sorted.
+     * @param percentile  percentile between 0 and 100.
+     * @return latency in milliseconds.
+     */
+    private static double percentileMillis(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, Math.min(index, sortedNanos.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,64 @@
+package cw2.communication.server.cluster;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Standalone ZooKeeper server running inside the JVM, on an ephemeral port
+ * with its data in a temporary directory.
+ */
+public class EmbeddedZooKeeper implements Closeable {
+    private static final int TICK_TIME = 2000;
+    private static final int MAX_CONNECTIONS = 1000;
+
+    private final Path dataDirectory;
+    private final ZooKeeperServer zooKeeperServer;
+    private final ServerCnxnFactory connectionFactory;
+
+    /**
+     * EmbeddedZooKeeper Constructor. Starts the server.
+     *
+     * @throws IOException          when the server cannot be started.
+     * @throws InterruptedException Interrupt exception.
+     */
+    public EmbeddedZooKeeper() throws IOException, InterruptedException {
+        dataDirectory = Files.createTempDirectory("zookeeper");
+        File directory = dataDirectory.toFile();
+        zooKeeperServer = new ZooKeeperServer(directory, directory, TICK_TIME);
+        connectionFactory = ServerCnxnFactory.createFactory(new InetSocketAddress("localhost", 0), MAX_CONNECTIONS);
+        connectionFactory.startup(zooKeeperServer);
+        System.out.println("Embedded ZooKeeper is running at " + getAddress());
+    }
+
+    /**
+     * Gets the address clients connect to.
+     *
+     * @return host:port.
+     */
+    public String getAddress() {
+        return "localhost:" + connectionFactory.getLocalPort();
+    }
+
+    /**
+     * Stops the server and deletes its data.
+     *
+     * @throws IOException when the data cannot be deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        connectionFactory.shutdown();
+        zooKeeperServer.shutdown();
+        try (Stream<Path> paths = Files.walk(dataDirectory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
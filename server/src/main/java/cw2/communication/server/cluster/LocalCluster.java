@@ -0,0 +1,175 @@
+package cw2.communication.server.cluster;
+
+import cw2.communication.coordination.CoordinationBackend;
+import cw2.communication.coordination.InProcessCoordination;
+import cw2.communication.coordination.ZooKeeperCoordination;
+import cw2.communication.server.InventoryServer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+/**
+ * A whole inventory system in one JVM: an embedded ZooKeeper, a local name service
+ * and any number of servers on ephemeral ports. Servers can be stopped and added
+ * while the cluster runs, to measure failovers.
+ * With coordination.backend=inprocess the servers share an in-process coordination
+ * backend instead and no ZooKeeper is started.
+ */
+public class LocalCluster implements Closeable {
+    // null with the in-process coordination backend
+    private final EmbeddedZooKeeper zooKeeper;
+    private final CoordinationBackend coordination;
+    private final LocalNameService nameService;
+    // Decision logs and order logs of the servers
+    private final Path dataDirectory;
+    private final List<InventoryServer> servers = new ArrayList<>();
+
+    /**
+     * LocalCluster Constructor. Starts the coordination services and the servers,
+     * the first server becoming the primary server.
+     *
+     * @param serverCount Number of servers.
+     * @throws Exception when a service or a server cannot be started.
+     */
+    public LocalCluster(int serverCount) throws Exception {
+        if ("inprocess".equalsIgnoreCase(System.getProperty("coordination.backend", "zookeeper"))) {
+            zooKeeper = null;
+            coordination = new InProcessCoordination();
+        } else {
+            zooKeeper = new EmbeddedZooKeeper();
+            coordination = new ZooKeeperCoordination(zooKeeper.getAddress());
+        }
+        nameService = new LocalNameService();
+        dataDirectory = Files.createTempDirectory("inventory");
+        System.setProperty("nameService.address", nameService.getAddress());
+        InventoryServer.configure();
+
+        for (int i = 0; i < serverCount; i++) {
+            addServer();
+        }
+    }
+
+    /**
+     * Starts one more server, as a secondary server unless no other server is running.
+     *
+     * @return the new server.
+     * @throws Exception when the server cannot be started.
+     */
+    public synchronized InventoryServer addServer() throws Exception {
+        int port = findFreePort();
+        // Read by the server constructor, every server gets logs of its own
+        System.setProperty("replication.decisionLog", dataDirectory.resolve("decisions-" + port + ".log").toString());
+        System.setProperty("orders.directory", dataDirectory.resolve("orders-" + port).toString());
+        InventoryServer server = new InventoryServer("localhost", port, coordination);
+        server.start();
+        servers.add(server);
+
+        return server;
+    }
+
+    /**
+     * Stops a server the way a crash would.
+     *
+     * @param server server to stop.
+     * @throws InterruptedException Interrupt exception.
+     */
+    public synchronized void stopServer(InventoryServer server) throws InterruptedException {
+        if (servers.remove(server)) {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Gets the running servers.
+     *
+     * @return servers, in the order they were started.
+     */
+    public synchronized List<InventoryServer> getServers() {
+        return new ArrayList<>(servers);
+    }
+
+    /**
+     * Waits until one of the running servers is the primary server.
+     *
+     * @param timeoutMillis How long to wait.
+     * @return the primary server.
+     * @throws TimeoutException     when no server took over in time.
+     * @throws InterruptedException Interrupt exception.
+     */
+    public InventoryServer awaitPrimary(long timeoutMillis) throws TimeoutException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            for (InventoryServer server : getServers()) {
+                if (server.isPrimary()) {
+                    return server;
+                }
+            }
+            Thread.sleep(50);
+        }
+
+        throw new TimeoutException("No primary server after " + timeoutMillis + " ms");
+    }
+
+    /**
+     * Gets the address of the local name service.
+     *
+     * @return http://host:port.
+     */
+    public String getNameServiceAddress() {
+        return nameService.getAddress();
+    }
+
+    /**
+     * Gets the address of the embedded ZooKeeper.
+     *
+     * @return host:port, null with the in-process coordination backend.
+     */
+    public String getZooKeeperAddress() {
+        return (zooKeeper != null) ? zooKeeper.getAddress() : null;
+    }
+
+    /**
+     * Finds a port that is free right now.
+     *
+     * @return port.
+     * @throws IOException when no port can be bound.
+     */
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            socket.setReuseAddress(true);
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Stops every server and the coordination services.
+     *
+     * @throws IOException when the ZooKeeper data cannot be deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        for (InventoryServer server : getServers()) {
+            try {
+                stopServer(server);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        nameService.close();
+        if (zooKeeper != null) {
+            zooKeeper.close();
+        }
+        try (Stream<Path> paths = Files.walk(dataDirectory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
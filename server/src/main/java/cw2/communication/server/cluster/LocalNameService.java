@@ -0,0 +1,141 @@
+package cw2.communication.server.cluster;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * In-memory stand-in for etcd, serving the two calls of its v3 HTTP gateway
+ * used by the name service: /v3/kv/put and /v3/kv/range.
+ */
+public class LocalNameService implements Closeable {
+    // A range end of "\0" asks for every key from the start key on
+    private static final String ALL_KEYS = "\0";
+
+    private final HttpServer httpServer;
+    private final NavigableMap<String, String> entries = new ConcurrentSkipListMap<>();
+
+    /**
+     * LocalNameService Constructor. Starts serving on an ephemeral port.
+     *
+     * @throws IOException when the HTTP server cannot be started.
+     */
+    public LocalNameService() throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        httpServer.createContext("/v3/kv/put", exchange -> handle(exchange, this::put));
+        httpServer.createContext("/v3/kv/range", exchange -> handle(exchange, this::range));
+        httpServer.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "local-name-service");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        httpServer.start();
+        System.out.println("Local name service is running at " + getAddress());
+    }
+
+    /**
+     * Gets the address the name service clients connect to.
+     *
+     * @return http://host:port.
+     */
+    public String getAddress() {
+        return "http://localhost:" + httpServer.getAddress().getPort();
+    }
+
+    /**
+     * Reads the JSON request and writes the JSON response of a call.
+     *
+     * @param exchange HTTP exchange.
+     * @param call     the call, from the request to the response.
+     * @throws IOException when the exchange fails.
+     */
+    private void handle(HttpExchange exchange, Function<JSONObject, JSONObject> call) throws IOException {
+        byte[] response;
+        try (InputStream inputStream = exchange.getRequestBody()) {
+            JSONObject request = new JSONObject(new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+            response = call.apply(request).toString().getBytes(StandardCharsets.UTF_8);
+        } catch (RuntimeException e) {
+            System.out.println("Error while serving " + exchange.getRequestURI() + " : " + e.getMessage());
+            exchange.sendResponseHeaders(400, -1);
+            exchange.close();
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(response);
+        }
+    }
+
+    /**
+     * Stores a key value pair.
+     *
+     * @param request put request.
+     * @return put response.
+     */
+    private JSONObject put(JSONObject request) {
+        entries.put(decode(request.getString("key")), decode(request.getString("value")));
+
+        return new JSONObject().put("header", new JSONObject());
+    }
+
+    /**
+     * Looks up a key, or a range of keys. Like etcd, the kvs field is left out when nothing matches.
+     *
+     * @param request range request.
+     * @return range response.
+     */
+    private JSONObject range(JSONObject request) {
+        String key = decode(request.getString("key"));
+        Map<String, String> matches;
+        if (!request.has("range_end")) {
+            String value = entries.get(key);
+            matches = (value != null) ? Map.of(key, value) : Map.of();
+        } else {
+            String rangeEnd = decode(request.getString("range_end"));
+            matches = ALL_KEYS.equals(rangeEnd) ? entries.tailMap(key, true) : entries.subMap(key, rangeEnd);
+        }
+
+        JSONObject response = new JSONObject().put("header", new JSONObject());
+        if (!matches.isEmpty()) {
+            JSONArray kvs = new JSONArray();
+            for (Map.Entry<String, String> entry : matches.entrySet()) {
+                kvs.put(new JSONObject().put("key", encode(entry.getKey())).put("value", encode(entry.getValue())));
+            }
+            response.put("kvs", kvs).put("count", String.valueOf(kvs.length()));
+        }
+
+        return response;
+    }
+
+    private static String decode(String value) {
+        return new String(Base64.getDecoder().decode(value), StandardCharsets.UTF_8);
+    }
+
+    private static String encode(String value) {
+        return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Stops serving.
+     */
+    @Override
+    public void close() {
+        httpServer.stop(0);
+    }
+}
@@ -0,0 +1,104 @@
+package cw2.communication.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DecisionLogTest {
+    private static final int RECORD_SIZE = 17;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reloadsDecisionsAfterRestart() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("decisions.log");
+        String committed = UUID.randomUUID().toString();
+        String aborted = UUID.randomUUID().toString();
+
+        DecisionLog log = new DecisionLog(path, 100, false);
+        log.record(committed, true);
+        log.record(aborted, false);
+        log.close();
+
+        DecisionLog reopened = new DecisionLog(path, 100, false);
+        assertEquals(Boolean.TRUE, reopened.getDecision(committed));
+        assertEquals(Boolean.FALSE, reopened.getDecision(aborted));
+        assertNull(reopened.getDecision(UUID.randomUUID().toString()));
+        reopened.close();
+    }
+
+    @Test
+    public void compactsToLatestDecisions() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("decisions.log");
+        List<String> transactionIds = new ArrayList<>();
+        DecisionLog log = new DecisionLog(path, 4, false);
+        // Twice the capacity rewrites the file with the 4 latest decisions
+        for (int i = 0; i < 8; i++) {
+            String transactionId = UUID.randomUUID().toString();
+            transactionIds.add(transactionId);
+            log.record(transactionId, i % 2 == 0);
+        }
+        log.close();
+
+        assertEquals(4 * RECORD_SIZE, Files.size(path));
+        DecisionLog reopened = new DecisionLog(path, 4, false);
+        for (int i = 0; i < 4; i++) {
+            assertNull(reopened.getDecision(transactionIds.get(i)));
+        }
+        for (int i = 4; i < 8; i++) {
+            assertEquals(i % 2 == 0, reopened.getDecision(transactionIds.get(i)));
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void appendsAfterCompaction() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("decisions.log");
+        DecisionLog log = new DecisionLog(path, 2, false);
+        for (int i = 0; i < 4; i++) {
+            log.record(UUID.randomUUID().toString(), true);
+        }
+        String latest = UUID.randomUUID().toString();
+        log.record(latest, false);
+        log.close();
+
+        assertEquals(3 * RECORD_SIZE, Files.size(path));
+        DecisionLog reopened = new DecisionLog(path, 2, false);
+        assertEquals(Boolean.FALSE, reopened.getDecision(latest));
+        reopened.close();
+    }
+
+    @Test
+    public void writesOverTornRecord() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("decisions.log");
+        String transactionId = UUID.randomUUID().toString();
+        DecisionLog log = new DecisionLog(path, 100, false);
+        log.record(transactionId, true);
+        log.close();
+        Files.write(path, new byte[]{'C', 1, 2, 3}, StandardOpenOption.APPEND);
+
+        DecisionLog reopened = new DecisionLog(path, 100, false);
+        assertEquals(Boolean.TRUE, reopened.getDecision(transactionId));
+        String next = UUID.randomUUID().toString();
+        reopened.record(next, false);
+        reopened.close();
+
+        assertEquals(2 * RECORD_SIZE, Files.size(path));
+        DecisionLog again = new DecisionLog(path, 100, false);
+        assertEquals(Boolean.TRUE, again.getDecision(transactionId));
+        assertEquals(Boolean.FALSE, again.getDecision(next));
+        again.close();
+    }
+}
@@ -0,0 +1,73 @@
+package cw2.communication.server;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashedTimingWheelTest {
+
+    @Test
+    public void runsTaskOnceItsDelayElapsed() throws InterruptedException {
+        HashedTimingWheel wheel = new HashedTimingWheel(5, 64, "wheel-test");
+        CountDownLatch isRun = new CountDownLatch(1);
+        long[] runAt = new long[1];
+        long scheduledAt = System.nanoTime();
+
+        wheel.schedule(() -> {
+            runAt[0] = System.nanoTime();
+            isRun.countDown();
+        }, 50);
+
+        assertTrue(isRun.await(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(runAt[0] - scheduledAt) >= 50);
+    }
+
+    @Test
+    public void runsTaskDueAfterSeveralRounds() throws InterruptedException {
+        // 4 slots of 5ms, the task goes round the wheel several times before it is due
+        HashedTimingWheel wheel = new HashedTimingWheel(5, 4, "wheel-test");
+        CountDownLatch isRun = new CountDownLatch(1);
+        long[] runAt = new long[1];
+        long scheduledAt = System.nanoTime();
+
+        wheel.schedule(() -> {
+            runAt[0] = System.nanoTime();
+            isRun.countDown();
+        }, 120);
+
+        assertTrue(isRun.await(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(runAt[0] - scheduledAt) >= 120);
+    }
+
+    @Test
+    public void skipsCancelledTask() throws InterruptedException {
+        HashedTimingWheel wheel = new HashedTimingWheel(5, 64, "wheel-test");
+        AtomicBoolean isCancelledRun = new AtomicBoolean(false);
+        CountDownLatch isLaterRun = new CountDownLatch(1);
+
+        HashedTimingWheel.Timeout timeout = wheel.schedule(() -> isCancelledRun.set(true), 30);
+        timeout.cancel();
+        wheel.schedule(isLaterRun::countDown, 100);
+
+        assertTrue(isLaterRun.await(2, TimeUnit.SECONDS));
+        assertFalse(isCancelledRun.get());
+    }
+
+    @Test
+    public void keepsRunningAfterFailingTask() throws InterruptedException {
+        HashedTimingWheel wheel = new HashedTimingWheel(5, 64, "wheel-test");
+        CountDownLatch isRun = new CountDownLatch(1);
+
+        wheel.schedule(() -> {
+            throw new IllegalStateException("Failing on purpose");
+        }, 10);
+        wheel.schedule(isRun::countDown, 40);
+
+        assertTrue(isRun.await(2, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,153 @@
+package cw2.communication.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OrderLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pagesUserOrdersLatestFirst() throws IOException {
+        OrderLog log = new OrderLog(folder.getRoot().toPath(), 1024 * 1024, false);
+        for (int i = 0; i < 5; i++) {
+            log.append("o" + i, "u1", i, Collections.singletonMap("apple", (double) i));
+            log.append("other" + i, "u2", i, Collections.singletonMap("pear", 1.0));
+        }
+
+        List<OrderLog.Order> firstPage = log.getOrders("u1", -1, 2);
+        assertEquals(Arrays.asList("o4", "o3"), orderIds(firstPage));
+        List<OrderLog.Order> secondPage = log.getOrders("u1", firstPage.get(1).getOffset(), 2);
+        assertEquals(Arrays.asList("o2", "o1"), orderIds(secondPage));
+        assertEquals(Arrays.asList("o0"), orderIds(log.getOrders("u1", secondPage.get(1).getOffset(), 2)));
+        assertEquals(2.0, secondPage.get(0).getItems().get("apple"), 0);
+        assertTrue(log.getOrders("nobody", -1, 2).isEmpty());
+        log.close();
+    }
+
+    @Test
+    public void reindexesOrdersAfterRestart() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        OrderLog log = new OrderLog(directory, 1024 * 1024, false);
+        log.append("o1", "u1", 1000L, items("apple", 2.0, "pear", 0.5));
+        log.close();
+
+        OrderLog reopened = new OrderLog(directory, 1024 * 1024, false);
+        OrderLog.Order order = reopened.getOrders("u1", -1, 10).get(0);
+        assertEquals("o1", order.getOrderId());
+        assertEquals("u1", order.getUserId());
+        assertEquals(1000L, order.getPlacedAt());
+        assertEquals(items("apple", 2.0, "pear", 0.5), order.getItems());
+        reopened.close();
+    }
+
+    @Test
+    public void writesOverTornRecord() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        OrderLog log = new OrderLog(directory, 1024 * 1024, false);
+        log.append("o1", "u1", 1L, Collections.singletonMap("apple", 1.0));
+        log.close();
+        Path segment = segmentFiles(directory).get(0);
+        long size = Files.size(segment);
+        // Header of a record whose payload never made it to disk
+        Files.write(segment, new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 5}, StandardOpenOption.APPEND);
+
+        OrderLog reopened = new OrderLog(directory, 1024 * 1024, false);
+        assertEquals(size, Files.size(segment));
+        reopened.append("o2", "u1", 2L, Collections.singletonMap("pear", 1.0));
+        reopened.close();
+
+        OrderLog again = new OrderLog(directory, 1024 * 1024, false);
+        assertEquals(Arrays.asList("o2", "o1"), orderIds(again.getOrders("u1", -1, 10)));
+        again.close();
+    }
+
+    @Test
+    public void rollsOverToNewSegments() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        OrderLog log = new OrderLog(directory, 200, false);
+        for (int i = 0; i < 20; i++) {
+            log.append("o" + i, "u" + (i % 2), i, Collections.singletonMap("apple", 1.0));
+        }
+        log.close();
+
+        List<Path> segments = segmentFiles(directory);
+        assertTrue(segments.size() > 1);
+        for (Path segment : segments) {
+            assertTrue(Files.size(segment) <= 200);
+        }
+        OrderLog reopened = new OrderLog(directory, 200, false);
+        assertEquals(Arrays.asList("o19", "o17", "o15"), orderIds(reopened.getOrders("u1", -1, 3)));
+        assertEquals(10, reopened.getOrders("u0", -1, 100).size());
+        assertEquals("o0", reopened.getOrders("u0", -1, 100).get(9).getOrderId());
+        reopened.close();
+    }
+
+    @Test
+    public void keepsOrderLargerThanSegment() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        Map<String, Double> items = new LinkedHashMap<>();
+        // More items than an unsigned short counts
+        for (int i = 0; i < 70000; i++) {
+            items.put("sku" + i, (double) i);
+        }
+        OrderLog log = new OrderLog(directory, 1024, false);
+        log.append("small", "u1", 1L, Collections.singletonMap("apple", 1.0));
+        log.append("large", "u1", 2L, items);
+        log.append("after", "u1", 3L, Collections.singletonMap("apple", 1.0));
+        log.close();
+
+        OrderLog reopened = new OrderLog(directory, 1024, false);
+        List<OrderLog.Order> orders = reopened.getOrders("u1", -1, 10);
+        assertEquals(Arrays.asList("after", "large", "small"), orderIds(orders));
+        assertEquals(items, orders.get(1).getItems());
+        reopened.close();
+    }
+
+    private static Map<String, Double> items(Object... itemIdsAndQuantities) {
+        Map<String, Double> items = new LinkedHashMap<>();
+        for (int i = 0; i < itemIdsAndQuantities.length; i += 2) {
+            items.put((String) itemIdsAndQuantities[i], (Double) itemIdsAndQuantities[i + 1]);
+        }
+
+        return items;
+    }
+
+    private static List<String> orderIds(List<OrderLog.Order> orders) {
+        List<String> orderIds = new ArrayList<>();
+        for (OrderLog.Order order : orders) {
+            orderIds.add(order.getOrderId());
+        }
+
+        return orderIds;
+    }
+
+    private static List<Path> segmentFiles(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments);
+
+        return segments;
+    }
+}
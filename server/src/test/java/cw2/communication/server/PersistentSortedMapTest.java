@@ -0,0 +1,107 @@
+package cw2.communication.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PersistentSortedMapTest {
+
+    @Test
+    public void matchesTreeMapUnderRandomChanges() {
+        Random random = new Random(42);
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        PersistentSortedMap<Integer, Integer> map = PersistentSortedMap.empty();
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                expected.put(key, i);
+                map = map.put(key, i);
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        assertEquals(new ArrayList<>(expected.entrySet()), toList(map.iterator(null)));
+        for (int key = 0; key < 2000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void leavesEarlierVersionsUnchanged() {
+        PersistentSortedMap<String, Integer> first = PersistentSortedMap.<String, Integer>empty()
+                .put("a", 1)
+                .put("b", 2);
+        PersistentSortedMap<String, Integer> second = first.put("a", 10).remove("b").put("c", 3);
+
+        assertEquals(Integer.valueOf(1), first.get("a"));
+        assertEquals(Integer.valueOf(2), first.get("b"));
+        assertFalse(first.containsKey("c"));
+        assertEquals(2, first.size());
+
+        assertEquals(Integer.valueOf(10), second.get("a"));
+        assertNull(second.get("b"));
+        assertEquals(Integer.valueOf(3), second.get("c"));
+        assertEquals(2, second.size());
+    }
+
+    @Test
+    public void returnsSameMapWhenRemovingUnknownKey() {
+        PersistentSortedMap<String, Integer> map = PersistentSortedMap.<String, Integer>empty().put("a", 1);
+
+        assertSame(map, map.remove("b"));
+    }
+
+    @Test
+    public void iteratesFromKey() {
+        PersistentSortedMap<Integer, Integer> map = PersistentSortedMap.empty();
+        for (int key = 0; key < 100; key += 10) {
+            map = map.put(key, key);
+        }
+
+        Iterator<Map.Entry<Integer, Integer>> fromExisting = map.iterator(30);
+        assertEquals(Integer.valueOf(30), fromExisting.next().getKey());
+        Iterator<Map.Entry<Integer, Integer>> fromMissing = map.iterator(35);
+        assertEquals(Integer.valueOf(40), fromMissing.next().getKey());
+        assertEquals(6, toList(map.iterator(35)).size());
+        assertFalse(map.iterator(95).hasNext());
+    }
+
+    @Test
+    public void staysBalancedWithSortedInserts() {
+        PersistentSortedMap<Integer, Integer> map = PersistentSortedMap.empty();
+        for (int key = 0; key < 100000; key++) {
+            map = map.put(key, key);
+        }
+
+        // An unbalanced tree this deep would overflow the stack on the recursive removals
+        for (int key = 0; key < 100000; key += 2) {
+            map = map.remove(key);
+        }
+        assertEquals(50000, map.size());
+        assertTrue(map.containsKey(99999));
+        assertEquals(Integer.valueOf(1), map.iterator(null).next().getKey());
+    }
+
+    private static <K, V> List<Map.Entry<K, V>> toList(Iterator<Map.Entry<K, V>> iterator) {
+        List<Map.Entry<K, V>> entries = new ArrayList<>();
+        while (iterator.hasNext()) {
+            entries.add(iterator.next());
+        }
+
+        return entries;
+    }
+}
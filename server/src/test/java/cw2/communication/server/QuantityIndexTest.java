@@ -0,0 +1,82 @@
+package cw2.communication.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuantityIndexTest {
+
+    @Test
+    public void includesMinAndExcludesMax() {
+        QuantityIndex index = indexOf("a", 1, "b", 5, "c", 10, "d", 15);
+
+        assertEquals(Arrays.asList("b", "c"), itemIds(index.query(5.0, 15.0, 0)));
+    }
+
+    @Test
+    public void treatsNullBoundsAsOpen() {
+        QuantityIndex index = indexOf("a", 1, "b", 5, "c", 10);
+
+        assertEquals(Arrays.asList("a", "b"), itemIds(index.query(null, 10.0, 0)));
+        assertEquals(Arrays.asList("b", "c"), itemIds(index.query(5.0, null, 0)));
+        assertEquals(Arrays.asList("a", "b", "c"), itemIds(index.query(null, null, 0)));
+    }
+
+    @Test
+    public void ordersByQuantityThenItemId() {
+        QuantityIndex index = indexOf("pear", 3, "apple", 3, "plum", 2, "fig", 3);
+
+        assertEquals(Arrays.asList("plum", "apple", "fig", "pear"), itemIds(index.query(null, null, 0)));
+    }
+
+    @Test
+    public void stopsAtLimit() {
+        QuantityIndex index = indexOf("a", 1, "b", 2, "c", 3, "d", 4);
+
+        assertEquals(Arrays.asList("b", "c"), itemIds(index.query(2.0, null, 2)));
+    }
+
+    @Test
+    public void movesItemToItsNewQuantity() {
+        QuantityIndex before = indexOf("a", 1, "b", 5);
+        QuantityIndex after = before.move("a", new StockEntry(1, 1), new StockEntry(8, 2));
+
+        assertEquals(Arrays.asList("b", "a"), itemIds(after.query(null, null, 0)));
+        assertEquals(8, after.query(6.0, null, 0).get(0).getQuantity(), 0);
+        // The earlier snapshot still answers with the old quantity
+        assertEquals(Arrays.asList("a", "b"), itemIds(before.query(null, null, 0)));
+    }
+
+    @Test
+    public void findsNothingInEmptyRange() {
+        QuantityIndex index = indexOf("a", 1, "b", 5);
+
+        assertTrue(index.query(2.0, 5.0, 0).isEmpty());
+        assertTrue(index.query(5.0, 5.0, 0).isEmpty());
+        assertTrue(QuantityIndex.EMPTY.query(null, null, 0).isEmpty());
+    }
+
+    private static QuantityIndex indexOf(Object... itemIdsAndQuantities) {
+        QuantityIndex index = QuantityIndex.EMPTY;
+        for (int i = 0; i < itemIdsAndQuantities.length; i += 2) {
+            double quantity = ((Number) itemIdsAndQuantities[i + 1]).doubleValue();
+            index = index.move((String) itemIdsAndQuantities[i], null, new StockEntry(quantity, 1));
+        }
+
+        return index;
+    }
+
+    private static List<String> itemIds(List<QuantityIndex.Entry> entries) {
+        List<String> itemIds = new ArrayList<>();
+        for (QuantityIndex.Entry entry : entries) {
+            itemIds.add(entry.getItemId());
+        }
+
+        return itemIds;
+    }
+}
@@ -0,0 +1,114 @@
+package cw2.communication.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SplitCounterTest {
+
+    @Test
+    public void spreadsRemainderWithoutLosingUnits() {
+        SplitCounter counter = new SplitCounter(4, 10);
+
+        assertEquals(10, counter.getAvailable());
+        // The whole stock can be taken, whichever sub-counter the thread takes from
+        assertNotNull(counter.tryTake(10));
+        assertEquals(0, counter.getAvailable());
+        assertNull(counter.tryTake(1));
+    }
+
+    @Test
+    public void settlesAndGivesBackOnReservationStripe() throws InterruptedException {
+        SplitCounter counter = new SplitCounter(8, 100);
+        SplitCounter.Reservation sold = counter.tryTake(30);
+        SplitCounter.Reservation returned = counter.tryTake(20);
+
+        // Decided on another thread, which may pick another sub-counter than the one taken from
+        Thread decider = new Thread(() -> {
+            counter.settle(sold);
+            counter.giveBack(returned);
+        });
+        decider.start();
+        decider.join();
+
+        assertEquals(0, counter.getPending());
+        assertEquals(70, counter.getAvailable());
+    }
+
+    @Test
+    public void resetKeepsPendingTakes() {
+        SplitCounter counter = new SplitCounter(4, 100);
+        SplitCounter.Reservation reservation = counter.tryTake(30);
+
+        counter.reset(50);
+
+        assertEquals(20, counter.getAvailable());
+        counter.giveBack(reservation);
+        assertEquals(50, counter.getAvailable());
+    }
+
+    @Test
+    public void neverOversellsUnderConcurrentTakes() throws InterruptedException {
+        SplitCounter counter = new SplitCounter(4, 1000);
+        AtomicLong taken = new AtomicLong();
+        List<SplitCounter.Reservation> reservations = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch isDone = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            executor.execute(() -> {
+                SplitCounter.Reservation reservation;
+                while ((reservation = counter.tryTake(3)) != null) {
+                    taken.addAndGet(reservation.getQuantity());
+                    reservations.add(reservation);
+                }
+                isDone.countDown();
+            });
+        }
+        assertTrue(isDone.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        // 333 takes of 3, the last unit is left
+        assertEquals(999, taken.get());
+        assertEquals(1, counter.getAvailable());
+        assertEquals(999, counter.getPending());
+        for (SplitCounter.Reservation reservation : reservations) {
+            counter.settle(reservation);
+        }
+        assertEquals(0, counter.getPending());
+    }
+
+    @Test
+    public void escrowsWholeQuantitiesOfHotItemsOnly() {
+        HotItemEscrow escrow = new HotItemEscrow(Collections.singleton("hot"), 4);
+
+        assertTrue(escrow.isEscrowed("hot", 2));
+        assertFalse(escrow.isEscrowed("hot", 1.5));
+        assertFalse(escrow.isEscrowed("hot", 0));
+        assertFalse(escrow.isEscrowed("cold", 2));
+    }
+
+    @Test
+    public void escrowsWholeUnitsOfCommittedQuantity() {
+        HotItemEscrow escrow = new HotItemEscrow(Collections.singleton("hot"), 4);
+
+        SplitCounter.Reservation reservation = escrow.tryTake("hot", 10, 10.5);
+
+        assertNotNull(reservation);
+        assertNull(escrow.tryTake("hot", 1, 10.5));
+        escrow.release("hot", reservation, false);
+        assertNotNull(escrow.tryTake("hot", 10, 10.5));
+    }
+}
@@ -0,0 +1,131 @@
+package cw2.communication.server;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StateDeltaTest {
+
+    @Test
+    public void decodesStockDelta() throws IOException {
+        List<StateDelta.StockChange> changes = Arrays.asList(
+                new StateDelta.StockChange("apple", 3, 7.5),
+                new StateDelta.StockChange("pear", StateDelta.ANY_VERSION, 2));
+
+        StateDelta delta = StateDelta.parseFrom(StateDelta.ofStock("r1", "done", "u1", changes).toByteString());
+
+        assertFalse(delta.isOrder() || delta.isCart() || delta.isCartExpiry());
+        assertEquals("r1", delta.getRequestId());
+        assertEquals("done", delta.getResponse());
+        assertEquals("u1", delta.getUserId());
+        assertEquals(2, delta.getStockChanges().size());
+        assertEquals("apple", delta.getStockChanges().get(0).getItemId());
+        assertEquals(3, delta.getStockChanges().get(0).getExpectedVersion());
+        assertEquals(7.5, delta.getStockChanges().get(0).getQuantity(), 0);
+        assertEquals(StateDelta.ANY_VERSION, delta.getStockChanges().get(1).getExpectedVersion());
+    }
+
+    @Test
+    public void decodesOrderDelta() throws IOException {
+        Map<String, Double> items = new LinkedHashMap<>();
+        items.put("hot", 2.0);
+        items.put("apple", 1.5);
+        List<StateDelta.StockChange> changes = Arrays.asList(
+                new StateDelta.StockChange("hot", StateDelta.TAKEN, 2),
+                new StateDelta.StockChange("apple", 4, 8.5));
+
+        StateDelta delta = StateDelta.parseFrom(
+                StateDelta.ofOrder("o1", "placed", "u1", changes, items, 1234L).toByteString());
+
+        assertTrue(delta.isOrder());
+        assertEquals(1234L, delta.getPlacedAt());
+        assertEquals(items, delta.getCartItems());
+        assertEquals(Arrays.asList("hot", "apple"), new ArrayList<>(delta.getCartItems().keySet()));
+        assertEquals(StateDelta.TAKEN, delta.getStockChanges().get(0).getExpectedVersion());
+    }
+
+    @Test
+    public void decodesCartDelta() throws IOException {
+        StateDelta delta = StateDelta.parseFrom(StateDelta.ofCart("c1", "added", "u1", "apple", 3, true).toByteString());
+
+        assertTrue(delta.isCart());
+        assertEquals("apple", delta.getCartItemId());
+        assertEquals(3, delta.getCartQuantity(), 0);
+        assertTrue(delta.isHeld());
+    }
+
+    @Test
+    public void decodesExpiryOfSeveralCarts() throws IOException {
+        Map<String, Map<String, Double>> carts = new LinkedHashMap<>();
+        carts.put("u1", new LinkedHashMap<>());
+        carts.get("u1").put("apple", 1.0);
+        carts.put("u2", new LinkedHashMap<>());
+        carts.get("u2").put("pear", 2.0);
+        carts.get("u2").put("plum", 3.0);
+
+        StateDelta delta = StateDelta.parseFrom(StateDelta.ofCartExpiry(carts).toByteString());
+
+        assertTrue(delta.isCartExpiry());
+        assertEquals(carts, delta.getExpiredCarts());
+    }
+
+    @Test
+    public void decodesMoreThanShortCountOfChanges() throws IOException {
+        List<StateDelta.StockChange> changes = new ArrayList<>();
+        for (int i = 0; i < 70000; i++) {
+            changes.add(new StateDelta.StockChange("sku" + i, StateDelta.ANY_VERSION, i));
+        }
+
+        StateDelta delta = StateDelta.parseFrom(StateDelta.ofStock("import", "", "", changes).toByteString());
+
+        assertEquals(70000, delta.getStockChanges().size());
+        assertEquals("sku69999", delta.getStockChanges().get(69999).getItemId());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownKind() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte('X');
+            out.writeUTF("");
+            out.writeUTF("");
+            out.writeUTF("");
+        }
+
+        StateDelta.parseFrom(ByteString.copyFrom(bytes.toByteArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNegativeCount() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte('S');
+            out.writeUTF("");
+            out.writeUTF("");
+            out.writeUTF("");
+            out.writeInt(-1);
+        }
+
+        StateDelta.parseFrom(ByteString.copyFrom(bytes.toByteArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedRecord() throws IOException {
+        ByteString record = StateDelta.ofStock("r1", "done", "u1",
+                Arrays.asList(new StateDelta.StockChange("apple", 3, 7.5))).toByteString();
+
+        StateDelta.parseFrom(record.substring(0, record.size() - 4));
+    }
+}
@@ -0,0 +1,59 @@
+package cw2.communication.server;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class StockLocksTest {
+
+    @Test
+    public void sharesLockBetweenTakes() {
+        StockLocks locks = new StockLocks();
+        StockLocks.Held first = locks.tryLock(Collections.emptyList(), Collections.singletonList("hot"));
+
+        assertNotNull(locks.tryLock(Collections.emptyList(), Collections.singletonList("hot")));
+        first.close();
+    }
+
+    @Test
+    public void turnsDownLockedItemAtOnce() {
+        StockLocks locks = new StockLocks();
+        StockLocks.Held first = locks.tryLock(Collections.singletonList("apple"), Collections.emptyList());
+
+        assertNull(locks.tryLock(Collections.singletonList("apple"), Collections.emptyList()));
+        assertNull(locks.tryLock(Collections.emptyList(), Collections.singletonList("apple")));
+        first.close();
+        assertNotNull(locks.tryLock(Collections.singletonList("apple"), Collections.emptyList()));
+    }
+
+    @Test
+    public void turnsDownExclusiveLockWhileShared() {
+        StockLocks locks = new StockLocks();
+        StockLocks.Held first = locks.tryLock(Collections.emptyList(), Collections.singletonList("hot"));
+        StockLocks.Held second = locks.tryLock(Collections.emptyList(), Collections.singletonList("hot"));
+
+        first.close();
+        assertNull(locks.tryLock(Collections.singletonList("hot"), Collections.emptyList()));
+        second.close();
+        assertNotNull(locks.tryLock(Collections.singletonList("hot"), Collections.emptyList()));
+    }
+
+    @Test
+    public void locksNothingUnlessEveryItemIsFree() {
+        StockLocks locks = new StockLocks();
+        StockLocks.Held pear = locks.tryLock(Collections.singletonList("pear"), Collections.emptyList());
+
+        assertNull(locks.tryLock(Arrays.asList("apple", "pear"), Collections.emptyList()));
+
+        // The turned down transaction left no lock on apple behind
+        StockLocks.Held apple = locks.tryLock(Collections.singletonList("apple"), Collections.emptyList());
+        assertNotNull(apple);
+        apple.close();
+        pear.close();
+        assertNotNull(locks.tryLock(Arrays.asList("apple", "pear"), Collections.emptyList()));
+    }
+}